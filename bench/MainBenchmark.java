@@ -0,0 +1,712 @@
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.Deflater;
+import rice.environment.Environment;
+import rice.environment.params.Parameters;
+import rice.p2p.commonapi.Application;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.Node;
+import rice.p2p.commonapi.NodeHandle;
+import rice.p2p.commonapi.RouteMessage;
+import rice.p2p.commonapi.rawserialization.RawMessage;
+import rice.p2p.util.rawserialization.SimpleInputBuffer;
+import rice.p2p.util.rawserialization.SimpleOutputBuffer;
+import rice.pastry.PastryNode;
+import rice.pastry.PastryNodeFactory;
+import rice.pastry.direct.DirectPastryNodeFactory;
+import rice.pastry.direct.EuclideanNetwork;
+import rice.pastry.standard.RandomNodeIdFactory;
+
+/**
+ *      Benchmark starter
+ *
+ * Runs the micro-benchmarks of the chat hot paths on a single simulated
+ * node and writes the results as JSON (build/bench/results.json by default).
+ *
+ * The node's outbound queue has zero capacity, so everything the chat
+ * routes is dropped right at the queue. This stands in for a stubbed
+ * endpoint and keeps the network out of the numbers.
+ *
+ * @author Dejvino
+ */
+public class MainBenchmark
+{
+    private static final String TEXT = "The quick brown fox jumps over the lazy dog.";
+
+    private final MicroBench bench = new MicroBench(1000, 1000, 5);
+
+    private Environment env;
+    private PastryNode node;
+    private ChatApp chat;
+    private Endpoint endpoint;
+    private final Deflater plainDeflater = new Deflater();
+
+    // =====================================================================
+
+    /**
+     * Boots a single simulated node with a quiet ChatApp.
+     */
+    private void setUp() throws Exception
+    {
+        env = Environment.directEnvironment();
+        Parameters params = env.getParameters();
+        params.setInt("pastrychat_outbound_capacity", 0);
+        params.setInt("pastrychat_owner_stripes", 0);
+        params.setInt("pastrychat_listener_capacity", 0);
+        params.setInt("pastrychat_batch_window", 0);
+        params.setString("pastrychat_history_dir", "");
+        // a single sender floods the owner, the limits would reject nearly all of it
+        params.setInt("pastrychat_limit_sender_rate", 0);
+        params.setInt("pastrychat_limit_channel_rate", 0);
+
+        PastryNodeFactory factory = new DirectPastryNodeFactory(new RandomNodeIdFactory(env),
+                new EuclideanNetwork(env), env);
+        node = factory.newNode();
+        chat = new ChatApp(node, "bench");
+        chat.registerChatAppListener(new NullListener());
+        chat.activate();
+        endpoint = node.buildEndpoint(new NullApplication(), "bench-endpoint");
+        endpoint.register();
+
+        node.boot(Collections.emptyList());
+        synchronized (node) {
+            while (!node.isReady() && !node.joinFailed()) {
+                node.wait(500);
+            }
+        }
+    }
+
+    private void tearDown()
+    {
+        if (node != null) {
+            node.destroy();
+        }
+        if (env != null) {
+            env.destroy();
+        }
+    }
+
+    // =====================================================================
+
+    /**
+     * Raw and Java serialization round-trips of all the message types.
+     */
+    private void serialization() throws Exception
+    {
+        Id me = chat.getNodeId();
+        Id other = chat.getClientId("other");
+        Id channel = chat.getChannelId("channel");
+        RawMessage[] messages = new RawMessage[] {
+            new PrivateMsg(me, "bench", other, "other", TEXT),
+            new ChannelMsg(me, "bench", other, "other", channel, "channel", TEXT),
+            new ChannelBroadcastMsg(me, "bench", channel, "channel", TEXT),
+            new ChannelAdminMsg(me, "bench", channel, "channel",
+                    ChannelAdminMsg.ACTION_TYPE_JOIN, ChannelAdminMsg.ACTION_PHASE_REQUEST),
+        };
+
+        final ChatMessageDeserializer deserializer = new ChatMessageDeserializer(endpoint);
+        for (final RawMessage msg : messages) {
+            String name = msg.getClass().getSimpleName();
+            System.out.println(name + ": " + rawBytes(msg).length + " B raw, "
+                    + javaBytes(msg).length + " B java");
+
+            bench.measure("serialize.raw", name, new MicroBench.Case()
+            {
+                @Override
+                public Object run() throws Exception
+                {
+                    byte[] bytes = rawBytes(msg);
+                    return deserializer.deserialize(new SimpleInputBuffer(bytes),
+                            msg.getType(), msg.getPriority(), null);
+                }
+            });
+            bench.measure("serialize.java", name, new MicroBench.Case()
+            {
+                @Override
+                public Object run() throws Exception
+                {
+                    byte[] bytes = javaBytes(msg);
+                    return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+                }
+            });
+        }
+    }
+
+    private static byte[] rawBytes(RawMessage msg) throws Exception
+    {
+        SimpleOutputBuffer buf = new SimpleOutputBuffer();
+        msg.serialize(buf);
+        return buf.getBytes();
+    }
+
+    private static byte[] javaBytes(Message msg) throws Exception
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(msg);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    // =====================================================================
+
+    /**
+     * Client and channel Id derivation.
+     */
+    private void idDerivation() throws Exception
+    {
+        bench.measure("id.client", "", new MicroBench.Case()
+        {
+            @Override
+            public Object run()
+            {
+                return chat.getClientId("some-nickname");
+            }
+        });
+        bench.measure("id.channel", "", new MicroBench.Case()
+        {
+            @Override
+            public Object run()
+            {
+                return chat.getChannelId("some-channel");
+            }
+        });
+    }
+
+    /**
+     * Load balance of the client Ids on a simulated ring: the nicknames of
+     * a typical pattern become the nodes, random keys go to the numerically
+     * closest node. The busiest node of a uniformly spread ring holds about
+     * ln(n) times the mean, the digest derivation has to stay below twice
+     * that. The legacy derivation is only printed.
+     */
+    private void idDistribution() throws Exception
+    {
+        int nodes = 4096;
+        int keys = 100000;
+        double bound = 2 * Math.log(nodes);
+        int[] versions = new int[] { HashNodeIdFactory.VERSION_HASHCODE, HashNodeIdFactory.VERSION_DIGEST };
+        for (int version : versions) {
+            Set<BigInteger> distinct = new HashSet<BigInteger>();
+            for (int i = 0; i < nodes; i++) {
+                distinct.add(toNumber(new HashNodeIdFactory("user-" + i, version).generateNodeId().toByteArray()));
+            }
+            BigInteger[] ring = distinct.toArray(new BigInteger[distinct.size()]);
+            Arrays.sort(ring);
+
+            // same keys for both versions
+            java.util.Random random = new java.util.Random(42);
+            int[] load = new int[ring.length];
+            for (int k = 0; k < keys; k++) {
+                load[closest(ring, new BigInteger(rice.pastry.Id.IdBitLength, random))]++;
+            }
+            int max = 0;
+            for (int l : load) {
+                max = Math.max(max, l);
+            }
+            double ratio = max / (keys / (double) ring.length);
+            System.out.println("id distribution v" + version + ": " + ring.length + "/" + nodes
+                    + " distinct, busiest node " + max + " keys, "
+                    + String.format(java.util.Locale.ROOT, "%.1f", ratio) + "x the mean (bound "
+                    + String.format(java.util.Locale.ROOT, "%.1f", bound) + ")");
+            if (version == HashNodeIdFactory.VERSION_DIGEST && (ring.length != nodes || ratio > bound)) {
+                throw new IllegalStateException("Client Ids spread unevenly: " + ring.length + " distinct, "
+                        + ratio + "x the mean load");
+            }
+        }
+    }
+
+    private static final BigInteger RING = BigInteger.ONE.shiftLeft(rice.pastry.Id.IdBitLength);
+
+    /**
+     * Turns the (little-endian) Id bytes into a number on the ring.
+     */
+    private static BigInteger toNumber(byte[] id)
+    {
+        byte[] bigEndian = new byte[id.length];
+        for (int i = 0; i < id.length; i++) {
+            bigEndian[i] = id[id.length - 1 - i];
+        }
+        return new BigInteger(1, bigEndian);
+    }
+
+    /**
+     * Returns the index of the node numerically closest to the key,
+     * going around the ring.
+     */
+    private static int closest(BigInteger[] ring, BigInteger key)
+    {
+        int found = Arrays.binarySearch(ring, key);
+        if (found >= 0) {
+            return found;
+        }
+        int above = -found - 1;
+        int after = above % ring.length;
+        int before = (above + ring.length - 1) % ring.length;
+        return distance(ring[before], key).compareTo(distance(ring[after], key)) <= 0 ? before : after;
+    }
+
+    private static BigInteger distance(BigInteger a, BigInteger b)
+    {
+        BigInteger d = a.subtract(b).abs();
+        return d.min(RING.subtract(d));
+    }
+
+    // =====================================================================
+
+    /**
+     * Dispatch of every message type in deliver().
+     */
+    private void deliver() throws Exception
+    {
+        Id me = chat.getNodeId();
+        Id other = chat.getClientId("other");
+        Id channel = chat.getChannelId("deliver");
+        ownChannel("deliver", 1);
+
+        Message[] messages = new Message[] {
+            new PrivateMsg(other, "other", me, "bench", TEXT),
+            new ChannelMsg(other, "other", me, "bench", channel, "deliver", TEXT),
+            new ChannelBroadcastMsg(other, "other", channel, "deliver", TEXT),
+            new ChannelAdminMsg(other, "bench", channel, "deliver",
+                    ChannelAdminMsg.ACTION_TYPE_MODE_UNICAST, ChannelAdminMsg.ACTION_PHASE_ACCEPTED),
+        };
+        for (final Message msg : messages) {
+            bench.measure("deliver", msg.getClass().getSimpleName(), new MicroBench.Case()
+            {
+                @Override
+                public Object run()
+                {
+                    chat.deliver(null, msg);
+                    return msg;
+                }
+            });
+        }
+    }
+
+    /**
+     * Bare dispatch cost: the handler table against the instanceof chain
+     * deliver() used to be, both with empty handlers.
+     */
+    private void dispatch() throws Exception
+    {
+        final int[] handled = new int[1];
+        MessageHandlerRegistry registry = new MessageHandlerRegistry();
+        registry.register(PrivateMsg.TYPE, PrivateMsg.class, new CountingHandler<PrivateMsg>(handled));
+        registry.register(ChannelMsg.TYPE, ChannelMsg.class, new CountingHandler<ChannelMsg>(handled));
+        registry.register(ChannelMsgBundle.TYPE, ChannelMsgBundle.class, new CountingHandler<ChannelMsgBundle>(handled));
+        registry.register(ChannelBroadcastMsg.TYPE, ChannelBroadcastMsg.class,
+                new CountingHandler<ChannelBroadcastMsg>(handled));
+        registry.register(ChannelAdminMsg.TYPE, ChannelAdminMsg.class, new CountingHandler<ChannelAdminMsg>(handled));
+        final MessageHandlerRegistry table = registry;
+
+        Id me = chat.getNodeId();
+        Id channel = chat.getChannelId("dispatch");
+        Message[] messages = new Message[] {
+            new PrivateMsg(me, "bench", me, "bench", TEXT),
+            new ChannelMsg(me, "bench", me, "bench", channel, "dispatch", TEXT),
+            new ChannelMsgBundle(me, Collections.<ChannelMsg>emptyList()),
+            new ChannelBroadcastMsg(me, "bench", channel, "dispatch", TEXT),
+            new ChannelAdminMsg(me, "bench", channel, "dispatch",
+                    ChannelAdminMsg.ACTION_TYPE_JOIN, ChannelAdminMsg.ACTION_PHASE_ACCEPTED),
+        };
+        for (final Message msg : messages) {
+            String name = msg.getClass().getSimpleName();
+            bench.measure("dispatch.table", name, new MicroBench.Case()
+            {
+                @Override
+                public Object run()
+                {
+                    return table.dispatch(msg);
+                }
+            });
+            bench.measure("dispatch.chain", name, new MicroBench.Case()
+            {
+                @Override
+                public Object run()
+                {
+                    return chain(msg, handled);
+                }
+            });
+        }
+    }
+
+    /**
+     * The instanceof chain of the former deliver(), in its order.
+     */
+    private static boolean chain(Message message, int[] handled)
+    {
+        if (message instanceof PrivateMsg) {
+            handled[0]++;
+            return true;
+        }
+        if (message instanceof ChannelMsg) {
+            handled[0]++;
+            return true;
+        }
+        if (message instanceof ChannelMsgBundle) {
+            handled[0]++;
+            return true;
+        }
+        if (message instanceof ChannelBroadcastMsg) {
+            handled[0]++;
+            return true;
+        }
+        if (message instanceof ChannelAdminMsg) {
+            ChannelAdminMsg admin = (ChannelAdminMsg) message;
+            if (admin.getActionPhase() == ChannelAdminMsg.ACTION_PHASE_REQUEST) {
+                handled[0]++;
+            } else if (admin.getActionPhase() == ChannelAdminMsg.ACTION_PHASE_ACCEPTED) {
+                handled[0]++;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Owner's unicast fan-out of a broadcast.
+     */
+    private void fanout() throws Exception
+    {
+        int[] sizes = new int[] { 10, 1000, 100000 };
+        for (int size : sizes) {
+            String name = "fanout-" + size;
+            ownChannel(name, size);
+            final Message msg = new ChannelBroadcastMsg(chat.getClientId("other"), "other",
+                    chat.getChannelId(name), name, TEXT);
+            bench.measure("fanout", String.valueOf(size), new MicroBench.Case()
+            {
+                @Override
+                public Object run()
+                {
+                    chat.deliver(null, msg);
+                    return msg;
+                }
+            });
+        }
+    }
+
+    /**
+     * Concurrent joins and leaves against striped channel owners, on a node
+     * of its own: several threads deliver the requests of their own members
+     * to a few channels at once, then the owned membership is checked
+     * against what the requests add up to. Prints the lost and the
+     * unexpected members, both have to be zero.
+     */
+    private void membership() throws Exception
+    {
+        final int threads = 8;
+        final int perThread = 2000;
+        final int channels = 4;
+
+        Environment memberEnv = Environment.directEnvironment();
+        Parameters params = memberEnv.getParameters();
+        params.setInt("pastrychat_outbound_capacity", 0);
+        params.setInt("pastrychat_owner_stripes", channels);
+        params.setInt("pastrychat_listener_capacity", 0);
+        params.setString("pastrychat_history_dir", "");
+        params.setInt("pastrychat_presence_refresh", 0);
+        params.setBoolean("pastrychat_jmx", false);
+        PastryNode memberNode = new DirectPastryNodeFactory(new RandomNodeIdFactory(memberEnv),
+                new EuclideanNetwork(memberEnv), memberEnv).newNode();
+        try {
+            final ChatApp owner = new ChatApp(memberNode, "bench-owner");
+            owner.registerChatAppListener(new NullListener());
+            owner.activate();
+            memberNode.boot(Collections.emptyList());
+            synchronized (memberNode) {
+                while (!memberNode.isReady() && !memberNode.joinFailed()) {
+                    memberNode.wait(500);
+                }
+            }
+            for (int c = 0; c < channels; c++) {
+                owner.adoptChannel(new ChannelContent(owner.getChannelId("members-" + c), "members-" + c));
+            }
+
+            // every thread joins its members and lets every other one leave again
+            long start = System.nanoTime();
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final int thread = t;
+                workers[t] = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        for (int i = 0; i < perThread; i++) {
+                            String channel = "members-" + (i % channels);
+                            String member = "member-" + thread + "-" + i;
+                            owner.deliver(null, request(owner, member, channel, ChannelAdminMsg.ACTION_TYPE_JOIN));
+                            if (i % 2 == 1) {
+                                owner.deliver(null, request(owner, member, channel,
+                                        ChannelAdminMsg.ACTION_TYPE_LEAVE));
+                            }
+                        }
+                    }
+                }, "Bench member " + t);
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+
+            int lost = 0;
+            int unexpected = 0;
+            for (int c = 0; c < channels; c++) {
+                Set<String> members = owner.getOwnedMembers(owner.getChannelId("members-" + c));
+                Set<String> expectedMembers = new HashSet<String>();
+                for (int t = 0; t < threads; t++) {
+                    for (int i = c; i < perThread; i += channels) {
+                        if (i % 2 == 0) {
+                            expectedMembers.add("member-" + t + "-" + i);
+                        }
+                    }
+                }
+                for (String member : expectedMembers) {
+                    if (members == null || !members.contains(member)) {
+                        lost++;
+                    }
+                }
+                if (members != null) {
+                    members.removeAll(expectedMembers);
+                    unexpected += members.size();
+                }
+            }
+            long millis = (System.nanoTime() - start) / 1000000L;
+            System.out.println("membership: " + threads + " threads, " + threads * perThread * 3 / 2
+                    + " requests in " + millis + " ms, " + lost + " lost, " + unexpected + " unexpected");
+            owner.shutdown();
+            if (lost != 0 || unexpected != 0) {
+                throw new IllegalStateException("Membership broken: " + lost + " joins lost, "
+                        + unexpected + " leaves lost");
+            }
+        } finally {
+            memberNode.destroy();
+            memberEnv.destroy();
+        }
+    }
+
+    private static ChannelAdminMsg request(ChatApp owner, String member, String channel, byte actionType)
+    {
+        return new ChannelAdminMsg(owner.getClientId(member), member, owner.getChannelId(channel), channel,
+                actionType, ChannelAdminMsg.ACTION_PHASE_REQUEST);
+    }
+
+    /**
+     * Text compression: the CPU spent against the bytes saved, across
+     * message sizes, for zlib with and without the preset dictionary.
+     */
+    private void compression() throws Exception
+    {
+        String[] lines = new String[] {
+            "hey, did anybody try the new build? it fails for me on startup",
+            "2014-03-02 12:41:07,112 ERROR [main] Channel lookup failed for id 0x3A7F",
+            "\tat rice.p2p.past.PastImpl.lookup(PastImpl.java:812)",
+            "I think you should have a look at the config, it's in the wiki",
+            "for (int i = 0; i < members.size(); i++) { send(members.get(i)); }",
+            "thanks, that works :) what was wrong with it?",
+        };
+        int[] sizes = new int[] { 64, 256, 1024, 4096, 16384 };
+        final TextCodec codec = new TextCodec(true, 0, Deflater.DEFAULT_COMPRESSION);
+        for (int size : sizes) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; sb.length() < size; i++) {
+                sb.append(lines[i % lines.length]).append(' ').append(i).append('\n');
+            }
+            final String text = sb.substring(0, size);
+            final ChatText encoded = codec.encode(text);
+            final byte[] raw = text.getBytes("UTF-8");
+            System.out.println("compression " + size + " B: " + deflate(raw).length + " B deflate, "
+                    + encoded.getEncodedLength() + " B deflate+dictionary"
+                    + (encoded.isCompressed() ? "" : " (sent raw)"));
+
+            String param = String.valueOf(size);
+            bench.measure("compress.raw", param, new MicroBench.Case()
+            {
+                @Override
+                public Object run()
+                {
+                    return ChatText.raw(text);
+                }
+            });
+            bench.measure("compress.deflate", param, new MicroBench.Case()
+            {
+                @Override
+                public Object run()
+                {
+                    return deflate(raw);
+                }
+            });
+            bench.measure("compress.dictionary", param, new MicroBench.Case()
+            {
+                @Override
+                public Object run()
+                {
+                    return codec.encode(text);
+                }
+            });
+            bench.measure("decompress.dictionary", param, new MicroBench.Case()
+            {
+                @Override
+                public Object run() throws Exception
+                {
+                    return TextCodec.decode(encoded.getCodec(), encoded.getBytes());
+                }
+            });
+        }
+    }
+
+    /**
+     * Plain zlib, for comparison.
+     */
+    private byte[] deflate(byte[] raw)
+    {
+        plainDeflater.reset();
+        plainDeflater.setInput(raw);
+        plainDeflater.finish();
+        byte[] out = new byte[raw.length + 64];
+        int length = 0;
+        while (!plainDeflater.finished()) {
+            length += plainDeflater.deflate(out, length, out.length - length);
+        }
+        return Arrays.copyOf(out, length);
+    }
+
+    /**
+     * Makes the node own a channel with the given number of members.
+     */
+    private void ownChannel(String name, int members)
+    {
+        ChannelContent content = new ChannelContent(chat.getChannelId(name), name);
+        for (int i = 0; i < members; i++) {
+            content.join("member-" + i, i);
+        }
+        chat.adoptChannel(content);
+    }
+
+    // =====================================================================
+    // =====================================================================
+
+    public static void main(String[] args)
+    {
+        File output = new File(args.length > 0 ? args[0] : "build/bench/results.json");
+        MainBenchmark inst = new MainBenchmark();
+        int status = 1;
+        try {
+            inst.setUp();
+            inst.serialization();
+            inst.idDerivation();
+            inst.idDistribution();
+            inst.deliver();
+            inst.dispatch();
+            inst.fanout();
+            inst.compression();
+            inst.membership();
+            inst.bench.writeJson(output);
+            System.out.println("Results written to " + output);
+            status = 0;
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        } finally {
+            inst.tearDown();
+            // force terminate (to kill all the deamons), failing the build on an error
+            System.exit(status);
+        }
+    }
+
+    // =====================================================================
+
+    /**
+     * Listener swallowing all the events.
+     */
+    private static class NullListener implements ChatAppListener
+    {
+        @Override
+        public void setChatApp(ChatApp app)
+        {
+        }
+
+        @Override
+        public void onNodeConnected(Node node)
+        {
+        }
+
+        @Override
+        public void onNodeDisconnected(Node node)
+        {
+        }
+
+        @Override
+        public void onMessageDelivered(PrivateMsg msg)
+        {
+        }
+
+        @Override
+        public void onMessageDelivered(ChannelMsg msg)
+        {
+        }
+
+        @Override
+        public void onQuitCommand()
+        {
+        }
+
+        @Override
+        public void onPrintln(String text)
+        {
+        }
+    }
+
+    /**
+     * Handler only counting the messages.
+     */
+    private static class CountingHandler<T extends Message> implements MessageHandler<T>
+    {
+        private final int[] handled;
+
+        CountingHandler(int[] handled)
+        {
+            this.handled = handled;
+        }
+
+        @Override
+        public void handle(T msg)
+        {
+            handled[0]++;
+        }
+    }
+
+    /**
+     * Application behind the endpoint used for deserialization.
+     */
+    private static class NullApplication implements Application
+    {
+        @Override
+        public boolean forward(RouteMessage message)
+        {
+            return true;
+        }
+
+        @Override
+        public void deliver(Id id, Message message)
+        {
+        }
+
+        @Override
+        public void update(NodeHandle handle, boolean joined)
+        {
+        }
+    }
+}
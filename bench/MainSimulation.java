@@ -0,0 +1,717 @@
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import rice.environment.Environment;
+import rice.environment.params.Parameters;
+import rice.pastry.Id;
+import rice.pastry.NodeIdFactory;
+import rice.pastry.PastryNode;
+import rice.pastry.PastryNodeFactory;
+import rice.pastry.direct.DirectPastryNodeFactory;
+import rice.pastry.direct.EuclideanNetwork;
+import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.Node;
+
+/**
+ *      Simulation starter
+ *
+ * Boots a whole ring of chat nodes inside a single JVM on the FreePastry
+ * direct network simulator (simulated network and time, no sockets), drives
+ * a synthetic workload through it and prints a load report.
+ *
+ * The workload is given by "key=value" arguments, see {@see #printUsage()}.
+ * Every node joins the ring with a nickname of "sim-N". Channel members send
+ * broadcasts (and a share of private messages) at the given rate, and nodes
+ * are randomly replaced by new ones at the churn rate.
+ *
+ * Reported: delivery ratio, delivery latency percentiles (simulated time),
+ * route length (on average and the hops of every routed message), messages
+ * per node and channel ownership per node. Running the same workload with
+ * direct=false shows what the direct routing to the cached handles saves:
+ *   ant simulate -Dsim.args="direct=true"
+ *   ant simulate -Dsim.args="direct=false"
+ *
+ * After the traffic, the failover test kills channel owners one by one and
+ * measures for how long their channels can't broadcast.
+ *
+ * @author Dejvino
+ */
+public class MainSimulation
+{
+    private static final String TEXT_PREFIX = "sim@";
+    private static final String PROBE_PREFIX = "probe@";
+    private static final long TICK = 100;
+    private static final long PROBE_INTERVAL = 50;
+    private static final long FAILOVER_TIMEOUT = 60000;
+
+    // workload
+    private int nodeCount = 500;
+    private int channelCount = 50;
+    private int memberCount = 20;
+    private int shardCount = 1;
+    private double rate = 50;
+    private double privateRatio = 0.1;
+    private int duration = 60;
+    private double churn = 0;
+    private int failoverCount = 0;
+    private boolean standby = true;
+    private boolean direct = true;
+    private long seed = 1;
+
+    private Environment env;
+    private PastryNodeFactory factory;
+    private Random random;
+
+    /**
+     * Nickname of the node being created, read by the node Id factory.
+     */
+    private String nextNickname;
+    private int nicknameCounter = 0;
+
+    private final List<SimNode> live = new ArrayList<SimNode>();
+    private final List<SimNode> all = new ArrayList<SimNode>();
+    private final Map<String, List<SimNode>> channelMembers = new HashMap<String, List<SimNode>>();
+
+    // results
+    private long[] latencies = new long[1024];
+    private int latencyCount = 0;
+    private long broadcastsSent = 0;
+    private long privatesSent = 0;
+    private long expected = 0;
+    private long delivered = 0;
+    private int replaced = 0;
+
+    /**
+     * Nodes each routed message has passed, by the message. The direct
+     * simulator hands the same message object along the route.
+     */
+    private final Map<Message, int[]> routes = new IdentityHashMap<Message, int[]>();
+    private final ChatApp.RouteObserver routeCounter = new ChatApp.RouteObserver()
+    {
+        @Override
+        public void forwarded(Message msg)
+        {
+            countRoute(msg);
+        }
+    };
+
+    // failover probing
+    private String probeChannel;
+    private long probeDelivered = -1;
+    private final List<Long> outages = new ArrayList<Long>();
+    private int outageTimeouts = 0;
+
+    // =====================================================================
+
+    /**
+     * Parses the "key=value" arguments.
+     *
+     * @param args
+     */
+    private void configure(String[] args)
+    {
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Invalid argument: " + arg);
+            }
+            String key = arg.substring(0, eq);
+            String value = arg.substring(eq + 1);
+            if ("nodes".equals(key)) {
+                nodeCount = Integer.parseInt(value);
+            } else if ("channels".equals(key)) {
+                channelCount = Integer.parseInt(value);
+            } else if ("members".equals(key)) {
+                memberCount = Integer.parseInt(value);
+            } else if ("shards".equals(key)) {
+                shardCount = Integer.parseInt(value);
+            } else if ("rate".equals(key)) {
+                rate = Double.parseDouble(value);
+            } else if ("private".equals(key)) {
+                privateRatio = Double.parseDouble(value);
+            } else if ("duration".equals(key)) {
+                duration = Integer.parseInt(value);
+            } else if ("churn".equals(key)) {
+                churn = Double.parseDouble(value);
+            } else if ("failover".equals(key)) {
+                failoverCount = Integer.parseInt(value);
+            } else if ("standby".equals(key)) {
+                standby = Boolean.parseBoolean(value);
+            } else if ("direct".equals(key)) {
+                direct = Boolean.parseBoolean(value);
+            } else if ("seed".equals(key)) {
+                seed = Long.parseLong(value);
+            } else {
+                throw new IllegalArgumentException("Unknown argument: " + key);
+            }
+        }
+        if (memberCount > nodeCount) {
+            throw new IllegalArgumentException("More members than nodes.");
+        }
+    }
+
+    /**
+     * Prepares the simulated environment.
+     */
+    private void setUp()
+    {
+        env = Environment.directEnvironment();
+        random = new Random(seed);
+
+        // keep every node on the simulator's thread, so that all the
+        // timings are taken in the simulated time
+        Parameters params = env.getParameters();
+        params.setInt("pastrychat_owner_stripes", 0);
+        params.setInt("pastrychat_listener_capacity", 0);
+        params.setString("pastrychat_history_dir", "");
+        params.setString("pastrychat_storage", ChatApp.STORAGE_MEMORY);
+        // thousands of MBeans are of no use here
+        params.setBoolean("pastrychat_jmx", false);
+        params.setBoolean("pastrychat_warm_standby", standby);
+        // the workload sets the rates, the owner must not throttle it
+        params.setInt("pastrychat_limit_sender_rate", 0);
+        params.setInt("pastrychat_limit_channel_rate", 0);
+        // the simulated users never register, they would all look offline
+        params.setInt("pastrychat_presence_refresh", 0);
+        if (!direct) {
+            params.setInt("pastrychat_route_cache", 0);
+        }
+
+        // node Ids derived from the nicknames, the same way real clients do
+        final int idVersion = HashNodeIdFactory.getVersion(params);
+        NodeIdFactory nidFactory = new NodeIdFactory()
+        {
+            @Override
+            public Id generateNodeId()
+            {
+                return new HashNodeIdFactory(nextNickname, idVersion).generateNodeId();
+            }
+        };
+        factory = new DirectPastryNodeFactory(nidFactory, new EuclideanNetwork(env), env);
+    }
+
+    // =====================================================================
+
+    /**
+     * Boots a new node into the ring.
+     *
+     * @return
+     * @throws Exception
+     */
+    private SimNode bootNode() throws Exception
+    {
+        nextNickname = "sim-" + (nicknameCounter++);
+        PastryNode node = factory.newNode();
+        SimNode sim = new SimNode(node, new ChatApp(node, nextNickname));
+        sim.chat.registerChatAppListener(sim);
+        sim.chat.setRouteObserver(routeCounter);
+        sim.chat.activate();
+
+        Object bootHandle;
+        synchronized (this) {
+            bootHandle = live.isEmpty() ? Collections.emptyList() : live.get(0).node.getLocalHandle();
+        }
+        node.boot(bootHandle);
+        synchronized (node) {
+            while (!node.isReady() && !node.joinFailed()) {
+                node.wait(500);
+                if (node.joinFailed()) {
+                    throw new IOException("Could not join the FreePastry ring.  Reason:" + node.joinFailedReason());
+                }
+            }
+        }
+
+        synchronized (this) {
+            live.add(sim);
+            all.add(sim);
+        }
+        return sim;
+    }
+
+    /**
+     * Boots the ring and fills the channels.
+     *
+     * @throws Exception
+     */
+    private void populate() throws Exception
+    {
+        long start = System.currentTimeMillis();
+        for (int i = 0; i < nodeCount; i++) {
+            bootNode();
+            if ((i + 1) % 100 == 0) {
+                System.out.println("Booted " + (i + 1) + " nodes...");
+            }
+        }
+        System.out.println("Ring of " + nodeCount + " nodes booted in "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        for (int c = 0; c < channelCount; c++) {
+            String channel = "channel-" + c;
+            List<SimNode> members = new ArrayList<SimNode>();
+            channelMembers.put(channel, members);
+            List<SimNode> candidates = new ArrayList<SimNode>(live);
+            Collections.shuffle(candidates, random);
+            for (SimNode sim : candidates.subList(0, memberCount)) {
+                join(sim, channel);
+            }
+        }
+
+        // let the joins settle
+        env.getTimeSource().sleep(10000);
+
+        if (shardCount > 1) {
+            for (Map.Entry<String, List<SimNode>> entry : channelMembers.entrySet()) {
+                entry.getValue().get(0).chat.sendReshardRequest(entry.getKey(), shardCount);
+            }
+            // let the members move
+            env.getTimeSource().sleep(10000);
+        }
+    }
+
+    private synchronized void join(SimNode sim, String channel)
+    {
+        channelMembers.get(channel).add(sim);
+        sim.channels.add(channel);
+        sim.chat.sendJoinRequest(channel);
+    }
+
+    /**
+     * Replaces a random node by a new one, which joins as many channels.
+     *
+     * @throws Exception
+     */
+    private void replaceNode() throws Exception
+    {
+        SimNode victim;
+        synchronized (this) {
+            if (live.size() <= 1) {
+                return;
+            }
+            // the first node serves as the bootstrap
+            victim = live.remove(1 + random.nextInt(live.size() - 1));
+            for (String channel : victim.channels) {
+                channelMembers.get(channel).remove(victim);
+            }
+            replaced++;
+        }
+        victim.node.destroy();
+
+        SimNode sim = bootNode();
+        List<String> channels = new ArrayList<String>(channelMembers.keySet());
+        Collections.shuffle(channels, random);
+        for (String channel : channels.subList(0, Math.min(victim.channels.size(), channels.size()))) {
+            join(sim, channel);
+        }
+    }
+
+    // =====================================================================
+
+    /**
+     * Runs the workload for the configured (simulated) duration.
+     *
+     * @throws Exception
+     */
+    private void run() throws Exception
+    {
+        double sendBudget = 0;
+        double churnBudget = 0;
+        for (long t = 0; t < duration * 1000L; t += TICK) {
+            sendBudget += rate * TICK / 1000;
+            final int sends = (int) sendBudget;
+            sendBudget -= sends;
+            env.getSelectorManager().invoke(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < sends; i++) {
+                        sendRandom();
+                    }
+                }
+            });
+
+            churnBudget += churn * TICK / 60000;
+            while (churnBudget >= 1) {
+                churnBudget--;
+                replaceNode();
+            }
+
+            env.getTimeSource().sleep(TICK);
+        }
+
+        // let the last messages arrive
+        env.getTimeSource().sleep(5000);
+    }
+
+    /**
+     * Sends a single message from a member of a random channel.
+     */
+    private synchronized void sendRandom()
+    {
+        String channel = "channel-" + random.nextInt(channelCount);
+        List<SimNode> members = channelMembers.get(channel);
+        if (members.isEmpty()) {
+            return;
+        }
+        SimNode from = members.get(random.nextInt(members.size()));
+        String text = TEXT_PREFIX + env.getTimeSource().currentTimeMillis();
+
+        if (random.nextDouble() < privateRatio) {
+            SimNode to = live.get(random.nextInt(live.size()));
+            from.chat.sendPrivateMsg(to.chat.getNickname(), text);
+            privatesSent++;
+            expected++;
+        } else {
+            from.chat.sendChannelBroadcastMsg(channel, text);
+            broadcastsSent++;
+            expected += channelMembers.get(channel).size();
+        }
+    }
+
+    /**
+     * Kills channel owners one by one and measures how long the channel
+     * can't broadcast: from the kill until the first probe broadcast sent
+     * after it gets delivered.
+     *
+     * @throws Exception
+     */
+    private void failover() throws Exception
+    {
+        for (int i = 0; i < failoverCount; i++) {
+            // find an owner (other than the bootstrap node)
+            String channel = null;
+            SimNode owner = null;
+            synchronized (this) {
+                for (int c = 0; c < channelCount && owner == null; c++) {
+                    channel = "channel-" + ((i + c) % channelCount);
+                    for (SimNode sim : live.subList(1, live.size())) {
+                        if (sim.chat.isChannelRoot(channel)) {
+                            owner = sim;
+                            break;
+                        }
+                    }
+                }
+            }
+            if (owner == null) {
+                System.out.println("No channel owner to kill found.");
+                return;
+            }
+
+            long killed;
+            synchronized (this) {
+                live.remove(owner);
+                for (String c : owner.channels) {
+                    channelMembers.get(c).remove(owner);
+                }
+                probeChannel = channel;
+                probeDelivered = -1;
+                killed = env.getTimeSource().currentTimeMillis();
+            }
+            owner.node.destroy();
+
+            // probe until a broadcast gets through again
+            while (true) {
+                env.getSelectorManager().invoke(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        sendProbe();
+                    }
+                });
+                env.getTimeSource().sleep(PROBE_INTERVAL);
+                synchronized (this) {
+                    if (probeDelivered >= 0) {
+                        outages.add(probeDelivered - killed);
+                        System.out.println("Owner of '" + channel + "' killed, broadcasts back after "
+                                + (probeDelivered - killed) + " ms");
+                        break;
+                    }
+                    if (env.getTimeSource().currentTimeMillis() - killed > FAILOVER_TIMEOUT) {
+                        outageTimeouts++;
+                        System.out.println("Owner of '" + channel + "' killed, no broadcast within "
+                                + FAILOVER_TIMEOUT + " ms");
+                        break;
+                    }
+                }
+            }
+            synchronized (this) {
+                probeChannel = null;
+            }
+
+            // let the ring settle
+            env.getTimeSource().sleep(5000);
+        }
+    }
+
+    /**
+     * Sends a probe broadcast to the channel under test.
+     */
+    private synchronized void sendProbe()
+    {
+        if (probeChannel == null) {
+            return;
+        }
+        List<SimNode> members = channelMembers.get(probeChannel);
+        if (members.isEmpty()) {
+            return;
+        }
+        SimNode from = members.get(random.nextInt(members.size()));
+        from.chat.sendChannelBroadcastMsg(probeChannel, PROBE_PREFIX + env.getTimeSource().currentTimeMillis());
+    }
+
+    /**
+     * Records a delivered workload message.
+     *
+     * @param text
+     */
+    private synchronized void recordDelivery(String text)
+    {
+        if (text.startsWith(PROBE_PREFIX)) {
+            if (probeChannel != null && probeDelivered < 0) {
+                probeDelivered = env.getTimeSource().currentTimeMillis();
+            }
+            return;
+        }
+        if (!text.startsWith(TEXT_PREFIX)) {
+            return;
+        }
+        long sent = Long.parseLong(text.substring(TEXT_PREFIX.length()));
+        if (latencyCount == latencies.length) {
+            latencies = Arrays.copyOf(latencies, latencyCount * 2);
+        }
+        latencies[latencyCount++] = env.getTimeSource().currentTimeMillis() - sent;
+        delivered++;
+    }
+
+    /**
+     * Counts another node on the message's route.
+     *
+     * @param msg
+     */
+    private synchronized void countRoute(Message msg)
+    {
+        int[] nodes = routes.get(msg);
+        if (nodes == null) {
+            nodes = new int[1];
+            routes.put(msg, nodes);
+        }
+        nodes[0]++;
+    }
+
+    // =====================================================================
+
+    /**
+     * Prints the results.
+     */
+    private synchronized void report()
+    {
+        long routed = 0;
+        long forwarded = 0;
+        long dropped = 0;
+        long directRouted = 0;
+        for (SimNode sim : all) {
+            routed += sim.chat.getOutboundQueue().getRoutedCount();
+            forwarded += sim.chat.getForwardedCount();
+            dropped += sim.chat.getOutboundQueue().getDroppedCount();
+            directRouted += sim.chat.getMetrics().getDirectRouted();
+        }
+
+        long[] routedPerNode = new long[live.size()];
+        long[] forwardedPerNode = new long[live.size()];
+        long[] ownedPerNode = new long[live.size()];
+        SimNode hottest = null;
+        for (int i = 0; i < live.size(); i++) {
+            SimNode sim = live.get(i);
+            routedPerNode[i] = sim.chat.getOutboundQueue().getRoutedCount();
+            forwardedPerNode[i] = sim.chat.getForwardedCount();
+            ownedPerNode[i] = sim.chat.getOwnedChannelCount();
+            if (hottest == null || routedPerNode[i] > hottest.chat.getOutboundQueue().getRoutedCount()) {
+                hottest = sim;
+            }
+        }
+        long[] sortedLatencies = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sortedLatencies);
+        Arrays.sort(routedPerNode);
+        Arrays.sort(forwardedPerNode);
+        Arrays.sort(ownedPerNode);
+        long[] hops = new long[routes.size()];
+        int h = 0;
+        for (int[] nodes : routes.values()) {
+            // the first node is no hop
+            hops[h++] = nodes[0] - 1;
+        }
+        Arrays.sort(hops);
+
+        System.out.println();
+        System.out.println(" === Simulation report === ");
+        System.out.println("Nodes: " + live.size() + " live, " + replaced + " replaced");
+        System.out.println("Channels: " + channelCount + " x " + memberCount + " members in "
+                + shardCount + " shard(s)");
+        System.out.println("Sent: " + broadcastsSent + " broadcasts, " + privatesSent + " private messages in "
+                + duration + " s");
+        System.out.println("Delivered: " + delivered + " of " + expected + " expected ("
+                + String.format("%.2f", expected == 0 ? 0.0 : 100.0 * delivered / expected) + " %)");
+        System.out.println("Latency [ms]: " + percentiles(sortedLatencies));
+        System.out.println("Route length: " + String.format("%.2f", routed == 0 ? 0.0 : (double) forwarded / routed)
+                + " nodes per routed message (" + routed + " routed, " + dropped + " dropped at the queue)");
+        System.out.println("Hops per message: " + percentiles(hops));
+        System.out.println("Direct routing " + (direct ? "on" : "off") + ": " + directRouted
+                + " sent to a cached handle ("
+                + String.format("%.2f", routed == 0 ? 0.0 : 100.0 * directRouted / routed) + " %)");
+        System.out.println("Routed per node: " + percentiles(routedPerNode));
+        System.out.println("Forwarded per node: " + percentiles(forwardedPerNode));
+        System.out.println("Owned channels per node: " + percentiles(ownedPerNode));
+        if (hottest != null) {
+            System.out.println("Hottest node: " + hottest.chat.getNickname() + " owning "
+                    + hottest.chat.getOwnedChannelCount() + " channels");
+        }
+        if (failoverCount > 0) {
+            long[] sortedOutages = new long[outages.size()];
+            for (int i = 0; i < sortedOutages.length; i++) {
+                sortedOutages[i] = outages.get(i);
+            }
+            Arrays.sort(sortedOutages);
+            System.out.println("Failover outage [ms] (warm standby " + (standby ? "on" : "off") + "): "
+                    + percentiles(sortedOutages) + ", " + outageTimeouts + " timed out");
+        }
+    }
+
+    private static String percentiles(long[] sorted)
+    {
+        if (sorted.length == 0) {
+            return "n/a";
+        }
+        long sum = 0;
+        for (long v : sorted) {
+            sum += v;
+        }
+        return String.format("mean %.1f, p50 %d, p90 %d, p99 %d, max %d",
+                (double) sum / sorted.length,
+                percentile(sorted, 0.5), percentile(sorted, 0.9), percentile(sorted, 0.99),
+                sorted[sorted.length - 1]);
+    }
+
+    private static long percentile(long[] sorted, double p)
+    {
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(index, 0)];
+    }
+
+    // =====================================================================
+    // =====================================================================
+
+    public static void main(String[] args)
+    {
+        MainSimulation inst = new MainSimulation();
+        try {
+            inst.configure(args);
+        } catch (IllegalArgumentException ex) {
+            System.out.println(ex.getMessage());
+            printUsage();
+            System.exit(2);
+        }
+        int status = 1;
+        try {
+            inst.setUp();
+            inst.populate();
+            inst.run();
+            inst.failover();
+            inst.report();
+            status = 0;
+        } catch (Throwable ex) {
+            ex.printStackTrace();
+        } finally {
+            if (inst.env != null) {
+                inst.env.destroy();
+            }
+            // force terminate (to kill all the deamons), failing the caller on an error
+            System.exit(status);
+        }
+    }
+
+    /**
+     * Prints a short info about how to run this.
+     */
+    public static void printUsage()
+    {
+        System.out.println("Usage:");
+        System.out.println("java [-cp FreePastry-<version>.jar] MainSimulation [key=value ...]");
+        System.out.println("  or: ant simulate -Dsim.args=\"key=value ...\"");
+        System.out.println("  nodes     number of nodes (500)");
+        System.out.println("  channels  number of channels (50)");
+        System.out.println("  members   members per channel (20)");
+        System.out.println("  shards    owner shards per channel (1)");
+        System.out.println("  rate      messages per second in the whole ring (50)");
+        System.out.println("  private   share of private messages (0.1)");
+        System.out.println("  duration  simulated seconds of traffic (60)");
+        System.out.println("  churn     node replacements per minute (0)");
+        System.out.println("  failover  channel owners killed after the traffic (0)");
+        System.out.println("  standby   warm-standby owner takeover (true)");
+        System.out.println("  direct    direct routing to the cached handles (true)");
+        System.out.println("  seed      workload random seed (1)");
+        System.out.println("example java MainSimulation nodes=2000 channels=200 rate=500 churn=10");
+    }
+
+    // =====================================================================
+
+    /**
+     * Simulated node with its chat and workload state.
+     */
+    private class SimNode implements ChatAppListener
+    {
+        final PastryNode node;
+        final ChatApp chat;
+        final List<String> channels = new ArrayList<String>();
+
+        SimNode(PastryNode node, ChatApp chat)
+        {
+            this.node = node;
+            this.chat = chat;
+        }
+
+        @Override
+        public void setChatApp(ChatApp app)
+        {
+        }
+
+        @Override
+        public void onNodeConnected(Node node)
+        {
+        }
+
+        @Override
+        public void onNodeDisconnected(Node node)
+        {
+        }
+
+        @Override
+        public void onMessageDelivered(PrivateMsg msg)
+        {
+            recordDelivery(msg.getText());
+        }
+
+        @Override
+        public void onMessageDelivered(ChannelMsg msg)
+        {
+            recordDelivery(msg.getText());
+        }
+
+        @Override
+        public void onQuitCommand()
+        {
+        }
+
+        @Override
+        public void onPrintln(String text)
+        {
+        }
+    }
+}
@@ -0,0 +1,189 @@
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *      MicroBench
+ *
+ * Minimal micro-benchmark harness: warms a case up, measures it in several
+ * timed iterations and collects the results, which can be written out as
+ * JSON for tracking.
+ *
+ * @author Dejvino
+ */
+public class MicroBench
+{
+    /**
+     * Benchmarked operation. The result is consumed so that the JIT can't
+     * throw the work away.
+     */
+    public interface Case
+    {
+        public Object run() throws Exception;
+    }
+
+    private static volatile int sink;
+
+    private final long warmupMillis;
+    private final long measureMillis;
+    private final int iterations;
+
+    private final List<Result> results = new ArrayList<Result>();
+
+    /**
+     * Constructor.
+     *
+     * @param warmupMillis Warm-up time of a case
+     * @param measureMillis Time of a single measured iteration
+     * @param iterations Number of measured iterations
+     */
+    public MicroBench(long warmupMillis, long measureMillis, int iterations)
+    {
+        this.warmupMillis = warmupMillis;
+        this.measureMillis = measureMillis;
+        this.iterations = iterations;
+    }
+
+    // =====================================================================
+
+    /**
+     * Measures the case and records the result.
+     *
+     * @param benchmark Benchmark name
+     * @param param Parameter of this run
+     * @param c
+     * @return
+     * @throws Exception
+     */
+    public Result measure(String benchmark, String param, Case c) throws Exception
+    {
+        // warm up and find a batch size worth timing
+        int batch = 1;
+        long warmupEnd = System.nanoTime() + warmupMillis * 1000000L;
+        while (System.nanoTime() < warmupEnd) {
+            long start = System.nanoTime();
+            runBatch(c, batch);
+            if (System.nanoTime() - start < 1000000L && batch < (1 << 20)) {
+                batch *= 2;
+            }
+        }
+
+        double[] scores = new double[iterations];
+        for (int i = 0; i < iterations; i++) {
+            long ops = 0;
+            long start = System.nanoTime();
+            long end = start + measureMillis * 1000000L;
+            long now;
+            do {
+                runBatch(c, batch);
+                ops += batch;
+                now = System.nanoTime();
+            } while (now < end);
+            scores[i] = (now - start) / (double) ops;
+        }
+
+        double mean = 0;
+        for (double score : scores) {
+            mean += score;
+        }
+        mean /= scores.length;
+        double variance = 0;
+        for (double score : scores) {
+            variance += (score - mean) * (score - mean);
+        }
+        double error = scores.length > 1 ? Math.sqrt(variance / (scores.length - 1)) : 0;
+
+        Result result = new Result(benchmark, param, mean, error, iterations);
+        results.add(result);
+        System.out.println(result);
+        return result;
+    }
+
+    private static void runBatch(Case c, int batch) throws Exception
+    {
+        int h = 0;
+        for (int i = 0; i < batch; i++) {
+            h ^= System.identityHashCode(c.run());
+        }
+        sink ^= h;
+    }
+
+    // =====================================================================
+
+    public List<Result> getResults()
+    {
+        return results;
+    }
+
+    /**
+     * Writes the results as a JSON array.
+     *
+     * @param file
+     * @throws IOException
+     */
+    public void writeJson(File file) throws IOException
+    {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir != null && !dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            out.write("[\n");
+            for (int i = 0; i < results.size(); i++) {
+                out.write("  " + results.get(i).toJson() + (i + 1 < results.size() ? ",\n" : "\n"));
+            }
+            out.write("]\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    // =====================================================================
+
+    /**
+     *  Benchmark result
+     */
+    public static class Result
+    {
+        private final String benchmark;
+        private final String param;
+        private final double score;
+        private final double error;
+        private final int iterations;
+
+        public Result(String benchmark, String param, double score, double error, int iterations)
+        {
+            this.benchmark = benchmark;
+            this.param = param;
+            this.score = score;
+            this.error = error;
+            this.iterations = iterations;
+        }
+
+        public double getScore()
+        {
+            return score;
+        }
+
+        public String toJson()
+        {
+            return "{\"benchmark\": \"" + benchmark + "\", \"param\": \"" + param
+                    + "\", \"unit\": \"ns/op\", \"score\": " + String.format(java.util.Locale.ROOT, "%.3f", score)
+                    + ", \"error\": " + String.format(java.util.Locale.ROOT, "%.3f", error)
+                    + ", \"iterations\": " + iterations + "}";
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(java.util.Locale.ROOT, "%-28s %-16s %14.1f ns/op  +- %.1f",
+                    benchmark, param, score, error);
+        }
+    }
+}
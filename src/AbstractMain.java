@@ -70,13 +70,15 @@ public abstract class AbstractMain
         // launch our node!
 
         // Generate the NodeId based on a given nickname
-        NodeIdFactory nidFactory = new HashNodeIdFactory(nickname);
+        NodeIdFactory nidFactory = new HashNodeIdFactory(nickname,
+                HashNodeIdFactory.getVersion(env.getParameters()));
 
         // construct the PastryNodeFactory
         PastryNodeFactory factory = new SocketPastryNodeFactory(nidFactory, bindport, env);
         //PastryNodeFactory factory = new InternetPastryNodeFactory(nidFactory, bindport, env);
 
         // construct a node, but this does not cause it to boot
+        long bootStart = env.getTimeSource().currentTimeMillis();
         node = factory.newNode();
 
         // construct a new ChatApp
@@ -99,7 +101,12 @@ public abstract class AbstractMain
             }
         }
 
-        System.out.println("Finished creating new node " + node);
+        System.out.println("Finished creating new node " + node + " in "
+                + (env.getTimeSource().currentTimeMillis() - bootStart) + " ms ("
+                + chat.getStoredChannelCount() + " channel records in local storage)");
+
+        // let the others know we are here
+        chat.registerPresence();
 
         // publish this node as the new boot
         // TODO ...
@@ -115,6 +122,8 @@ public abstract class AbstractMain
     protected void shutdown()
     {
         // TODO: any real shutting-down
+        chat.deregisterPresence(2000);
+        chat.shutdown();
         
         node.destroy();
             
@@ -0,0 +1,23 @@
+
+import java.util.List;
+import rice.p2p.commonapi.Message;
+
+
+/**
+ *      BatchChatAppListener
+ *
+ * Optional extension of the {@see ChatAppListener}. Messages that queued up
+ * while the listener was busy are handed over in a single call instead of
+ * one {@see ChatAppListener::onMessageDelivered()} call each.
+ *
+ * @author Dejvino
+ */
+public interface BatchChatAppListener extends ChatAppListener
+{
+    /**
+     * New messages for this node have arrived.
+     *
+     * @param msgs {@see PrivateMsg}s and {@see ChannelMsg}s in the order of arrival
+     */
+    public void onMessagesDelivered(List<Message> msgs);
+}
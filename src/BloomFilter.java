@@ -0,0 +1,99 @@
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *      Bloom filter
+ *
+ * Compact summary of a set of strings: {@see #mightContain()} can be wrong
+ * about an element being present (about 1 % of the time when sized for the
+ * set), never about one being absent.
+ * Adding is lock-free, so the filter can be read and extended concurrently.
+ *
+ * @author Dejvino
+ */
+public class BloomFilter
+{
+    /**
+     * Bits per expected element, for about 1 % false positives.
+     */
+    private static final int BITS_PER_ELEMENT = 10;
+
+    private static final int HASHES = 7;
+
+    private final AtomicLongArray bits;
+
+    private final int size;
+
+    /**
+     * Constructor.
+     *
+     * @param expected Expected number of elements
+     */
+    public BloomFilter(int expected)
+    {
+        int words = Math.max(1, (Math.max(expected, 1) * BITS_PER_ELEMENT + 63) / 64);
+        this.bits = new AtomicLongArray(words);
+        this.size = words * 64;
+    }
+
+    /**
+     * Builds a filter of the elements, with some room to grow.
+     *
+     * @param elements
+     * @return
+     */
+    public static BloomFilter of(Collection<String> elements)
+    {
+        BloomFilter filter = new BloomFilter(elements.size() * 2 + 16);
+        for (String element : elements) {
+            filter.add(element);
+        }
+        return filter;
+    }
+
+    // =====================================================================
+
+    public void add(String element)
+    {
+        // double hashing: h1 + i * h2
+        int h1 = element.hashCode();
+        int h2 = mix(h1);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+            long mask = 1L << (bit & 63);
+            int word = bit >>> 6;
+            long old;
+            while (((old = bits.get(word)) & mask) == 0 && !bits.compareAndSet(word, old, old | mask)) {
+                // retry
+            }
+        }
+    }
+
+    public boolean mightContain(String element)
+    {
+        int h1 = element.hashCode();
+        int h2 = mix(h1);
+        for (int i = 0; i < HASHES; i++) {
+            int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % size;
+            if ((bits.get(bit >>> 6) & (1L << (bit & 63))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Spreads the bits of the hash (the MurmurHash3 finalizer), odd so that
+     * all the probes differ.
+     */
+    private static int mix(int h)
+    {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h | 1;
+    }
+}
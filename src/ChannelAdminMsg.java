@@ -1,6 +1,11 @@
 
+import java.io.IOException;
+import rice.p2p.commonapi.Endpoint;
 import rice.p2p.commonapi.Id;
 import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+import rice.p2p.commonapi.rawserialization.RawMessage;
 
 /**
  *      Channel administration message
@@ -10,14 +15,36 @@ import rice.p2p.commonapi.Message;
  * 
  * @author Dejvino
  */
-public class ChannelAdminMsg implements Message
+public class ChannelAdminMsg implements RawMessage
 {
     private static final long serialVersionUID = 1L;
 
-    public static final String ACTION_TYPE_JOIN = "join";
-    public static final String ACTION_TYPE_LEAVE = "leave";
-    public static final String ACTION_PHASE_REQUEST = "request";
-    public static final String ACTION_PHASE_ACCEPTED = "accepted";
+    public static final short TYPE = 4;
+    
+    private static final byte VERSION = 1;
+
+    public static final byte ACTION_TYPE_JOIN = 1;
+    public static final byte ACTION_TYPE_LEAVE = 2;
+    public static final byte ACTION_TYPE_MODE_UNICAST = 3;
+    public static final byte ACTION_TYPE_MODE_TREE = 4;
+    public static final byte ACTION_TYPE_RESHARD = 5;
+    public static final byte ACTION_TYPE_REBALANCE = 6;
+    public static final byte ACTION_PHASE_REQUEST = 1;
+    public static final byte ACTION_PHASE_ACCEPTED = 2;
+    /**
+     * Member moved between shards, the client is not told.
+     */
+    public static final byte ACTION_PHASE_MIGRATE = 3;
+    /**
+     * Owner tells a member the channel's fan-out mode, so that it sits in
+     * the channel tree only in tree mode.
+     */
+    public static final byte ACTION_PHASE_ANNOUNCE = 4;
+
+    /**
+     * Shard index of the channel's coordinator (the plain channel owner).
+     */
+    public static final int SHARD_COORDINATOR = -1;
     
     /**
      * Where the Message came from.
@@ -36,15 +63,25 @@ public class ChannelAdminMsg implements Message
     /**
      * What kind of operation it is.
      */
-    private String actionType;
+    private byte actionType;
+    
+    private byte actionPhase;
+    
+    /**
+     * Shard the message is addressed to, see {@see ChannelContent#getShards()}.
+     */
+    private int shard = SHARD_COORDINATOR;
     
-    private String actionPhase;
+    /**
+     * New number of shards (reshard and rebalance only).
+     */
+    private int shardCount = 0;
 
     /**
      * Constructor.
      */
     public ChannelAdminMsg(Id clientId, String clientName, Id channelId, String channelName,
-            String actionType, String actionPhase)
+            byte actionType, byte actionPhase)
     {
         this.clientId = clientId;
         this.clientName = clientName;
@@ -54,23 +91,67 @@ public class ChannelAdminMsg implements Message
         this.actionPhase = actionPhase;
     }
 
+    /**
+     * Deserializing constructor.
+     */
+    private ChannelAdminMsg(InputBuffer buf, Endpoint endpoint) throws IOException
+    {
+        ChatMessageDeserializer.checkVersion(buf, VERSION);
+        this.clientId = ChatMessageDeserializer.readId(buf, endpoint);
+        this.clientName = buf.readUTF();
+        this.channelId = ChatMessageDeserializer.readId(buf, endpoint);
+        this.channelName = buf.readUTF();
+        this.actionType = buf.readByte();
+        this.actionPhase = buf.readByte();
+        this.shard = buf.readInt();
+        this.shardCount = buf.readInt();
+    }
+
+    /**
+     * Rebuilds the message from its raw form.
+     */
+    public static ChannelAdminMsg build(InputBuffer buf, Endpoint endpoint) throws IOException
+    {
+        return new ChannelAdminMsg(buf, endpoint);
+    }
+
     // =====================================================================
 
-    public String getActionPhase()
+    public byte getActionPhase()
     {
         return actionPhase;
     }
 
-    public void setActionPhase(String actionPhase)
+    public void setActionPhase(byte actionPhase)
     {
         this.actionPhase = actionPhase;
     }
     
-    public String getActionType()
+    public byte getActionType()
     {
         return actionType;
     }
 
+    public int getShard()
+    {
+        return shard;
+    }
+
+    public void setShard(int shard)
+    {
+        this.shard = shard;
+    }
+
+    public int getShardCount()
+    {
+        return shardCount;
+    }
+
+    public void setShardCount(int shardCount)
+    {
+        this.shardCount = shardCount;
+    }
+
     public Id getChannelId()
     {
         return channelId;
@@ -96,7 +177,8 @@ public class ChannelAdminMsg implements Message
     @Override
     public String toString()
     {
-        return "ChannelAdminMsg from " + clientName + " ("+clientId+") to " + channelName + " ("+channelId+"): " + actionType + " " + actionPhase;
+        return "ChannelAdminMsg from " + clientName + " ("+clientId+") to " + channelName + " ("+channelId+"): " + actionType + " " + actionPhase
+                + (shard == SHARD_COORDINATOR ? "" : " @shard " + shard);
     }
 
     // =====================================================================
@@ -109,4 +191,26 @@ public class ChannelAdminMsg implements Message
     {
         return Message.LOW_PRIORITY;
     }
+
+    // =====================================================================
+
+    @Override
+    public short getType()
+    {
+        return TYPE;
+    }
+
+    @Override
+    public void serialize(OutputBuffer buf) throws IOException
+    {
+        buf.writeByte(VERSION);
+        ChatMessageDeserializer.writeId(buf, clientId);
+        buf.writeUTF(clientName);
+        ChatMessageDeserializer.writeId(buf, channelId);
+        buf.writeUTF(channelName);
+        buf.writeByte(actionType);
+        buf.writeByte(actionPhase);
+        buf.writeInt(shard);
+        buf.writeInt(shardCount);
+    }
 }
@@ -1,6 +1,11 @@
 
+import java.io.IOException;
+import rice.p2p.commonapi.Endpoint;
 import rice.p2p.commonapi.Id;
 import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+import rice.p2p.commonapi.rawserialization.RawMessage;
 
 /**
  *      Channel broadcast message
@@ -11,10 +16,14 @@ import rice.p2p.commonapi.Message;
  * 
  * @author Dejvino
  */
-public class ChannelBroadcastMsg implements Message
+public class ChannelBroadcastMsg implements RawMessage
 {
     private static final long serialVersionUID = 1L;
 
+    public static final short TYPE = 3;
+    
+    private static final byte VERSION = 2;
+
     /**
      * Where the Message came from.
      */
@@ -32,12 +41,26 @@ public class ChannelBroadcastMsg implements Message
     /**
      * Message content
      */
-    private String text;
+    private ChatText text;
+    
+    /**
+     * Shard to fan out to, or ChannelAdminMsg.SHARD_COORDINATOR when sent
+     * by the client.
+     */
+    private int shard = ChannelAdminMsg.SHARD_COORDINATOR;
 
     /**
      * Constructor.
      */
     public ChannelBroadcastMsg(Id clientId, String clientName, Id channelId, String channelName, String text)
+    {
+        this(clientId, clientName, channelId, channelName, ChatText.raw(text));
+    }
+
+    /**
+     * Constructor.
+     */
+    public ChannelBroadcastMsg(Id clientId, String clientName, Id channelId, String channelName, ChatText text)
     {
         this.clientId = clientId;
         this.clientName = clientName;
@@ -46,6 +69,28 @@ public class ChannelBroadcastMsg implements Message
         this.text = text;
     }
 
+    /**
+     * Deserializing constructor.
+     */
+    private ChannelBroadcastMsg(InputBuffer buf, Endpoint endpoint) throws IOException
+    {
+        ChatMessageDeserializer.checkVersion(buf, VERSION);
+        this.clientId = ChatMessageDeserializer.readId(buf, endpoint);
+        this.clientName = buf.readUTF();
+        this.channelId = ChatMessageDeserializer.readId(buf, endpoint);
+        this.channelName = buf.readUTF();
+        this.text = ChatMessageDeserializer.readText(buf);
+        this.shard = buf.readInt();
+    }
+
+    /**
+     * Rebuilds the message from its raw form.
+     */
+    public static ChannelBroadcastMsg build(InputBuffer buf, Endpoint endpoint) throws IOException
+    {
+        return new ChannelBroadcastMsg(buf, endpoint);
+    }
+
     // =====================================================================
 
     public Id getClientId()
@@ -59,6 +104,14 @@ public class ChannelBroadcastMsg implements Message
     }
 
     public String getText()
+    {
+        return text.getText();
+    }
+
+    /**
+     * Returns the text in its wire form.
+     */
+    public ChatText getPayload()
     {
         return text;
     }
@@ -73,6 +126,24 @@ public class ChannelBroadcastMsg implements Message
         return channelName;
     }
 
+    public int getShard()
+    {
+        return shard;
+    }
+
+    /**
+     * Returns a copy addressed to the given shard.
+     * 
+     * @param shard
+     * @return 
+     */
+    public ChannelBroadcastMsg toShard(int shard)
+    {
+        ChannelBroadcastMsg copy = new ChannelBroadcastMsg(clientId, clientName, channelId, channelName, text);
+        copy.shard = shard;
+        return copy;
+    }
+
     // =====================================================================
 
     @Override
@@ -91,4 +162,24 @@ public class ChannelBroadcastMsg implements Message
     {
         return Message.LOW_PRIORITY;
     }
+
+    // =====================================================================
+
+    @Override
+    public short getType()
+    {
+        return TYPE;
+    }
+
+    @Override
+    public void serialize(OutputBuffer buf) throws IOException
+    {
+        buf.writeByte(VERSION);
+        ChatMessageDeserializer.writeId(buf, clientId);
+        buf.writeUTF(clientName);
+        ChatMessageDeserializer.writeId(buf, channelId);
+        buf.writeUTF(channelName);
+        ChatMessageDeserializer.writeText(buf, text);
+        buf.writeInt(shard);
+    }
 }
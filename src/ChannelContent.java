@@ -1,5 +1,4 @@
 
-import java.util.HashSet;
 import java.util.Set;
 import rice.p2p.commonapi.Id;
 import rice.p2p.past.ContentHashPastContent;
@@ -13,43 +12,306 @@ import rice.p2p.past.PastException;
  * associated with the channel name.
  * The channel owner is responsible for keeping the content of this object
  * up-to-date and distributed along the ring.
- * 
+ *
+ * The content comes in two flavours. A snapshot carries the full state and
+ * replaces whatever the replica holds. A delta carries a single membership
+ * change and is merged into the replica's content, so a join does not ship
+ * the whole member list. A replica holding nothing yet refuses a delta, it
+ * has to wait for a snapshot (or get a copy from the other replicas).
+ *
+ * Every change gets a version from the owner's clock. A snapshot has no
+ * tombstones, so a replica drops the deltas (and snapshots) not newer than
+ * its snapshot, otherwise a late join could bring back a member who has
+ * left since.
+ *
+ * A large channel can be split into several shards. The content stored under
+ * the channel Id (the coordinator's) then only holds the shard count, and the
+ * members are spread over the shard contents stored under the shard Ids,
+ * each shard owner fanning the broadcasts out to its slice.
+ *
  * @author Dejvino
  */
 public class ChannelContent extends ContentHashPastContent
 {
 
-    private static final long serialVersionUID = 1L;
-    
+    private static final long serialVersionUID = 2L;
+
     /**
      * Channel name.
      */
     private String name;
-    
+
     /**
      * List of clients.
      */
-    private Set<String> clients = new HashSet<String>();
+    private MembershipSet clients = new MembershipSet();
+
+    /**
+     * Fan-out mode. When set, broadcasts are published down the channel's
+     * Scribe tree instead of being sent to every client one by one.
+     * Only carried by snapshots.
+     */
+    private boolean multicast = false;
+
+    /**
+     * Number of shards the members are spread over (1 = not sharded).
+     * Only carried by snapshots.
+     */
+    private int shards = 1;
 
     /**
-     * Constructor. 
+     * Shard count before the last reshard. Those shards may still be handing
+     * their members over, so they keep receiving the broadcasts.
+     */
+    private int retiredShards = 0;
+
+    /**
+     * When the shard count last changed (owner's clock). The retired shards
+     * are forgotten a grace period later, their members have moved by then.
+     */
+    private long resharded = 0;
+
+    /**
+     * Whether this is just a delta to be merged.
+     */
+    private boolean delta = false;
+
+    /**
+     * Version of the latest change included.
+     */
+    private long version = 0;
+
+    /**
+     * Version of the snapshot this content was built from, changes up to it
+     * are included already.
+     */
+    private long base = 0;
+
+    /**
+     * Deltas inserted since the last snapshot (owner side only).
+     */
+    private transient int pendingDeltas = 0;
+
+    /**
+     * Constructor.
      */
     public ChannelContent(Id id, String name)
     {
         super(id);
         this.name = name;
     }
-    
+
     // =====================================================================
-    
+
     public String getName()
     {
         return name;
     }
 
+    /**
+     * Returns a read-only view of the clients.
+     */
     public Set<String> getClients()
     {
-        return clients;
+        return clients.elements();
+    }
+
+    public boolean isMulticast()
+    {
+        return multicast;
+    }
+
+    public void setMulticast(boolean multicast)
+    {
+        this.multicast = multicast;
+    }
+
+    public int getShards()
+    {
+        // contents stored before sharding existed come with zero
+        return Math.max(shards, 1);
+    }
+
+    /**
+     * Returns the number of shard Ids the broadcasts have to be forwarded
+     * to, including the retired ones (0 when the channel is not sharded).
+     */
+    public int getFanOutShards()
+    {
+        return Math.max(shards > 1 ? shards : 0, retiredShards > 1 ? retiredShards : 0);
+    }
+
+    public int getRetiredShards()
+    {
+        return retiredShards;
+    }
+
+    /**
+     * Changes the shard count, remembering the old one.
+     * 
+     * @param count 
+     * @param now Current time in ms
+     */
+    public void reshard(int count, long now)
+    {
+        retiredShards = getShards();
+        shards = count;
+        resharded = now;
+    }
+
+    /**
+     * Forgets the retired shards once the grace period since the reshard
+     * is over.
+     * 
+     * @param now Current time in ms
+     * @param grace Grace period in ms
+     * @return true if they have just been forgotten
+     */
+    public boolean forgetRetiredShards(long now, long grace)
+    {
+        if (retiredShards == 0 || now - resharded < grace) {
+            return false;
+        }
+        retiredShards = 0;
+        return true;
+    }
+
+    /**
+     * Returns the shard the client belongs to.
+     * 
+     * @param client
+     * @param shards Shard count
+     * @return 
+     */
+    public static int shardOf(String client, int shards)
+    {
+        return (client.hashCode() & 0x7fffffff) % shards;
+    }
+
+    public boolean isDelta()
+    {
+        return delta;
+    }
+
+    public long getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Gives the next change a version, at least the given time so that
+     * a new owner continues above the versions of the previous one.
+     *
+     * @param now
+     * @return the new version
+     */
+    public long nextVersion(long now)
+    {
+        version = Math.max(version + 1, now);
+        return version;
+    }
+
+    /**
+     * Stamps the delta with the owner's current version.
+     *
+     * @param owned Content the delta was taken from
+     */
+    public void stamp(ChannelContent owned)
+    {
+        version = owned.version;
+    }
+
+    // =====================================================================
+
+    /**
+     * Adds the client.
+     *
+     * @param client
+     * @param tag Unique tag of this addition
+     * @return Delta to be replicated
+     */
+    public ChannelContent join(String client, long tag)
+    {
+        clients.add(client, tag);
+
+        ChannelContent d = newDelta();
+        d.clients.add(client, tag);
+        return d;
+    }
+
+    /**
+     * Removes the client.
+     *
+     * @param client
+     * @return Delta to be replicated
+     */
+    public ChannelContent leave(String client)
+    {
+        ChannelContent d = newDelta();
+        d.clients.removeTags(clients.remove(client));
+        return d;
+    }
+
+    /**
+     * Returns a full copy with the tombstones compacted.
+     */
+    public ChannelContent snapshot()
+    {
+        ChannelContent s = new ChannelContent(getId(), name);
+        s.clients = clients.copy();
+        s.clients.compact();
+        s.multicast = multicast;
+        s.shards = shards;
+        s.retiredShards = retiredShards;
+        s.resharded = resharded;
+        s.version = version;
+        s.base = version;
+        pendingDeltas = 0;
+        return s;
+    }
+
+    /**
+     * Forgets the tombstones of the owned content, once a snapshot has been
+     * taken to replace the replicas.
+     */
+    public void compact()
+    {
+        clients.compact();
+    }
+
+    /**
+     * Merges a copy of the channel found elsewhere into this (owned) content.
+     * The members of both are kept, the settings of the newer one win.
+     *
+     * @param other
+     */
+    public void merge(ChannelContent other)
+    {
+        clients.merge(other.clients);
+        if (other.version > version) {
+            multicast = other.multicast;
+            shards = other.shards;
+            retiredShards = other.retiredShards;
+            resharded = other.resharded;
+            version = other.version;
+        }
+    }
+
+    /**
+     * Counts another inserted delta.
+     *
+     * @return number of deltas since the last snapshot
+     */
+    public int countDelta()
+    {
+        return ++pendingDeltas;
+    }
+
+    private ChannelContent newDelta()
+    {
+        ChannelContent d = new ChannelContent(getId(), name);
+        d.delta = true;
+        return d;
     }
 
     // =====================================================================
@@ -57,8 +319,32 @@ public class ChannelContent extends ContentHashPastContent
     @Override
     public PastContent checkInsert(Id id, PastContent existingContent) throws PastException
     {
-        // allow overwrite
-        return this;
+        ChannelContent existing = existingContent instanceof ChannelContent ? (ChannelContent) existingContent : null;
+        // snapshot? overwrite, unless it is older
+        if (!delta) {
+            return existing != null && existing.base > version ? existing : this;
+        }
+        // a delta alone would pass for the whole membership
+        if (existing == null) {
+            throw new PastException("Delta of " + name + " without a base, waiting for a snapshot");
+        }
+        // included in the snapshot already, its tombstones are gone
+        if (version <= existing.base) {
+            return existing;
+        }
+
+        // merge the delta into a copy of what we have
+        ChannelContent merged = new ChannelContent(existing.getId(), existing.name);
+        merged.clients = existing.clients.copy();
+        merged.clients.merge(clients);
+        merged.multicast = existing.multicast;
+        merged.shards = existing.shards;
+        merged.retiredShards = existing.retiredShards;
+        merged.resharded = existing.resharded;
+        merged.delta = existing.delta;
+        merged.version = Math.max(existing.version, version);
+        merged.base = existing.base;
+        return merged;
     }
 
     @Override
@@ -67,12 +353,12 @@ public class ChannelContent extends ContentHashPastContent
         // yes, the content CAN and WILL change
         return true;
     }
-    
+
     // =====================================================================
 
     @Override
     public String toString()
     {
-        return "ChannelContent[" + name + "]";
+        return "ChannelContent[" + name + (delta ? ", delta" : "") + "]";
     }
 }
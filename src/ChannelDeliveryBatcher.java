@@ -0,0 +1,132 @@
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import rice.environment.Environment;
+import rice.environment.params.Parameters;
+import rice.p2p.commonapi.Id;
+import rice.selector.TimerTask;
+
+/**
+ *      Channel delivery batcher
+ * 
+ * Collects {@see ChannelMsg}s that the channel owner sends to the same
+ * recipient and ships them as one {@see ChannelMsgBundle}. A batch is sent
+ * when its time window runs out or when it reaches the size cap, whatever
+ * comes first.
+ * 
+ * Tunable via the environment parameters "pastrychat_batch_window" (ms,
+ * 0 disables batching) and "pastrychat_batch_size".
+ * 
+ * @author Dejvino
+ */
+public class ChannelDeliveryBatcher
+{
+    public static final int DEFAULT_WINDOW = 5;
+    public static final int DEFAULT_SIZE = 32;
+    
+    private final ChatApp chat;
+    
+    private final Environment environment;
+    
+    /**
+     * Time window of a batch in milliseconds.
+     */
+    private final int window;
+    
+    /**
+     * Maximal number of messages in a batch.
+     */
+    private final int size;
+    
+    /**
+     * Batches being collected, by recipient.
+     */
+    private final Map<Id, List<ChannelMsg>> pending = new HashMap<Id, List<ChannelMsg>>();
+
+    /**
+     * Constructor.
+     */
+    public ChannelDeliveryBatcher(ChatApp chat, Environment environment)
+    {
+        this.chat = chat;
+        this.environment = environment;
+        
+        Parameters params = environment.getParameters();
+        this.window = params.contains("pastrychat_batch_window")
+                ? params.getInt("pastrychat_batch_window") : DEFAULT_WINDOW;
+        this.size = params.contains("pastrychat_batch_size")
+                ? params.getInt("pastrychat_batch_size") : DEFAULT_SIZE;
+    }
+    
+    // =====================================================================
+
+    /**
+     * Queues the message for its recipient.
+     * 
+     * @param msg 
+     */
+    public void send(ChannelMsg msg)
+    {
+        // batching disabled?
+        if (window <= 0 || size <= 1) {
+            chat.route(msg.getTo(), msg, null);
+            return;
+        }
+        
+        final Id to = msg.getTo();
+        List<ChannelMsg> full = null;
+        synchronized (pending) {
+            List<ChannelMsg> batch = pending.get(to);
+            if (batch == null) {
+                // new batch, send it when the window runs out
+                final List<ChannelMsg> scheduled = new ArrayList<ChannelMsg>();
+                pending.put(to, scheduled);
+                environment.getSelectorManager().getTimer().schedule(new TimerTask()
+                {
+                    @Override
+                    public void run()
+                    {
+                        flush(to, scheduled);
+                    }
+                }, window);
+                batch = scheduled;
+            }
+            batch.add(msg);
+            if (batch.size() >= size) {
+                pending.remove(to);
+                full = batch;
+            }
+        }
+        if (full != null) {
+            ship(to, full);
+        }
+    }
+    
+    // =====================================================================
+
+    /**
+     * Sends the batch, unless it has been sent already.
+     */
+    private void flush(Id to, List<ChannelMsg> batch)
+    {
+        synchronized (pending) {
+            if (pending.get(to) != batch) {
+                // already shipped
+                return;
+            }
+            pending.remove(to);
+        }
+        ship(to, batch);
+    }
+    
+    private void ship(Id to, List<ChannelMsg> batch)
+    {
+        if (batch.size() == 1) {
+            chat.route(to, batch.get(0), null);
+        } else {
+            chat.route(to, new ChannelMsgBundle(to, batch), null);
+        }
+    }
+}
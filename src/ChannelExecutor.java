@@ -0,0 +1,87 @@
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import rice.environment.params.Parameters;
+import rice.p2p.commonapi.Id;
+
+/**
+ *      Channel executor
+ *
+ * Runs the channel owner's work on striped single-threaded executors. All the
+ * tasks of one channel land on the same stripe, so they run one after
+ * another in the order of submission and the channel state needs no locking.
+ * Unrelated channels are spread over the stripes and run in parallel.
+ *
+ * The number of stripes is given by the environment parameter
+ * "pastrychat_owner_stripes" (defaults to the number of CPUs). Zero stripes
+ * run every task right away on the calling thread.
+ *
+ * @author Dejvino
+ */
+public class ChannelExecutor
+{
+    private final ExecutorService[] stripes;
+
+    /**
+     * Constructor.
+     */
+    public ChannelExecutor(Parameters params)
+    {
+        int count = params.contains("pastrychat_owner_stripes")
+                ? params.getInt("pastrychat_owner_stripes") : Runtime.getRuntime().availableProcessors();
+        stripes = new ExecutorService[Math.max(count, 0)];
+        for (int i = 0; i < stripes.length; i++) {
+            final String name = "Channel owner " + i;
+            stripes[i] = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread thread = new Thread(r, name);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+    }
+
+    // =====================================================================
+
+    /**
+     * Runs the task on the channel's stripe.
+     *
+     * @param channelId
+     * @param task
+     */
+    public void execute(Id channelId, final Runnable task)
+    {
+        if (stripes.length == 0) {
+            task.run();
+            return;
+        }
+        stripes[(channelId.hashCode() & 0x7fffffff) % stripes.length].execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    System.err.println("Error in channel owner task");
+                    ex.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the stripes, queued tasks are discarded.
+     */
+    public void shutdown()
+    {
+        for (ExecutorService stripe : stripes) {
+            stripe.shutdownNow();
+        }
+    }
+}
@@ -1,6 +1,11 @@
 
+import java.io.IOException;
+import rice.p2p.commonapi.Endpoint;
 import rice.p2p.commonapi.Id;
 import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+import rice.p2p.commonapi.rawserialization.RawMessage;
 
 /**
  *      Channel message
@@ -10,10 +15,14 @@ import rice.p2p.commonapi.Message;
  * 
  * @author Dejvino
  */
-public class ChannelMsg implements Message
+public class ChannelMsg implements RawMessage
 {
     private static final long serialVersionUID = 1L;
 
+    public static final short TYPE = 2;
+    
+    private static final byte VERSION = 1;
+
     /**
      * Where the Message came from.
      */
@@ -38,12 +47,20 @@ public class ChannelMsg implements Message
     /**
      * Message content
      */
-    private String text;
+    private ChatText text;
 
     /**
      * Constructor.
      */
     public ChannelMsg(Id from, String fromName, Id to, String toName, Id channelId, String channelName, String text)
+    {
+        this(from, fromName, to, toName, channelId, channelName, ChatText.raw(text));
+    }
+
+    /**
+     * Constructor.
+     */
+    public ChannelMsg(Id from, String fromName, Id to, String toName, Id channelId, String channelName, ChatText text)
     {
         this.from = from;
         this.fromName = fromName;
@@ -54,6 +71,29 @@ public class ChannelMsg implements Message
         this.text = text;
     }
     
+    /**
+     * Deserializing constructor.
+     */
+    private ChannelMsg(InputBuffer buf, Endpoint endpoint) throws IOException
+    {
+        ChatMessageDeserializer.checkVersion(buf, VERSION);
+        this.from = ChatMessageDeserializer.readId(buf, endpoint);
+        this.fromName = buf.readUTF();
+        this.to = ChatMessageDeserializer.readId(buf, endpoint);
+        this.toName = buf.readUTF();
+        this.channelId = ChatMessageDeserializer.readId(buf, endpoint);
+        this.channelName = buf.readUTF();
+        this.text = ChatMessageDeserializer.readText(buf);
+    }
+
+    /**
+     * Rebuilds the message from its raw form.
+     */
+    public static ChannelMsg build(InputBuffer buf, Endpoint endpoint) throws IOException
+    {
+        return new ChannelMsg(buf, endpoint);
+    }
+
     // =====================================================================
 
     public Id getFrom()
@@ -67,6 +107,14 @@ public class ChannelMsg implements Message
     }
 
     public String getText()
+    {
+        return text.getText();
+    }
+
+    /**
+     * Returns the text in its wire form.
+     */
+    public ChatText getPayload()
     {
         return text;
     }
@@ -109,4 +157,25 @@ public class ChannelMsg implements Message
     {
         return Message.LOW_PRIORITY;
     }
+
+    // =====================================================================
+
+    @Override
+    public short getType()
+    {
+        return TYPE;
+    }
+
+    @Override
+    public void serialize(OutputBuffer buf) throws IOException
+    {
+        buf.writeByte(VERSION);
+        ChatMessageDeserializer.writeId(buf, from);
+        buf.writeUTF(fromName);
+        ChatMessageDeserializer.writeId(buf, to);
+        buf.writeUTF(toName);
+        ChatMessageDeserializer.writeId(buf, channelId);
+        buf.writeUTF(channelName);
+        ChatMessageDeserializer.writeText(buf, text);
+    }
 }
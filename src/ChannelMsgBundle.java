@@ -0,0 +1,122 @@
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+import rice.p2p.commonapi.rawserialization.RawMessage;
+
+/**
+ *      Channel message bundle
+ * 
+ * Message container used for transferring several {@see ChannelMsg}s headed
+ * to the same recipient as a single message. The recipient unpacks them
+ * in the original order.
+ * 
+ * @author Dejvino
+ */
+public class ChannelMsgBundle implements RawMessage
+{
+    private static final long serialVersionUID = 1L;
+
+    public static final short TYPE = 5;
+    
+    private static final byte VERSION = 0;
+
+    /**
+     * Where the Message is going.
+     */
+    private Id to;
+    
+    /**
+     * Bundled messages
+     */
+    private List<ChannelMsg> messages;
+
+    /**
+     * Constructor.
+     */
+    public ChannelMsgBundle(Id to, List<ChannelMsg> messages)
+    {
+        this.to = to;
+        this.messages = messages;
+    }
+
+    /**
+     * Deserializing constructor.
+     */
+    private ChannelMsgBundle(InputBuffer buf, Endpoint endpoint) throws IOException
+    {
+        ChatMessageDeserializer.checkVersion(buf, VERSION);
+        this.to = ChatMessageDeserializer.readId(buf, endpoint);
+        int count = buf.readInt();
+        if (count < 0 || count > buf.bytesRemaining()) {
+            throw new IOException("Invalid bundle size: " + count);
+        }
+        this.messages = new ArrayList<ChannelMsg>(count);
+        for (int i = 0; i < count; i++) {
+            this.messages.add(ChannelMsg.build(buf, endpoint));
+        }
+    }
+
+    /**
+     * Rebuilds the message from its raw form.
+     */
+    public static ChannelMsgBundle build(InputBuffer buf, Endpoint endpoint) throws IOException
+    {
+        return new ChannelMsgBundle(buf, endpoint);
+    }
+    
+    // =====================================================================
+
+    public Id getTo()
+    {
+        return to;
+    }
+
+    public List<ChannelMsg> getMessages()
+    {
+        return messages;
+    }
+    
+    // =====================================================================
+
+    @Override
+    public String toString()
+    {
+        return "ChannelMsgBundle to " + to + ": " + messages.size() + " messages";
+    }
+
+    // =====================================================================
+
+    /**
+     * Using low priority to prevent interference with overlay maintenance traffic.
+     */
+    @Override
+    public int getPriority()
+    {
+        return Message.LOW_PRIORITY;
+    }
+
+    // =====================================================================
+
+    @Override
+    public short getType()
+    {
+        return TYPE;
+    }
+
+    @Override
+    public void serialize(OutputBuffer buf) throws IOException
+    {
+        buf.writeByte(VERSION);
+        ChatMessageDeserializer.writeId(buf, to);
+        buf.writeInt(messages.size());
+        for (ChannelMsg msg : messages) {
+            msg.serialize(buf);
+        }
+    }
+}
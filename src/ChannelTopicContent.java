@@ -0,0 +1,91 @@
+
+import rice.p2p.commonapi.Id;
+import rice.p2p.scribe.ScribeContent;
+
+/**
+ *      Channel topic content
+ * 
+ * Content published down the Scribe multicast tree of a channel running in
+ * the tree mode. Every subscriber turns it into a regular {@see ChannelMsg}
+ * addressed to itself.
+ * 
+ * @author Dejvino
+ */
+public class ChannelTopicContent implements ScribeContent
+{
+    private static final long serialVersionUID = 2L;
+
+    /**
+     * Where the Message came from.
+     */
+    private Id from;
+    
+    private String fromName;
+    
+    /**
+     * Channel
+     */
+    private Id channelId;
+    
+    private String channelName;
+    
+    /**
+     * Message content, Java-serialized in its wire form.
+     */
+    private ChatText text;
+
+    /**
+     * Constructor.
+     */
+    public ChannelTopicContent(Id from, String fromName, Id channelId, String channelName, ChatText text)
+    {
+        this.from = from;
+        this.fromName = fromName;
+        this.channelId = channelId;
+        this.channelName = channelName;
+        this.text = text;
+    }
+    
+    // =====================================================================
+
+    public Id getFrom()
+    {
+        return from;
+    }
+
+    public String getFromName()
+    {
+        return fromName;
+    }
+
+    public String getText()
+    {
+        return text.getText();
+    }
+
+    /**
+     * Returns the text in its wire form.
+     */
+    public ChatText getPayload()
+    {
+        return text;
+    }
+
+    public Id getChannelId()
+    {
+        return channelId;
+    }
+
+    public String getChannelName()
+    {
+        return channelName;
+    }
+    
+    // =====================================================================
+
+    @Override
+    public String toString()
+    {
+        return "ChannelTopicContent from " + fromName + " ("+from+") to " + channelName + " ("+channelId+"): " + text;
+    }
+}
@@ -1,20 +1,47 @@
 
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import rice.Continuation;
+import rice.environment.params.Parameters;
 import rice.p2p.commonapi.Application;
 import rice.p2p.commonapi.Endpoint;
 import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.IdRange;
 import rice.p2p.commonapi.Message;
 import rice.p2p.commonapi.Node;
 import rice.p2p.commonapi.NodeHandle;
+import rice.p2p.commonapi.NodeHandleSet;
 import rice.p2p.commonapi.RouteMessage;
 import rice.p2p.past.Past;
 import rice.p2p.past.PastContent;
+import rice.p2p.past.PastContentHandle;
 import rice.p2p.past.PastImpl;
+import rice.p2p.scribe.Scribe;
+import rice.p2p.scribe.ScribeClient;
+import rice.p2p.scribe.ScribeContent;
+import rice.p2p.scribe.ScribeImpl;
+import rice.p2p.scribe.Topic;
 import rice.pastry.commonapi.PastryIdFactory;
 import rice.persistence.LRUCache;
 import rice.persistence.MemoryStorage;
+import rice.persistence.PersistentStorage;
 import rice.persistence.Storage;
+import rice.persistence.StorageManager;
 import rice.persistence.StorageManagerImpl;
+import rice.selector.TimerTask;
 
 /**
  *      Chat Application
@@ -27,8 +54,23 @@ import rice.persistence.StorageManagerImpl;
  * 
  * @author Dejvino
  */
-public class ChatApp implements Application
+public class ChatApp implements Application, ScribeClient
 {
+    public static final String STORAGE_MEMORY = "memory";
+    public static final String STORAGE_PERSISTENT = "persistent";
+    
+    /**
+     * Members handed over to other shards at a time.
+     */
+    private static final int REBALANCE_CHUNK = 256;
+
+    /**
+     * Lookups of a channel's content tried again before the waiting work is
+     * given up, each after a longer delay (ms).
+     */
+    private static final int LOOKUP_RETRIES = 3;
+    private static final long LOOKUP_RETRY_DELAY = 1000;
+    
     /**
      * Username
      */
@@ -41,35 +83,188 @@ public class ChatApp implements Application
      * Id factory.
      */
     private final PastryIdFactory idFactory;
+    /**
+     * Version of the client Id derivation, see {@see HashNodeIdFactory}.
+     */
+    private final int idVersion;
     /**
      * Interface used for message exchange.
      */
     private final Endpoint endpoint;
-    private final Object endpointLock = new Object();
+    /**
+     * Outbound messages waiting for the endpoint.
+     */
+    private final OutboundQueue outbound;
+    /**
+     * Handles of the nodes we have heard from, used as direct first hops.
+     */
+    private final NodeHandleCache handleCache;
     /**
      * Application event listener
      */
-    private ChatAppListener chatAppListener;
-    private final Object chatAppListenerLock = new Object();
+    private final ListenerDispatcher listeners;
+    /**
+     * Log of the delivered messages.
+     */
+    private final HistoryStore history;
     /**
      * Distributed storage for channel info safe-keeping
      */
     private Past pastChannels;
+    /**
+     * Primary store of the Past replicas (see "pastrychat_storage").
+     */
+    private final Storage storage;
+    /**
+     * Local storage and cache of Past.
+     */
+    private final StorageManager storageManager;
+    /**
+     * Number of replicas of the channel info.
+     */
+    private final int replicationFactor;
+    /**
+     * Operational counters, exposed over JMX.
+     */
+    private final ChatMetrics metrics;
+    /**
+     * Sees the messages passing through this node, null unless measuring.
+     */
+    private volatile RouteObserver routeObserver;
+    /**
+     * Sequencing, acks and retransmissions of the private messages.
+     */
+    private final PrivateConversations conversations;
+    /**
+     * Bulk file transfers over application sockets.
+     */
+    private final FileTransfers transfers;
+    /**
+     * Compression of the message texts.
+     */
+    private final TextCodec codec;
+    /**
+     * Index of the online users.
+     */
+    private final PresenceIndex presence;
+    /**
+     * Batching stage of the owner's unicast fan-out.
+     */
+    private final ChannelDeliveryBatcher batcher;
+    /**
+     * Number of membership deltas after which a full snapshot is stored instead.
+     */
+    private final int snapshotInterval;
+    /**
+     * Authoritative copies of the channels this node owns, keyed by channel Id.
+     * Past only serves as a replicated backup and for recovery.
+     * Each entry is only touched from its channel's stripe of the ownerExecutor.
+     */
+    private final ConcurrentMap<Id, OwnedChannel> ownedChannels = new ConcurrentHashMap<Id, OwnedChannel>();
+    /**
+     * Bumped on every leaf set change, owned channels from older epochs
+     * have to be looked up again.
+     */
+    private final AtomicInteger ownershipEpoch = new AtomicInteger();
+    /**
+     * Whether the replicas held here are taken over as owned channels as soon
+     * as the leaf set makes us their root ("pastrychat_warm_standby").
+     */
+    private final boolean warmStandby;
+    /**
+     * Whether the takeover is already scheduled on the selector.
+     */
+    private final AtomicBoolean takeoverScheduled = new AtomicBoolean(false);
+    /**
+     * Serializes the owner's work per channel.
+     */
+    private final ChannelExecutor ownerExecutor;
+    /**
+     * Multicast trees for channels running in the tree mode.
+     */
+    private final Scribe scribe;
+    /**
+     * Rate limits and load shedding of the incoming broadcasts.
+     */
+    private final OwnerAdmission admission;
+    /**
+     * Upper limit of a channel's shard count.
+     */
+    private final int maxShards;
+    /**
+     * Time after a reshard (ms) until the old shards stop being served,
+     * their members have moved by then ("pastrychat_reshard_grace").
+     */
+    private final long reshardGrace;
+    /**
+     * Delivery handlers by message type.
+     */
+    private final MessageHandlerRegistry handlers = new MessageHandlerRegistry();
 
-    public ChatApp(Node node, String nickname)
+    public ChatApp(Node node, String nickname) throws IOException
     {
         this.node = node;
         this.nickname = nickname;
+        
+        Parameters params = node.getEnvironment().getParameters();
+        this.metrics = new ChatMetrics(this);
 
+        this.handleCache = new NodeHandleCache(params);
         this.endpoint = node.buildEndpoint(this, "chat-endpoint");
+        this.endpoint.setDeserializer(new ChatMessageDeserializer(endpoint, handleCache));
+        this.outbound = new OutboundQueue(endpoint, node.getEnvironment().getSelectorManager(), params);
+
+        this.listeners = new ListenerDispatcher(params, metrics);
+        this.transfers = new FileTransfers(endpoint, node.getEnvironment(), listeners);
+        this.ownerExecutor = new ChannelExecutor(params);
+        this.history = new HistoryStore(params, nickname);
 
         this.idFactory = new rice.pastry.commonapi.PastryIdFactory(node.getEnvironment());
+        this.idVersion = HashNodeIdFactory.getVersion(params);
 
-        // channel info is stored in-memory, because it does not need to be persistent
-        Storage storage = new MemoryStorage(idFactory);
-        pastChannels = new PastImpl(node, new StorageManagerImpl(idFactory, storage,
-                new LRUCache(new MemoryStorage(idFactory), 512 * 1024, node.getEnvironment())),
-                2, "channels");
+        // channel info is stored in-memory by default, persistent storage
+        // lets a restarted node come back with its replicas
+        String storageMode = params.contains("pastrychat_storage")
+                ? params.getString("pastrychat_storage") : STORAGE_MEMORY;
+        if (STORAGE_PERSISTENT.equals(storageMode)) {
+            String storageDir = params.contains("pastrychat_storage_dir")
+                    ? params.getString("pastrychat_storage_dir") : "storage";
+            long storageSize = params.contains("pastrychat_storage_size")
+                    ? params.getLong("pastrychat_storage_size") : 64L * 1024 * 1024;
+            storage = new PersistentStorage(idFactory, "channels",
+                    new File(storageDir, node.getId().toStringFull()).getPath(),
+                    storageSize, node.getEnvironment());
+        } else if (STORAGE_MEMORY.equals(storageMode)) {
+            storage = new MemoryStorage(idFactory);
+        } else {
+            throw new IllegalArgumentException("Unknown storage mode: " + storageMode);
+        }
+        this.replicationFactor = params.contains("pastrychat_replication")
+                ? params.getInt("pastrychat_replication") : 2;
+        int cacheSize = params.contains("pastrychat_cache_size")
+                ? params.getInt("pastrychat_cache_size") : 512 * 1024;
+        this.storageManager = new StorageManagerImpl(idFactory, storage,
+                new LRUCache(new MemoryStorage(idFactory), cacheSize, node.getEnvironment()));
+        pastChannels = new PastImpl(node, storageManager, replicationFactor, "channels");
+        this.presence = new PresenceIndex(node, idFactory, replicationFactor);
+        
+        this.scribe = new ScribeImpl(node, "channel-trees");
+        
+        this.codec = new TextCodec(params);
+        this.batcher = new ChannelDeliveryBatcher(this, node.getEnvironment());
+        this.conversations = new PrivateConversations(this, node.getEnvironment());
+        this.admission = new OwnerAdmission(params, outbound.getCapacity());
+        this.maxShards = params.contains("pastrychat_max_shards")
+                ? params.getInt("pastrychat_max_shards") : 64;
+        this.reshardGrace = params.contains("pastrychat_reshard_grace")
+                ? params.getLong("pastrychat_reshard_grace") : 300000;
+        this.warmStandby = !params.contains("pastrychat_warm_standby")
+                || params.getBoolean("pastrychat_warm_standby");
+        
+        this.snapshotInterval = params.contains("pastrychat_snapshot_interval")
+                ? params.getInt("pastrychat_snapshot_interval") : 64;
+        
+        registerHandlers();
     }
 
     // =====================================================================
@@ -84,6 +279,113 @@ public class ChatApp implements Application
         return node.getId();
     }
 
+    /**
+     * Returns the number of channel records held in the local Past storage,
+     * e.g. the ones which survived a restart.
+     */
+    public int getStoredChannelCount()
+    {
+        return storage.scan().numElements();
+    }
+
+    public OutboundQueue getOutboundQueue()
+    {
+        return outbound;
+    }
+
+    public PrivateConversations getConversations()
+    {
+        return conversations;
+    }
+
+    public FileTransfers getFileTransfers()
+    {
+        return transfers;
+    }
+
+    public TextCodec getTextCodec()
+    {
+        return codec;
+    }
+
+    public NodeHandleCache getHandleCache()
+    {
+        return handleCache;
+    }
+
+    public PresenceIndex getPresence()
+    {
+        return presence;
+    }
+
+    /**
+     * Returns the number of channels this node currently acts as the owner of.
+     */
+    public int getOwnedChannelCount()
+    {
+        return ownedChannels.size();
+    }
+
+    /**
+     * Returns a copy of the members of an owned channel (or shard), taken
+     * once the work queued for it so far is done.
+     * 
+     * @param lookupKey
+     * @return null if not owned
+     * @throws InterruptedException 
+     */
+    Set<String> getOwnedMembers(final Id lookupKey) throws InterruptedException
+    {
+        final List<Set<String>> members = new ArrayList<Set<String>>(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        ownerExecutor.execute(lookupKey, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                OwnedChannel owned = ownedChannels.get(lookupKey);
+                members.add(owned == null || owned.content == null
+                        ? null : new TreeSet<String>(owned.content.getClients()));
+                done.countDown();
+            }
+        });
+        done.await();
+        return members.get(0);
+    }
+
+    /**
+     * Returns the number of routed messages which passed through this node
+     * (including the ones originating or ending here).
+     */
+    public long getForwardedCount()
+    {
+        return metrics.getForwarded();
+    }
+
+    /**
+     * Returns the number of listener events lost due to overflow.
+     */
+    public long getDroppedEventCount()
+    {
+        return listeners.getDroppedCount();
+    }
+
+    public ChatMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /**
+     * Lets the observer see every routed message passing through this node,
+     * to measure the route of each message (e.g. in the simulation).
+     * 
+     * @param observer Observer, or null to stop
+     */
+    void setRouteObserver(RouteObserver observer)
+    {
+        this.routeObserver = observer;
+    }
+
     // =====================================================================
     
     /**
@@ -94,12 +396,10 @@ public class ChatApp implements Application
      */
     public void registerChatAppListener(ChatAppListener listener)
     {
-        synchronized (chatAppListenerLock) {
-            this.chatAppListener = listener;
-            if (listener != null) {
-                listener.setChatApp(this);
-            }
+        if (listener != null) {
+            listener.setChatApp(this);
         }
+        listeners.setListener(listener);
     }
 
     // =====================================================================
@@ -110,31 +410,96 @@ public class ChatApp implements Application
      */
     public void activate()
     {
-        // now we can receive messages
-        synchronized (endpointLock) {
-            this.endpoint.register();
+        // now we can receive messages (and files)
+        transfers.activate();
+        this.endpoint.register();
+        
+        Parameters params = node.getEnvironment().getParameters();
+        if (!params.contains("pastrychat_jmx") || params.getBoolean("pastrychat_jmx")) {
+            metrics.register(nickname);
+        }
+    }
+
+    /**
+     * Stops the channel owner's and file transfer threads, the work still
+     * queued is dropped, and takes the metrics off the MBean server.
+     * To be called just before the node is destroyed.
+     */
+    public void shutdown()
+    {
+        ownerExecutor.shutdown();
+        transfers.shutdown();
+        history.shutdown();
+        metrics.unregister();
+    }
+
+    // =====================================================================
+    
+    /**
+     * Routes the message through the endpoint.
+     * If the node with the destination Id is known, it is used as the first
+     * hop, so that the message skips the overlay routing.
+     * 
+     * @param id Destination key (or null for direct sending)
+     * @param msg Message
+     * @param hint First hop (or null)
+     * @return false if the outbound queue is full and the message was dropped
+     */
+    boolean route(Id id, Message msg, NodeHandle hint)
+    {
+        metrics.routed(msg);
+        if (hint == null && id != null) {
+            // still falls back to the key if the handle fails on the way
+            hint = handleCache.get(id);
+            if (hint != null) {
+                metrics.directRouted();
+            }
+        }
+        // full queue drops the message, see OutboundQueue
+        return outbound.offer(id, msg, hint);
+    }
+
+    /**
+     * Routes a message of our user, telling the user when it is dropped.
+     * 
+     * @return false if the message was dropped
+     */
+    private boolean send(Id id, Message msg, NodeHandle hint)
+    {
+        if (!route(id, msg, hint)) {
+            listeners.println("Too many messages waiting to be sent, message dropped.");
+            return false;
         }
+        return true;
     }
 
     // =====================================================================
     
     /**
      * Called to route a message to the id.
+     * The message is delivered reliably and in order, see {@see PrivateConversations}.
      * 
      * @param id Recipient ID
      * @param name Recipient name
      * @param text Message text
      */
-    public void sendPrivateMsg(String name, String text)
+    public void sendPrivateMsg(final String name, final String text)
     {
-        synchronized (endpointLock) {
-            Message msg = new PrivateMsg(endpoint.getId(), nickname, getClientId(name), name, text);
-            endpoint.route(getClientId(name), msg, null);
-        }
+        whenOnline(name, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (!conversations.send(getClientId(name), name, text)) {
+                    listeners.println("Too many messages waiting for '" + name + "', message dropped.");
+                }
+            }
+        }, null);
     }
 
     /**
      * Called to directly send a message to the nh.
+     * Unlike {@see #sendPrivateMsg()}, there is no delivery guarantee.
      * 
      * @param nh Recipient handle
      * @param name Recipient name
@@ -142,10 +507,96 @@ public class ChatApp implements Application
      */
     public void sendPrivateMsgDirect(NodeHandle nh, String name, String text)
     {
-        synchronized (endpointLock) {
-            Message msg = new PrivateMsg(endpoint.getId(), nickname, nh.getId(), name, text);
-            endpoint.route(null, msg, nh);
+        Message msg = new PrivateMsg(endpoint.getId(), nickname, nh.getId(), name, codec.encode(text));
+        send(null, msg, nh);
+    }
+
+    /**
+     * Offers the file to the user, who then pulls it over an application
+     * socket, see {@see FileTransfers}.
+     * 
+     * @param name Recipient name
+     * @param path File to send
+     */
+    public void sendFile(final String name, String path)
+    {
+        final File file = new File(path);
+        final long size = file.length();
+        long modified = file.lastModified();
+        final long transferId;
+        try {
+            transferId = transfers.offer(file, size, modified, name);
+        } catch (IOException ex) {
+            listeners.println("Cannot send file: " + ex.getMessage());
+            return;
+        }
+        final Message msg = new FileOfferMsg(endpoint.getId(), nickname, endpoint.getLocalNodeHandle(),
+                getClientId(name), name, transferId, file.getName(), size, modified);
+        whenOnline(name, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (!send(getClientId(name), msg, null)) {
+                    transfers.withdraw(transferId);
+                    return;
+                }
+                listeners.println("Offered file '" + file.getName() + "' (" + size + " B) to " + name + ".");
+            }
+        }, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                transfers.withdraw(transferId);
+            }
+        });
+    }
+
+    /**
+     * Sends to the user unless it is offline, see {@see PresenceIndex}.
+     * The send may be held until the user's presence is checked.
+     * 
+     * @param name Recipient name
+     * @param send
+     * @param cancel Run when the user is offline (or null)
+     */
+    private void whenOnline(final String name, Runnable send, final Runnable cancel)
+    {
+        if (name.equals(nickname)) {
+            send.run();
+            return;
         }
+        presence.whenPresent(name, send, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (cancel != null) {
+                    cancel.run();
+                }
+                listeners.println("User '" + name + "' is not online.");
+            }
+        });
+    }
+
+    /**
+     * Announces this user online in the presence index.
+     * To be called once the node has joined the ring.
+     */
+    public void registerPresence()
+    {
+        presence.register(nickname);
+    }
+
+    /**
+     * Takes this user offline in the presence index.
+     * 
+     * @param timeout Maximal wait for the change to be stored, in ms
+     */
+    public void deregisterPresence(long timeout)
+    {
+        presence.deregister(timeout);
     }
 
     /**
@@ -157,10 +608,9 @@ public class ChatApp implements Application
      */
     public void sendChannelBroadcastMsg(String name, String text)
     {
-        synchronized (endpointLock) {
-            Message msg = new ChannelBroadcastMsg(endpoint.getId(), nickname, getChannelId(name), name, text);
-            endpoint.route(getChannelId(name), msg, null);
-        }
+        Message msg = new ChannelBroadcastMsg(endpoint.getId(), nickname, getChannelId(name), name,
+                codec.encode(text));
+        send(getChannelId(name), msg, null);
     }
 
     // =====================================================================
@@ -172,12 +622,26 @@ public class ChatApp implements Application
      */
     public void sendJoinRequest(String channelName)
     {
-        synchronized (endpointLock) {
-            Message msg = new ChannelAdminMsg(endpoint.getId(), nickname,
-                    getChannelId(channelName), channelName,
-                    ChannelAdminMsg.ACTION_TYPE_JOIN, ChannelAdminMsg.ACTION_PHASE_REQUEST);
-            endpoint.route(getChannelId(channelName), msg, null);
-        }
+        Message msg = new ChannelAdminMsg(endpoint.getId(), nickname,
+                getChannelId(channelName), channelName,
+                ChannelAdminMsg.ACTION_TYPE_JOIN, ChannelAdminMsg.ACTION_PHASE_REQUEST);
+        send(getChannelId(channelName), msg, null);
+    }
+
+    /**
+     * Called to ask the channel's owner to spread the members over the given
+     * number of shards (1 = no sharding).
+     * 
+     * @param channelName
+     * @param shards 
+     */
+    public void sendReshardRequest(String channelName, int shards)
+    {
+        ChannelAdminMsg msg = new ChannelAdminMsg(endpoint.getId(), nickname,
+                getChannelId(channelName), channelName,
+                ChannelAdminMsg.ACTION_TYPE_RESHARD, ChannelAdminMsg.ACTION_PHASE_REQUEST);
+        msg.setShardCount(shards);
+        send(getChannelId(channelName), msg, null);
     }
 
     /**
@@ -187,12 +651,25 @@ public class ChatApp implements Application
      */
     public void sendLeaveRequest(String channelName)
     {
-        synchronized (endpointLock) {
-            Message msg = new ChannelAdminMsg(endpoint.getId(), nickname,
-                    getChannelId(channelName), channelName,
-                    ChannelAdminMsg.ACTION_TYPE_LEAVE, ChannelAdminMsg.ACTION_PHASE_REQUEST);
-            endpoint.route(getChannelId(channelName), msg, null);
-        }
+        Message msg = new ChannelAdminMsg(endpoint.getId(), nickname,
+                getChannelId(channelName), channelName,
+                ChannelAdminMsg.ACTION_TYPE_LEAVE, ChannelAdminMsg.ACTION_PHASE_REQUEST);
+        send(getChannelId(channelName), msg, null);
+    }
+
+    /**
+     * Asks the channel owner to switch the channel's fan-out mode.
+     * 
+     * @param channelName
+     * @param multicast true for the Scribe tree, false for the unicast fan-out
+     */
+    public void sendModeRequest(String channelName, boolean multicast)
+    {
+        Message msg = new ChannelAdminMsg(endpoint.getId(), nickname,
+                getChannelId(channelName), channelName,
+                multicast ? ChannelAdminMsg.ACTION_TYPE_MODE_TREE : ChannelAdminMsg.ACTION_TYPE_MODE_UNICAST,
+                ChannelAdminMsg.ACTION_PHASE_REQUEST);
+        send(getChannelId(channelName), msg, null);
     }
 
     // =====================================================================
@@ -202,337 +679,1681 @@ public class ChatApp implements Application
      */
     @Override
     public void deliver(Id id, Message message)
+    {
+        metrics.delivered(message);
+        
+        if (!handlers.dispatch(message)) {
+            System.err.println("No handler for message: " + message);
+        }
+    }
+
+    /**
+     * Registers the delivery handler of a message type, replacing the
+     * previous one. The message type has to be known to the
+     * {@see ChatMessageDeserializer} too.
+     * 
+     * @param type Type code of the messages
+     * @param messageClass
+     * @param handler 
+     */
+    public <T extends Message> void registerMessageHandler(short type, Class<T> messageClass, MessageHandler<T> handler)
+    {
+        handlers.register(type, messageClass, handler);
+    }
+
+    /**
+     * Registers the handlers of the chat protocol.
+     */
+    private void registerHandlers()
     {
         // Private message for me??
-        if (message instanceof PrivateMsg) {
-            PrivateMsg msg = (PrivateMsg) message;
-            // check recipient
-            if (!getNodeId().equals(msg.getTo())) {
-                // wrong recipient!
-                return;
-            }
-            synchronized (chatAppListenerLock) {
-                if (chatAppListener != null) {
-                    chatAppListener.onMessageDelivered(msg);
+        registerMessageHandler(PrivateMsg.TYPE, PrivateMsg.class, new MessageHandler<PrivateMsg>()
+        {
+            @Override
+            public void handle(PrivateMsg msg)
+            {
+                // check recipient
+                if (!getNodeId().equals(msg.getTo())) {
+                    // wrong recipient!
+                    metrics.misdelivered();
+                    return;
+                }
+                presence.seen(msg.getFromName());
+                if (msg.isSequenced()) {
+                    conversations.received(msg);
+                } else {
+                    deliverPrivateMsg(msg);
                 }
             }
-            return;
-
-        }
+        });
 
-        // Channel message for me??
-        if (message instanceof ChannelMsg) {
-            ChannelMsg msg = (ChannelMsg) message;
-            // check recipient
-            if (!getNodeId().equals(msg.getTo())) {
-                // wrong recipient!
-                return;
-            }
-            synchronized (chatAppListenerLock) {
-                if (chatAppListener != null) {
-                    chatAppListener.onMessageDelivered(msg);
+        // File for me??
+        registerMessageHandler(FileOfferMsg.TYPE, FileOfferMsg.class, new MessageHandler<FileOfferMsg>()
+        {
+            @Override
+            public void handle(FileOfferMsg offer)
+            {
+                // check recipient
+                if (!getNodeId().equals(offer.getTo())) {
+                    // wrong recipient!
+                    metrics.misdelivered();
+                    return;
                 }
+                presence.seen(offer.getFromName());
+                transfers.offered(offer);
             }
-            return;
-        }
-
-        // Channel broadcast for me to announce?
-        if (message instanceof ChannelBroadcastMsg) {
-            final ChannelBroadcastMsg broadcast = (ChannelBroadcastMsg) message;
-            
-            // check that the channel info is prepared and only then broadcast
-            readyChannelOwnership(broadcast.getChannelName(), new ChannelOwnerRunnable() {
+        });
 
-                @Override
-                public void run()
+        // Ack of our private messages?
+        registerMessageHandler(PrivateAckMsg.TYPE, PrivateAckMsg.class, new MessageHandler<PrivateAckMsg>()
+        {
+            @Override
+            public void handle(PrivateAckMsg ack)
+            {
+                // check recipient
+                if (!getNodeId().equals(ack.getTo())) {
+                    // wrong recipient!
+                    metrics.misdelivered();
+                    return;
+                }
+                conversations.acked(ack);
+            }
+        });
+
+        // Channel message for me??
+        registerMessageHandler(ChannelMsg.TYPE, ChannelMsg.class, new MessageHandler<ChannelMsg>()
+        {
+            @Override
+            public void handle(ChannelMsg msg)
+            {
+                deliverChannelMsg(msg);
+            }
+        });
+
+        // Several channel messages for me??
+        registerMessageHandler(ChannelMsgBundle.TYPE, ChannelMsgBundle.class, new MessageHandler<ChannelMsgBundle>()
+        {
+            @Override
+            public void handle(ChannelMsgBundle bundle)
+            {
+                // check recipient
+                if (!getNodeId().equals(bundle.getTo())) {
+                    // wrong recipient!
+                    metrics.misdelivered();
+                    return;
+                }
+                // unpack in the original order
+                for (ChannelMsg msg : bundle.getMessages()) {
+                    deliverChannelMsg(msg);
+                }
+            }
+        });
+
+        // Channel broadcast for me to announce?
+        registerMessageHandler(ChannelBroadcastMsg.TYPE, ChannelBroadcastMsg.class, new MessageHandler<ChannelBroadcastMsg>()
+        {
+            @Override
+            public void handle(ChannelBroadcastMsg broadcast)
+            {
+                deliverChannelBroadcastMsg(broadcast);
+            }
+        });
+
+        // Owner is refusing our broadcasts?
+        registerMessageHandler(ThrottleMsg.TYPE, ThrottleMsg.class, new MessageHandler<ThrottleMsg>()
+        {
+            @Override
+            public void handle(ThrottleMsg msg)
+            {
+                // check recipient
+                if (!getNodeId().equals(msg.getTo())) {
+                    // wrong recipient!
+                    metrics.misdelivered();
+                    return;
+                }
+                String why;
+                switch (msg.getReason()) {
+                    case ThrottleMsg.REASON_SENDER:
+                        why = "you are sending too fast";
+                        break;
+                    case ThrottleMsg.REASON_CHANNEL:
+                        why = "the channel is too busy";
+                        break;
+                    case ThrottleMsg.REASON_UNAVAILABLE:
+                        why = "its owner can't load it";
+                        break;
+                    default:
+                        why = "its owner is overloaded";
+                }
+                listeners.println("[i] Channel '" + msg.getChannelName() + "' dropped your request, " + why
+                        + ". Try again in " + msg.getRetryAfter() + " ms.");
+            }
+        });
+
+        // Channel administration message?
+        registerMessageHandler(ChannelAdminMsg.TYPE, ChannelAdminMsg.class, new MessageHandler<ChannelAdminMsg>()
+        {
+            @Override
+            public void handle(ChannelAdminMsg admin)
+            {
+                switch (admin.getActionPhase()) {
+                    case ChannelAdminMsg.ACTION_PHASE_REQUEST:
+                        // request? --> we own the channel
+                        handleAdminRequest(admin);
+                        break;
+                    case ChannelAdminMsg.ACTION_PHASE_ACCEPTED:
+                        handleAdminAccepted(admin);
+                        break;
+                    case ChannelAdminMsg.ACTION_PHASE_MIGRATE:
+                        // member moved between shards
+                        handleAdminMigrate(admin);
+                        break;
+                    case ChannelAdminMsg.ACTION_PHASE_ANNOUNCE:
+                        handleAdminAnnounce(admin);
+                        break;
+                    default:
+                        System.err.println("Unknown admin message phase: " + admin);
+                }
+            }
+        });
+    }
+
+    /**
+     * Fans the broadcast out to the channel members, as the channel owner.
+     * The coordinator of a sharded channel forwards it to the shard owners,
+     * which fan it out to their slices.
+     * 
+     * @param broadcast 
+     */
+    private void deliverChannelBroadcastMsg(final ChannelBroadcastMsg broadcast)
+    {
+        // forwarded by the coordinator? the shard comes off the wire, admit it again
+        if (broadcast.getShard() != ChannelAdminMsg.SHARD_COORDINATOR) {
+            Id lookupKey = getChannelShardId(broadcast.getChannelName(), broadcast.getShard());
+            if (!admit(broadcast, lookupKey)) {
+                return;
+            }
+            readyChannelOwnership(lookupKey, broadcast.getChannelName(), new ChannelOwnerRunnable() {
+
+                @Override
+                public void run()
+                {
+                    fanOut(content, broadcast);
+                }
+
+                @Override
+                public void failed()
                 {
-                    // ok, broadcast it to all!
-                    for (String clientName : content.getClients()) {
-                        Message msg = new ChannelMsg(broadcast.getClientId(),
-                                broadcast.getClientName(),
-                                getClientId(clientName),
-                                clientName,
-                                broadcast.getChannelId(),
-                                broadcast.getChannelName(),
-                                broadcast.getText());
-                        synchronized (endpointLock) {
-                            endpoint.route(getClientId(clientName), msg, null);
+                    refuse(broadcast.getClientId(), broadcast.getChannelId(), broadcast.getChannelName());
+                }
+
+            });
+            return;
+        }
+        
+        // bound our work before doing any
+        if (!admit(broadcast, broadcast.getChannelId())) {
+            return;
+        }
+        
+        // check that the channel info is prepared and only then broadcast
+        readyChannelOwnership(broadcast.getChannelName(), new ChannelOwnerRunnable() {
+
+            @Override
+            public void run()
+            {
+                forgetRetiredShards(content);
+                // tree mode? publish it and let Scribe do the fan-out
+                if (content.isMulticast()) {
+                    metrics.fanOut(content.getClients().size());
+                    final ChannelTopicContent published = new ChannelTopicContent(broadcast.getClientId(),
+                            broadcast.getClientName(),
+                            broadcast.getChannelId(),
+                            broadcast.getChannelName(),
+                            codec.encode(broadcast.getPayload()));
+                    // Scribe lives on the selector thread
+                    node.getEnvironment().getSelectorManager().invoke(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            scribe.publish(getChannelTopic(broadcast.getChannelName()), published);
                         }
+                    });
+                    return;
+                }
+                // sharded? let the shard owners do the work
+                for (int shard = 0; shard < content.getFanOutShards(); shard++) {
+                    route(getChannelShardId(broadcast.getChannelName(), shard), broadcast.toShard(shard), null);
+                }
+                // whoever is (still) here
+                fanOut(content, broadcast);
+            }
+
+            @Override
+            public void failed()
+            {
+                refuse(broadcast.getClientId(), broadcast.getChannelId(), broadcast.getChannelName());
+            }
+
+        });
+    }
+
+    /**
+     * Runs the broadcast through the owner's admission, telling the sender
+     * when it is rejected.
+     * 
+     * @param broadcast
+     * @param lookupKey Id of the channel (or the shard) owned
+     * @return true if admitted
+     */
+    private boolean admit(ChannelBroadcastMsg broadcast, Id lookupKey)
+    {
+        long now = now();
+        byte verdict = admission.admit(broadcast.getClientId(), broadcast.getClientName(), broadcast.getShard(),
+                lookupKey, outbound.getDepth(), now);
+        if (verdict == OwnerAdmission.ADMITTED) {
+            return true;
+        }
+        metrics.throttled(verdict);
+        long retryAfter = admission.throttleNotice(broadcast.getClientId(), broadcast.getClientName(),
+                broadcast.getShard(), lookupKey, verdict, now);
+        if (retryAfter >= 0) {
+            route(broadcast.getClientId(), new ThrottleMsg(broadcast.getClientId(),
+                    broadcast.getChannelId(), broadcast.getChannelName(), verdict, retryAfter), null);
+        }
+        return false;
+    }
+
+    /**
+     * Sends the broadcast to all the clients of the (shard) content.
+     */
+    private void fanOut(ChannelContent content, ChannelBroadcastMsg broadcast)
+    {
+        metrics.fanOut(content.getClients().size());
+        // compressed once, shipped to everybody (the sender has usually done it already)
+        ChatText payload = codec.encode(broadcast.getPayload());
+        // ok, broadcast it to all!
+        for (String clientName : content.getClients()) {
+            ChannelMsg msg = new ChannelMsg(broadcast.getClientId(),
+                    broadcast.getClientName(),
+                    getClientId(clientName),
+                    clientName,
+                    broadcast.getChannelId(),
+                    broadcast.getChannelName(),
+                    payload);
+            batcher.send(msg);
+        }
+    }
+
+    /**
+     * Carries out a join / leave / mode / reshard request, as the channel
+     * owner (or the owner of the shard the request was passed on to).
+     * 
+     * @param admin 
+     */
+    private void handleAdminRequest(final ChannelAdminMsg admin)
+    {
+        final Id lookupKey = getChannelShardId(admin.getChannelName(), admin.getShard());
+        switch (admin.getActionType()) {
+            case ChannelAdminMsg.ACTION_TYPE_JOIN:
+                // client wants to join, ok!
+                // check that the channel info is prepared and only then alter it
+                readyChannelOwnership(lookupKey, admin.getChannelName(), new ChannelOwnerRunnable() {
+
+                    @Override
+                    public void run()
+                    {
+                        // tree mode? the client has to sit in the channel tree
+                        if (content.isMulticast()) {
+                            announceMode(content, admin.getClientName());
+                        }
+                        // sharded? pass it on to the client's shard
+                        if (passToShard(content, admin)) {
+                            return;
+                        }
+                        // add to the list
+                        ChannelContent delta = content.join(admin.getClientName(),
+                                node.getEnvironment().getRandomSource().nextLong());
+                        // update the content
+                        storeChannelContent(content, delta);
+                        // inform the client
+                        admin.setActionPhase(ChannelAdminMsg.ACTION_PHASE_ACCEPTED);
+                        route(getClientId(admin.getClientName()), admin, null);
                     }
+
+                    @Override
+                    public void failed()
+                    {
+                        refuse(admin.getClientId(), admin.getChannelId(), admin.getChannelName());
+                    }
+
+                });
+                break;
+            case ChannelAdminMsg.ACTION_TYPE_LEAVE:
+                // client wants to leave...ok
+                // check that the channel info is prepared and only then alter it
+                readyChannelOwnership(lookupKey, admin.getChannelName(), new ChannelOwnerRunnable() {
+
+                    @Override
+                    public void run()
+                    {
+                        // sharded? pass it on to the client's shard
+                        if (passToShard(content, admin)) {
+                            return;
+                        }
+                        // remove from the list
+                        ChannelContent delta = content.leave(admin.getClientName());
+                        // update the content
+                        storeChannelContent(content, delta);
+                        // inform the client
+                        admin.setActionPhase(ChannelAdminMsg.ACTION_PHASE_ACCEPTED);
+                        route(getClientId(admin.getClientName()), admin, null);
+                    }
+
+                    @Override
+                    public void failed()
+                    {
+                        refuse(admin.getClientId(), admin.getChannelId(), admin.getChannelName());
+                    }
+
+                });
+                break;
+            case ChannelAdminMsg.ACTION_TYPE_MODE_TREE:
+            case ChannelAdminMsg.ACTION_TYPE_MODE_UNICAST:
+                // client wants to switch the fan-out mode
+                readyChannelOwnership(lookupKey, admin.getChannelName(), new ChannelOwnerRunnable() {
+
+                    @Override
+                    public void run()
+                    {
+                        boolean tree = admin.getActionType() == ChannelAdminMsg.ACTION_TYPE_MODE_TREE;
+                        if (admin.getShard() == ChannelAdminMsg.SHARD_COORDINATOR) {
+                            content.setMulticast(tree);
+                            // the mode travels only with full snapshots
+                            storeChannelContent(content, null);
+                            // the shard owners tell their members
+                            for (int shard = 0; shard < content.getFanOutShards(); shard++) {
+                                ChannelAdminMsg forward = new ChannelAdminMsg(admin.getClientId(),
+                                        admin.getClientName(), admin.getChannelId(), admin.getChannelName(),
+                                        admin.getActionType(), ChannelAdminMsg.ACTION_PHASE_REQUEST);
+                                forward.setShard(shard);
+                                route(getChannelShardId(admin.getChannelName(), shard), forward, null);
+                            }
+                            // inform the client
+                            admin.setActionPhase(ChannelAdminMsg.ACTION_PHASE_ACCEPTED);
+                            route(getClientId(admin.getClientName()), admin, null);
+                        }
+                        // members (un)subscribe the channel tree
+                        for (String member : content.getClients()) {
+                            announceMode(admin.getChannelId(), admin.getChannelName(), member, tree);
+                        }
+                    }
+
+                    @Override
+                    public void failed()
+                    {
+                        refuse(admin.getClientId(), admin.getChannelId(), admin.getChannelName());
+                    }
+
+                });
+                break;
+            case ChannelAdminMsg.ACTION_TYPE_RESHARD:
+                // client wants the members spread over a different number of shards
+                readyChannelOwnership(admin.getChannelName(), new ChannelOwnerRunnable() {
+
+                    @Override
+                    public void run()
+                    {
+                        int count = Math.max(1, Math.min(admin.getShardCount(), maxShards));
+                        int previous = content.getShards();
+                        if (count != previous) {
+                            content.reshard(count, now());
+                            // the shard count travels only with full snapshots
+                            storeChannelContent(content, null);
+                            // every old shard hands over the members which moved
+                            if (previous == 1) {
+                                rebalance(getChannelId(admin.getChannelName()), content,
+                                        ChannelAdminMsg.SHARD_COORDINATOR, count);
+                            } else {
+                                for (int shard = 0; shard < previous; shard++) {
+                                    ChannelAdminMsg rebalance = new ChannelAdminMsg(getNodeId(), nickname,
+                                            admin.getChannelId(), admin.getChannelName(),
+                                            ChannelAdminMsg.ACTION_TYPE_REBALANCE, ChannelAdminMsg.ACTION_PHASE_REQUEST);
+                                    rebalance.setShard(shard);
+                                    rebalance.setShardCount(count);
+                                    route(getChannelShardId(admin.getChannelName(), shard), rebalance, null);
+                                }
+                            }
+                        }
+                        // inform the client
+                        admin.setShardCount(count);
+                        admin.setActionPhase(ChannelAdminMsg.ACTION_PHASE_ACCEPTED);
+                        route(getClientId(admin.getClientName()), admin, null);
+                    }
+
+                    @Override
+                    public void failed()
+                    {
+                        refuse(admin.getClientId(), admin.getChannelId(), admin.getChannelName());
+                    }
+
+                });
+                break;
+            case ChannelAdminMsg.ACTION_TYPE_REBALANCE:
+                // coordinator changed the shard count
+                readyChannelOwnership(lookupKey, admin.getChannelName(), new ChannelOwnerRunnable() {
+
+                    @Override
+                    public void run()
+                    {
+                        rebalance(lookupKey, content, admin.getShard(), admin.getShardCount());
+                    }
+
+                    @Override
+                    public void failed()
+                    {
+                        System.err.println("Dropped " + admin + ", the content can't be loaded");
+                    }
+
+                });
+                break;
+            default:
+                System.err.println("Unknown admin message type: " + admin);
+        }
+    }
+
+    /**
+     * Tells the client its request could not be carried out, the channel's
+     * content can't be looked up.
+     */
+    private void refuse(Id clientId, Id channelId, String channelName)
+    {
+        route(clientId, new ThrottleMsg(clientId, channelId, channelName,
+                ThrottleMsg.REASON_UNAVAILABLE, LOOKUP_RETRY_DELAY), null);
+    }
+
+    /**
+     * Passes a join / leave request received by the coordinator on to the
+     * owner of the client's shard. A leave also goes to the client's shard
+     * from before the last reshard, it may not have been moved yet.
+     * 
+     * @param content Coordinator's content
+     * @param admin
+     * @return false if the request is to be handled right here
+     */
+    private boolean passToShard(ChannelContent content, ChannelAdminMsg admin)
+    {
+        if (admin.getShard() != ChannelAdminMsg.SHARD_COORDINATOR) {
+            return false;
+        }
+        String channelName = admin.getChannelName();
+        forgetRetiredShards(content);
+        int retired = content.getRetiredShards();
+        if (admin.getActionType() == ChannelAdminMsg.ACTION_TYPE_LEAVE && retired > 1) {
+            ChannelAdminMsg stale = new ChannelAdminMsg(admin.getClientId(), admin.getClientName(),
+                    admin.getChannelId(), channelName,
+                    ChannelAdminMsg.ACTION_TYPE_LEAVE, ChannelAdminMsg.ACTION_PHASE_MIGRATE);
+            stale.setShard(ChannelContent.shardOf(admin.getClientName(), retired));
+            route(getChannelShardId(channelName, stale.getShard()), stale, null);
+        }
+        if (content.getShards() == 1) {
+            return false;
+        }
+        admin.setShard(ChannelContent.shardOf(admin.getClientName(), content.getShards()));
+        route(getChannelShardId(channelName, admin.getShard()), admin, null);
+        return true;
+    }
+
+    /**
+     * Stops serving the retired shards of the coordinator's content once
+     * the grace period since the reshard is over.
+     * 
+     * @param content Coordinator's content
+     */
+    private void forgetRetiredShards(ChannelContent content)
+    {
+        if (content.forgetRetiredShards(now(), reshardGrace)) {
+            // the shard counts travel only with full snapshots
+            storeChannelContent(content, null);
+        }
+    }
+
+    /**
+     * Hands the members which belong elsewhere under the new shard count
+     * over to their new shards. Runs on the shard's stripe in chunks, so that
+     * other work of the channel gets its turn meanwhile.
+     * 
+     * @param lookupKey Id of this shard
+     * @param content This shard's content
+     * @param shard Index of this shard
+     * @param count New shard count
+     */
+    private void rebalance(final Id lookupKey, final ChannelContent content, final int shard, final int count)
+    {
+        final List<String> members = new ArrayList<String>(content.getClients());
+        ownerExecutor.execute(lookupKey, new Runnable()
+        {
+            private int next = 0;
+
+            @Override
+            public void run()
+            {
+                int end = Math.min(next + REBALANCE_CHUNK, members.size());
+                boolean moved = false;
+                for (; next < end; next++) {
+                    String member = members.get(next);
+                    int target = count > 1 ? ChannelContent.shardOf(member, count) : ChannelAdminMsg.SHARD_COORDINATOR;
+                    if (target == shard) {
+                        continue;
+                    }
+                    content.leave(member);
+                    moved = true;
+                    ChannelAdminMsg migrate = new ChannelAdminMsg(getClientId(member), member,
+                            content.getId(), content.getName(),
+                            ChannelAdminMsg.ACTION_TYPE_JOIN, ChannelAdminMsg.ACTION_PHASE_MIGRATE);
+                    migrate.setShard(target);
+                    route(getChannelShardId(content.getName(), target), migrate, null);
+                }
+                if (moved) {
+                    storeChannelContent(content, null);
+                }
+                if (next < members.size()) {
+                    ownerExecutor.execute(lookupKey, this);
+                }
+            }
+        });
+    }
+
+    /**
+     * Tells the member the channel's fan-out mode.
+     * 
+     * @param content Coordinator's content
+     * @param member 
+     */
+    private void announceMode(ChannelContent content, String member)
+    {
+        announceMode(content.getId(), content.getName(), member, content.isMulticast());
+    }
+
+    private void announceMode(Id channelId, String channelName, String member, boolean tree)
+    {
+        route(getClientId(member), new ChannelAdminMsg(getClientId(member), member, channelId, channelName,
+                tree ? ChannelAdminMsg.ACTION_TYPE_MODE_TREE : ChannelAdminMsg.ACTION_TYPE_MODE_UNICAST,
+                ChannelAdminMsg.ACTION_PHASE_ANNOUNCE), null);
+    }
+
+    /**
+     * Takes over (or drops) a member moved between shards.
+     * 
+     * @param admin 
+     */
+    private void handleAdminMigrate(final ChannelAdminMsg admin)
+    {
+        Id lookupKey = getChannelShardId(admin.getChannelName(), admin.getShard());
+        readyChannelOwnership(lookupKey, admin.getChannelName(), new ChannelOwnerRunnable() {
+
+            @Override
+            public void run()
+            {
+                ChannelContent delta;
+                if (admin.getActionType() == ChannelAdminMsg.ACTION_TYPE_JOIN) {
+                    delta = content.join(admin.getClientName(), node.getEnvironment().getRandomSource().nextLong());
+                } else {
+                    delta = content.leave(admin.getClientName());
+                }
+                storeChannelContent(content, delta);
+            }
+
+            @Override
+            public void failed()
+            {
+                System.err.println("Dropped " + admin + ", the content can't be loaded");
+            }
+
+        });
+    }
+
+    /**
+     * Applies the owner's acceptance of our request.
+     * 
+     * @param admin 
+     */
+    private void handleAdminAccepted(ChannelAdminMsg admin)
+    {
+        // was this our message?
+        if (!nickname.equals(admin.getClientName())) {
+            // nope, discard it
+            metrics.misdelivered();
+            return;
+        }
+        // join / leave the channel
+        switch (admin.getActionType()) {
+            case ChannelAdminMsg.ACTION_TYPE_JOIN:
+                // the owner tells us separately when the channel is in tree mode
+                listeners.println("Joined channel '" + admin.getChannelName() + "'.");
+                break;
+            case ChannelAdminMsg.ACTION_TYPE_LEAVE:
+                scribe.unsubscribe(getChannelTopic(admin.getChannelName()), this);
+                listeners.println("Left channel '" + admin.getChannelName() + "'.");
+                break;
+            case ChannelAdminMsg.ACTION_TYPE_MODE_TREE:
+            case ChannelAdminMsg.ACTION_TYPE_MODE_UNICAST:
+                listeners.println("Channel '" + admin.getChannelName() + "' switched to "
+                        + (admin.getActionType() == ChannelAdminMsg.ACTION_TYPE_MODE_TREE ? "tree" : "unicast")
+                        + " mode.");
+                break;
+            case ChannelAdminMsg.ACTION_TYPE_RESHARD:
+                listeners.println("Channel '" + admin.getChannelName() + "' now has "
+                        + admin.getShardCount() + " shard(s).");
+                break;
+            default:
+                System.err.println("Unknown admin message type: " + admin);
+        }
+    }
+
+    /**
+     * Joins or leaves the channel tree as the owner tells us the channel's
+     * fan-out mode.
+     * 
+     * @param admin 
+     */
+    private void handleAdminAnnounce(ChannelAdminMsg admin)
+    {
+        // was this our message?
+        if (!nickname.equals(admin.getClientName())) {
+            // nope, discard it
+            metrics.misdelivered();
+            return;
+        }
+        if (admin.getActionType() == ChannelAdminMsg.ACTION_TYPE_MODE_TREE) {
+            scribe.subscribe(getChannelTopic(admin.getChannelName()), this);
+        } else {
+            scribe.unsubscribe(getChannelTopic(admin.getChannelName()), this);
+        }
+    }
+
+    /**
+     * Hands a private message over to the listener.
+     * 
+     * @param msg 
+     */
+    void deliverPrivateMsg(PrivateMsg msg)
+    {
+        history.append(msg, now());
+        listeners.messageDelivered(msg);
+    }
+
+    /**
+     * Tells the user that the private messages could not be delivered.
+     * 
+     * @param name Recipient name
+     * @param count Number of messages lost
+     */
+    void privateMsgsFailed(String name, int count)
+    {
+        listeners.println("Could not deliver " + count + " message(s) to '" + name + "'.");
+    }
+
+    /**
+     * Hands a channel message over to the listener.
+     * 
+     * @param msg 
+     */
+    private void deliverChannelMsg(ChannelMsg msg)
+    {
+        // check recipient
+        if (!getNodeId().equals(msg.getTo())) {
+            // wrong recipient!
+            metrics.misdelivered();
+            return;
+        }
+        history.append(msg, now());
+        listeners.messageDelivered(msg);
+    }
+
+    // =====================================================================
+    
+    /**
+     * Called when you hear about a new neighbor.
+     */
+    @Override
+    public void update(NodeHandle handle, boolean joined)
+    {
+        // leaf set changed, we may not be the owner of our channels anymore
+        ownershipEpoch.incrementAndGet();
+        // ...or we may have become the owner of the replicas we hold
+        if (warmStandby && takeoverScheduled.compareAndSet(false, true)) {
+            // a burst of changes is handled at once
+            node.getEnvironment().getSelectorManager().invoke(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    takeoverScheduled.set(false);
+                    takeOverReplicas();
                 }
-                
             });
         }
+        
+        if (joined) {
+            handleCache.learn(handle);
+            metrics.neighborJoined();
+            listeners.nodeConnected(node);
+        } else {
+            handleCache.evict(handle.getId());
+            metrics.neighborLeft();
+            listeners.nodeDisconnected(node);
+        }
+    }
 
-        // Channel administration message?
-        if (message instanceof ChannelAdminMsg) {
-            final ChannelAdminMsg admin = (ChannelAdminMsg) message;
+    // =====================================================================
+    
+    /**
+     * Called when a message is published to a channel tree we are subscribed to.
+     */
+    @Override
+    public void deliver(Topic topic, ScribeContent content)
+    {
+        if (!(content instanceof ChannelTopicContent)) {
+            return;
+        }
+        ChannelTopicContent published = (ChannelTopicContent) content;
+        // this copy is for us
+        ChannelMsg msg = new ChannelMsg(published.getFrom(),
+                published.getFromName(),
+                getNodeId(),
+                nickname,
+                published.getChannelId(),
+                published.getChannelName(),
+                published.getPayload());
+        deliverChannelMsg(msg);
+    }
 
-            // request? --> we own the channel
-            if (ChannelAdminMsg.ACTION_PHASE_REQUEST.equals(admin.getActionPhase())) {
-                // join / leave request
-                if (ChannelAdminMsg.ACTION_TYPE_JOIN.equals(admin.getActionType())) {
-                    // client wants to join, ok!
-                    // check that the channel info is prepared and only then alter it
-                    readyChannelOwnership(admin.getChannelName(), new ChannelOwnerRunnable() {
+    @Override
+    public boolean anycast(Topic topic, ScribeContent content)
+    {
+        return false;
+    }
 
-                        @Override
-                        public void run()
+    @Override
+    public void childAdded(Topic topic, NodeHandle child)
+    {
+    }
+
+    @Override
+    public void childRemoved(Topic topic, NodeHandle child)
+    {
+    }
+
+    @Override
+    public void subscribeFailed(Topic topic)
+    {
+        System.err.println("Error subscribing to " + topic);
+    }
+
+    // =====================================================================
+    
+    /**
+     * Called when a message travels along our path.
+     */
+    @Override
+    public boolean forward(RouteMessage message)
+    {
+        metrics.forwarded();
+        RouteObserver observer = routeObserver;
+        if (observer != null) {
+            try {
+                observer.forwarded(message.getMessage(endpoint.getDeserializer()));
+            } catch (IOException ex) {
+                System.err.println("Error reading routed message: " + ex.getMessage());
+            }
+        }
+        return true;
+    }
+
+    // =====================================================================
+    
+    /**
+     * Returns an Id for the given client.
+     * 
+     * This method generates an Id using the given feed. The client does NOT
+     * need to exist, no checking is performed.
+     * 
+     * @param clientName
+     * @return 
+     */
+    public Id getClientId(String clientName)
+    {
+        return new HashNodeIdFactory(clientName, idVersion).generateNodeId();
+    }
+
+    /**
+     * Returns an Id for the given channel.
+     * 
+     * @param channelName
+     * @return 
+     */
+    public Id getChannelId(String channelName)
+    {
+        return idFactory.buildId(channelName);
+    }
+
+    /**
+     * Returns the Id under which a shard of the channel is stored.
+     * 
+     * @param channelName
+     * @param shard Shard index, or ChannelAdminMsg.SHARD_COORDINATOR
+     * @return 
+     */
+    public Id getChannelShardId(String channelName, int shard)
+    {
+        if (shard == ChannelAdminMsg.SHARD_COORDINATOR) {
+            return getChannelId(channelName);
+        }
+        return idFactory.buildId(channelName + "#shard" + shard);
+    }
+
+    /**
+     * Returns the Scribe topic of the given channel.
+     * 
+     * @param channelName
+     * @return 
+     */
+    public Topic getChannelTopic(String channelName)
+    {
+        return new Topic(getChannelId(channelName));
+    }
+
+    // =====================================================================
+    
+    /**
+     * Interprets the given string input.
+     * 
+     * @param input 
+     */
+    public void handleCommand(String input)
+    {
+        if ("quit".equals(input)) {
+            listeners.quit();
+        } else if ("help".equals(input)) {
+            listeners.println("List of commands:");
+            listeners.println("quit - terminates the application");
+            listeners.println("join <channel> - joins the given channel");
+            listeners.println("leave <channel> - leaves the given channel");
+            listeners.println("send <channel> <message> - send the message to the given channel");
+            listeners.println("msg <user> <message> - send the message to the given user");
+            listeners.println("sendfile <user> <path> - send the file to the given user");
+            listeners.println("files - list the files offered to you");
+            listeners.println("getfile <n> - receive the offered file");
+            listeners.println("dropfile <n> - decline the offered file");
+            listeners.println("mode <channel> <unicast|tree> - switch the channel's fan-out mode");
+            listeners.println("reshard <channel> <n> - spread the channel's members over n owners");
+            listeners.println("history <channel|@user> [n] - show the last n messages");
+            listeners.println("members <channel> - list the members of the channel");
+            listeners.println("stats - show node statistics");
+        } else if (input.startsWith("join ")) {
+            String channelName = input.substring("join ".length());
+            sendJoinRequest(channelName);
+        } else if (input.startsWith("leave ")) {
+            String channelName = input.substring("leave ".length());
+            sendLeaveRequest(channelName);
+        } else if (input.startsWith("mode ")) {
+            String[] parts = input.split(" ", 3);
+            String channelName = parts[1];
+            String mode = parts[2];
+            if ("tree".equals(mode)) {
+                sendModeRequest(channelName, true);
+            } else if ("unicast".equals(mode)) {
+                sendModeRequest(channelName, false);
+            } else {
+                listeners.println("Mode unknown. Use 'unicast' or 'tree'.");
+            }
+        } else if (input.startsWith("reshard ")) {
+            String[] parts = input.split(" ", 3);
+            try {
+                sendReshardRequest(parts[1], Integer.parseInt(parts[2].trim()));
+            } catch (RuntimeException ex) {
+                listeners.println("Usage: reshard <channel> <n>");
+            }
+        } else if (input.startsWith("members ")) {
+            final String channelName = input.substring("members ".length());
+            readChannelContent(channelName, new Continuation<ChannelContent, Exception>()
+            {
+                @Override
+                public void receiveResult(ChannelContent content)
+                {
+                    if (content == null) {
+                        listeners.println("Channel '" + channelName + "' is empty.");
+                        return;
+                    }
+                    final Set<String> members = new TreeSet<String>(content.getClients());
+                    final int shards = content.getFanOutShards();
+                    if (shards == 0) {
+                        printMembers(channelName, members);
+                        return;
+                    }
+                    // sharded, collect the slices
+                    final AtomicInteger pending = new AtomicInteger(shards);
+                    for (int shard = 0; shard < shards; shard++) {
+                        readChannelContent(getChannelShardId(channelName, shard), new Continuation<ChannelContent, Exception>()
                         {
-                            // add to the list
-                            content.getClients().add(admin.getClientName());
-                            // update the content
-                            pastChannels.insert(content, new Continuation<Boolean[], Exception>() {
-                                
-                                @Override
-                                public void receiveResult(Boolean[] results) {
-                                    // TODO: react to errors
-//                                  int numSuccessfulStores = 0;
-//                                  for (int ctr = 0; ctr < results.length; ctr++) {
-//                                    if (results[ctr].booleanValue()) { 
-//                                      numSuccessfulStores++;
-//                                    }
-//                                  }
-//                                  System.out.println(content + " successfully stored at " + 
-//                                      numSuccessfulStores + " locations.");
+                            @Override
+                            public void receiveResult(ChannelContent part)
+                            {
+                                synchronized (members) {
+                                    if (part != null) {
+                                        members.addAll(part.getClients());
+                                    }
+                                    done();
                                 }
+                            }
 
-                                @Override
-                                public void receiveException(Exception result) {
-                                  System.err.println("Error storing "+content);
-                                  result.printStackTrace();
+                            @Override
+                            public void receiveException(Exception result)
+                            {
+                                synchronized (members) {
+                                    listeners.println("Cannot read a shard of '" + channelName + "': "
+                                            + result.getMessage());
+                                    done();
+                                }
+                            }
+                            
+                            private void done()
+                            {
+                                if (pending.decrementAndGet() == 0) {
+                                    printMembers(channelName, members);
+                                }
+                            }
+                        });
+                    }
+                }
+
+                @Override
+                public void receiveException(Exception result)
+                {
+                    listeners.println("Cannot list '" + channelName + "': " + result.getMessage());
+                }
+            });
+        } else if ("stats".equals(input)) {
+            listeners.println("Channel reads: " + metrics.getLocalReads() + " local, "
+                    + metrics.getReplicaReads() + " replica, " + metrics.getRootReads() + " root");
+            listeners.println("Past: " + metrics.getPastLookupCount() + " lookups ("
+                    + String.format("%.1f", metrics.getPastLookupMeanMillis()) + " ms mean, "
+                    + metrics.getPastLookupFailures() + " failed), " + metrics.getPastInsertCount() + " inserts ("
+                    + String.format("%.1f", metrics.getPastInsertMeanMillis()) + " ms mean, "
+                    + metrics.getPastInsertFailures() + " failed)");
+            listeners.println("Broadcasts rejected: " + metrics.getThrottledSender() + " sender limit, "
+                    + metrics.getThrottledChannel() + " channel limit, " + metrics.getShed() + " shed");
+            listeners.println("Outbound queue: " + outbound.getDepth() + " queued (max "
+                    + outbound.getMaxDepth() + "), " + outbound.getRoutedCount() + " routed, "
+                    + outbound.getDroppedCount() + " dropped");
+            listeners.println("Private messages: " + conversations.getInFlightCount() + " in flight, "
+                    + conversations.getRetransmittedCount() + " retransmitted, "
+                    + conversations.getFailedCount() + " undeliverable");
+            listeners.println("Compression: " + codec.getCompressedCount() + " texts compressed to "
+                    + String.format("%.0f", 100 * codec.getRatio()) + " %, " + codec.getSavedBytes()
+                    + " bytes saved");
+            listeners.println("File transfers: " + transfers.getUploadCount() + " sending, "
+                    + transfers.getDownloadCount() + " receiving, " + transfers.getBytesSent() + " bytes sent, "
+                    + transfers.getBytesReceived() + " received");
+            listeners.println("Route cache: " + handleCache.getSize() + "/" + handleCache.getCapacity()
+                    + " handles, " + metrics.getDirectRouted() + " sent directly");
+            listeners.println("Presence: " + presence.getKnownBuckets() + "/" + PresenceIndex.BUCKETS
+                    + " buckets known, " + presence.getRejectedCount() + " sends to offline users refused");
+        } else if (input.startsWith("history ")) {
+            String[] parts = input.split(" ", 3);
+            int n = 20;
+            if (parts.length > 2) {
+                try {
+                    n = Integer.parseInt(parts[2].trim());
+                } catch (NumberFormatException ex) {
+                    listeners.println("Invalid count '" + parts[2] + "'.");
+                    return;
+                }
+            }
+            printHistory(parts[1], n);
+        } else if (input.startsWith("msg ")) {
+            String[] parts = input.split(" ", 3);
+            String clientName = parts[1];
+            String msg = parts[2];
+            sendPrivateMsg(clientName, msg);
+        } else if (input.startsWith("sendfile ")) {
+            String[] parts = input.split(" ", 3);
+            if (parts.length < 3) {
+                listeners.println("Usage: sendfile <user> <path>");
+                return;
+            }
+            sendFile(parts[1], parts[2]);
+        } else if ("files".equals(input)) {
+            transfers.printOffers();
+        } else if (input.startsWith("getfile ") || input.startsWith("dropfile ")) {
+            String[] parts = input.split(" ", 2);
+            int number;
+            try {
+                number = Integer.parseInt(parts[1].trim());
+            } catch (NumberFormatException ex) {
+                listeners.println("Invalid offer number '" + parts[1] + "'.");
+                return;
+            }
+            if ("getfile".equals(parts[0])) {
+                transfers.acceptOffer(number);
+            } else {
+                transfers.declineOffer(number);
+            }
+        } else if (input.startsWith("send ")) {
+            String[] parts = input.split(" ", 3);
+            String channelName = parts[1];
+            String msg = parts[2];
+            sendChannelBroadcastMsg(channelName, msg);
+        } else {
+            listeners.println("Command unknown. Try 'help'.");
+        }
+    }
+
+    private void printMembers(String channelName, Set<String> members)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (String clientName : members) {
+            sb.append(sb.length() == 0 ? "" : ", ").append(clientName);
+        }
+        listeners.println("Members of '" + channelName + "' (" + members.size() + "): " + sb);
+    }
+
+    /**
+     * Replays the last n messages of a channel or a private conversation
+     * ("@user") from the history log.
+     * 
+     * @param name
+     * @param n 
+     */
+    private void printHistory(String name, int n)
+    {
+        if (!history.isEnabled()) {
+            listeners.println("History is disabled.");
+            return;
+        }
+        List<HistoryLog.Entry> entries;
+        try {
+            if (name.startsWith("@")) {
+                entries = history.privateTail(name.substring(1), n);
+            } else {
+                entries = history.channelTail(name, n);
+            }
+        } catch (IOException ex) {
+            listeners.println("Cannot read history of '" + name + "': " + ex.getMessage());
+            return;
+        }
+        if (entries.isEmpty()) {
+            listeners.println("No history of '" + name + "'.");
+            return;
+        }
+        SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        for (HistoryLog.Entry entry : entries) {
+            listeners.println("[" + sdf.format(new Date(entry.getTimestamp())) + "] " + entry.getText());
+        }
+    }
+
+    /**
+     * Reads the channel information for uses which tolerate stale data
+     * (listings, statistics). The local storage and cache are tried first,
+     * then the nearest replica and only then the root.
+     * 
+     * @param channelName
+     * @param result Receives the content, or null if the channel is unknown
+     */
+    public void readChannelContent(String channelName, Continuation<ChannelContent, Exception> result)
+    {
+        readChannelContent(getChannelId(channelName), result);
+    }
+
+    /**
+     * Same as {@see #readChannelContent(String, Continuation)} for the
+     * content stored under the given Id, e.g. a channel's shard.
+     * 
+     * @param lookupKey
+     * @param result 
+     */
+    public void readChannelContent(final Id lookupKey, final Continuation<ChannelContent, Exception> result)
+    {
+        
+        // root lookup, caching the result locally for the next time
+        final Runnable fromRoot = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                metrics.rootRead();
+                pastChannels.lookup(lookupKey, true, new ChannelContentContinuation(result, now()));
+            }
+        };
+        
+        // nearest replica
+        final Runnable fromReplica = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                pastChannels.lookupHandles(lookupKey, replicationFactor + 1, new Continuation<Object, Exception>()
+                {
+                    @Override
+                    public void receiveResult(Object r)
+                    {
+                        PastContentHandle nearest = null;
+                        if (r instanceof PastContentHandle[]) {
+                            for (PastContentHandle handle : (PastContentHandle[]) r) {
+                                if (handle != null && (nearest == null
+                                        || handle.getNodeHandle().proximity() < nearest.getNodeHandle().proximity())) {
+                                    nearest = handle;
                                 }
-                            });
-                            // inform the client
-                            admin.setActionPhase(ChannelAdminMsg.ACTION_PHASE_ACCEPTED);
-                            synchronized (endpointLock) {
-                                endpoint.route(getClientId(admin.getClientName()), admin, null);
                             }
                         }
+                        if (nearest == null) {
+                            fromRoot.run();
+                            return;
+                        }
+                        metrics.replicaRead();
+                        pastChannels.fetch(nearest, new ChannelContentContinuation(result, now()));
+                    }
 
-                    });
-                } else if (ChannelAdminMsg.ACTION_TYPE_LEAVE.equals(admin.getActionType())) {
-                    // client wants to leave...ok
-                    // check that the channel info is prepared and only then alter it
-                    readyChannelOwnership(admin.getChannelName(), new ChannelOwnerRunnable() {
+                    @Override
+                    public void receiveException(Exception ex)
+                    {
+                        fromRoot.run();
+                    }
+                });
+            }
+        };
+        
+        // local storage & cache (Past lives on the selector thread)
+        node.getEnvironment().getSelectorManager().invoke(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                storageManager.getObject(lookupKey, new Continuation<Object, Exception>()
+                {
+                    @Override
+                    public void receiveResult(Object r)
+                    {
+                        if (r instanceof ChannelContent) {
+                            metrics.localRead();
+                            result.receiveResult((ChannelContent) r);
+                        } else {
+                            fromReplica.run();
+                        }
+                    }
 
-                        @Override
-                        public void run()
-                        {
-                            // remove from the list
-                            content.getClients().remove(admin.getClientName());
-                            // update the content
-                            pastChannels.insert(content, new Continuation<Boolean[], Exception>() {
-                                
-                                @Override
-                                public void receiveResult(Boolean[] results) {
-                                    // TODO: react to errors
-//                                  int numSuccessfulStores = 0;
-//                                  for (int ctr = 0; ctr < results.length; ctr++) {
-//                                    if (results[ctr].booleanValue()) {
-//                                      numSuccessfulStores++;
-//                                    }
-//                                  }
-//                                  System.out.println(content + " successfully stored at " + 
-//                                      numSuccessfulStores + " locations.");
-                                }
+                    @Override
+                    public void receiveException(Exception ex)
+                    {
+                        fromReplica.run();
+                    }
+                });
+            }
+        });
+    }
 
-                                @Override
-                                public void receiveException(Exception result) {
-                                  System.err.println("Error storing "+content);
-                                  result.printStackTrace();
-                                }
-                            });
-                            // inform the client
-                            admin.setActionPhase(ChannelAdminMsg.ACTION_PHASE_ACCEPTED);
-                            synchronized (endpointLock) {
-                                endpoint.route(getClientId(admin.getClientName()), admin, null);
-                            }
-                        }
+    // =====================================================================
+    
+    /**
+     * Retrieves the channel information (list of active clients) and then
+     * executes a Runnable with the fresh channel info.
+     * If no such data exists, an empty channel is used.
+     * 
+     * Channels already owned by this node are served from the local cache,
+     * the rest is looked up in Past first. The followup code runs
+     * asynchronously on the channel's stripe of the owner executor, in the
+     * order of the calls for the same channel.
+     * 
+     * @param channelName
+     * @param followup Code to be executed when the channel info is ready.
+     */
+    private void readyChannelOwnership(String channelName, ChannelOwnerRunnable followup)
+    {
+        readyChannelOwnership(getChannelId(channelName), channelName, followup);
+    }
 
-                    });
-                } else {
-                    System.err.println("Unknown admin message type: " + admin);
+    /**
+     * Same as {@see #readyChannelOwnership(String, ChannelOwnerRunnable)}
+     * for the content stored under the given Id, e.g. a channel's shard.
+     * 
+     * @param lookupKey
+     * @param channelName
+     * @param followup 
+     */
+    private void readyChannelOwnership(final Id lookupKey, final String channelName, final ChannelOwnerRunnable followup)
+    {
+        ownerExecutor.execute(lookupKey, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                OwnedChannel owned = ownedChannels.get(lookupKey);
+                if (owned == null) {
+                    owned = new OwnedChannel();
+                    ownedChannels.put(lookupKey, owned);
                 }
-            } else if (ChannelAdminMsg.ACTION_PHASE_ACCEPTED.equals(admin.getActionPhase())) {
-                // was this our message?
-                if (!nickname.equals(admin.getClientName())) {
-                    // nope, discard it
+                
+                // already owned?
+                if (owned.content != null && owned.epoch == ownershipEpoch.get()) {
+                    followup.setChannelContent(owned.content);
+                    followup.run();
                     return;
                 }
-                // join / leave the channel
-                if (ChannelAdminMsg.ACTION_TYPE_JOIN.equals(admin.getActionType())) {
-                    synchronized (chatAppListenerLock) {
-                        if (chatAppListener != null) {
-                            chatAppListener.onPrintln("Joined channel '" + admin.getChannelName() + "'.");
+                
+                // wait for the lookup
+                owned.waiting.add(followup);
+                if (!owned.loading) {
+                    owned.loading = true;
+                    lookupChannelContent(lookupKey, channelName, ownershipEpoch.get());
+                }
+            }
+        });
+    }
+    
+    /**
+     * Looks up the channel in Past and takes its ownership.
+     */
+    private void lookupChannelContent(final Id lookupKey, final String channelName, final int epoch)
+    {
+        final long start = now();
+        final Continuation<PastContent, Exception> loaded = new Continuation<PastContent, Exception>()
+        {
+            @Override
+            public void receiveResult(final PastContent r)
+            {
+                metrics.pastLookup(now() - start);
+                ownerExecutor.execute(lookupKey, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        // taken over from a local replica meanwhile?
+                        OwnedChannel owned = ownedChannels.get(lookupKey);
+                        if (owned != null && owned.content != null && owned.epoch >= epoch) {
+                            return;
+                        }
+                        // owned before the epoch bump? our copy stays, only merge what others changed
+                        if (owned != null && owned.content != null) {
+                            if (r instanceof ChannelContent) {
+                                owned.content.merge((ChannelContent) r);
+                            }
+                            takeOwnership(lookupKey, owned.content, epoch);
+                            return;
                         }
+                        // not started yet? (never touch the stored object, own a copy)
+                        ChannelContent content = (r instanceof ChannelContent)
+                                ? ((ChannelContent) r).snapshot() : new ChannelContent(lookupKey, channelName);
+                        takeOwnership(lookupKey, content, epoch);
                     }
-                } else if (ChannelAdminMsg.ACTION_TYPE_LEAVE.equals(admin.getActionType())) {
-                    synchronized (chatAppListenerLock) {
-                        if (chatAppListener != null) {
-                            chatAppListener.onPrintln("Left channel '" + admin.getChannelName() + "'.");
+                });
+            }
+            
+            @Override
+            public void receiveException(final Exception result)
+            {
+                metrics.pastLookupFailed();
+                System.err.println("Error looking up key " + lookupKey);
+                result.printStackTrace();
+                ownerExecutor.execute(lookupKey, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        final OwnedChannel owned = ownedChannels.get(lookupKey);
+                        // try again a few times, later
+                        if (++owned.attempts <= LOOKUP_RETRIES) {
+                            node.getEnvironment().getSelectorManager().getTimer().schedule(new TimerTask()
+                            {
+                                @Override
+                                public void run()
+                                {
+                                    lookupChannelContent(lookupKey, channelName, ownershipEpoch.get());
+                                }
+                            }, LOOKUP_RETRY_DELAY * owned.attempts);
+                            return;
+                        }
+                        // give up, telling the waiting requesters
+                        owned.loading = false;
+                        owned.attempts = 0;
+                        List<ChannelOwnerRunnable> waiting = owned.waiting;
+                        owned.waiting = new ArrayList<ChannelOwnerRunnable>();
+                        for (ChannelOwnerRunnable followup : waiting) {
+                            followup.failed();
                         }
                     }
-                } else {
-                    System.err.println("Unknown admin message type: " + admin);
-                }
+                });
             }
-            return;
-        }
+        };
+        
+        // Past lives on the selector thread
+        node.getEnvironment().getSelectorManager().invoke(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                pastChannels.lookup(lookupKey, loaded);
+            }
+        });
     }
-
-    // =====================================================================
     
     /**
-     * Called when you hear about a new neighbor.
+     * Takes the ownership of every replica held in the local Past storage
+     * we are the root of now. Channels owned already just move to the new
+     * epoch, only the replicas new to us are read from the local copy.
+     * Owned channels we are no longer the root of are dropped.
+     * Runs on the selector thread.
      */
-    @Override
-    public void update(NodeHandle handle, boolean joined)
+    private void takeOverReplicas()
     {
-        synchronized (chatAppListenerLock) {
-            if (chatAppListener != null) {
-                if (joined) {
-                    chatAppListener.onNodeConnected(node);
-                } else {
-                    chatAppListener.onNodeDisconnected(node);
+        final int epoch = ownershipEpoch.get();
+        
+        // only the keys we are the root of, not the whole storage
+        IdRange rooted = endpoint.range(endpoint.getLocalNodeHandle(), 0, null, true);
+        Iterator<Id> it = rooted == null ? Collections.<Id>emptyIterator() : storage.scan(rooted).getIterator();
+        while (it.hasNext()) {
+            final Id lookupKey = it.next();
+            OwnedChannel known = ownedChannels.get(lookupKey);
+            if (known != null) {
+                ownerExecutor.execute(lookupKey, new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        OwnedChannel owned = ownedChannels.get(lookupKey);
+                        if (owned != null && owned.content != null && owned.epoch != epoch) {
+                            // we've been the owner all along, our copy is the freshest
+                            takeOwnership(lookupKey, owned.content, epoch);
+                        }
+                    }
+                });
+                continue;
+            }
+            storage.getObject(lookupKey, new Continuation<Object, Exception>()
+            {
+                @Override
+                public void receiveResult(Object r)
+                {
+                    if (!(r instanceof ChannelContent)) {
+                        return;
+                    }
+                    final ChannelContent replica = (ChannelContent) r;
+                    if (replica.isDelta()) {
+                        // incomplete, leave it to a lookup
+                        return;
+                    }
+                    ownerExecutor.execute(lookupKey, new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            OwnedChannel owned = ownedChannels.get(lookupKey);
+                            if (owned != null && owned.content != null) {
+                                if (owned.epoch != epoch) {
+                                    takeOwnership(lookupKey, owned.content, epoch);
+                                }
+                                return;
+                            }
+                            // never touch the stored object, own a copy
+                            metrics.takeover();
+                            takeOwnership(lookupKey, replica.snapshot(), epoch);
+                        }
+                    });
+                }
+
+                @Override
+                public void receiveException(Exception ex)
+                {
+                    System.err.println("Error reading replica " + lookupKey);
+                    ex.printStackTrace();
                 }
+            });
+        }
+        
+        for (final Id lookupKey : ownedChannels.keySet()) {
+            if (isRoot(lookupKey)) {
+                continue;
             }
+            ownerExecutor.execute(lookupKey, new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    OwnedChannel owned = ownedChannels.get(lookupKey);
+                    if (owned != null && !owned.loading && owned.waiting.isEmpty()) {
+                        ownedChannels.remove(lookupKey);
+                    }
+                }
+            });
         }
     }
 
-    // =====================================================================
-    
     /**
-     * Called when a message travels along our path.
+     * Whether this node is the root of the key, i.e. the owner of the
+     * content stored under it.
      */
-    @Override
-    public boolean forward(RouteMessage message)
+    private boolean isRoot(Id lookupKey)
     {
-        return true;
+        NodeHandleSet root = endpoint.replicaSet(lookupKey, 1);
+        return root != null && root.size() > 0 && root.getHandle(0).equals(endpoint.getLocalNodeHandle());
     }
 
-    // =====================================================================
-    
     /**
-     * Returns an Id for the given client.
-     * 
-     * This method generates an Id using the given feed. The client does NOT
-     * need to exist, no checking is performed.
+     * Whether this node is currently responsible for the channel.
      * 
-     * @param clientName
+     * @param channelName
      * @return 
      */
-    public Id getClientId(String clientName)
+    public boolean isChannelRoot(String channelName)
     {
-        return new HashNodeIdFactory(clientName).generateNodeId();
+        return isRoot(getChannelId(channelName));
     }
 
     /**
-     * Returns an Id for the given channel.
+     * Installs the channel content as owned and runs the work waiting for it.
+     * Runs on the channel's stripe.
+     */
+    private void takeOwnership(Id lookupKey, ChannelContent content, int epoch)
+    {
+        OwnedChannel owned = ownedChannels.get(lookupKey);
+        if (owned == null) {
+            owned = new OwnedChannel();
+            ownedChannels.put(lookupKey, owned);
+        }
+        owned.content = content;
+        owned.epoch = epoch;
+        owned.loading = false;
+        owned.attempts = 0;
+        
+        List<ChannelOwnerRunnable> waiting = owned.waiting;
+        owned.waiting = new ArrayList<ChannelOwnerRunnable>();
+        for (ChannelOwnerRunnable followup : waiting) {
+            followup.setChannelContent(content);
+            followup.run();
+        }
+    }
+
+    /**
+     * Takes the ownership of the channel right away, without looking it up
+     * in Past. Used when the content is already at hand.
      * 
-     * @param channelName
-     * @return 
+     * @param content 
      */
-    public Id getChannelId(String channelName)
+    void adoptChannel(final ChannelContent content)
     {
-        return idFactory.buildId(channelName);
+        final Id lookupKey = content.getId();
+        final int epoch = ownershipEpoch.get();
+        ownerExecutor.execute(lookupKey, new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                takeOwnership(lookupKey, content, epoch);
+            }
+        });
     }
 
-    // =====================================================================
-    
     /**
-     * Interprets the given string input.
+     * Replicates a change of the owned channel. Deltas are inserted on their
+     * own, except for every n-th one which is replaced by a full compacted
+     * snapshot (n given by "pastrychat_snapshot_interval").
      * 
-     * @param input 
+     * @param content Owned channel content (already changed)
+     * @param delta The change, or null to force a snapshot
      */
-    public void handleCommand(String input)
+    private void storeChannelContent(final ChannelContent content, ChannelContent delta)
     {
-        if ("quit".equals(input)) {
-            synchronized (chatAppListenerLock) {
-                if (chatAppListener != null) {
-                    chatAppListener.onQuitCommand();
+        final PastContent update;
+        content.nextVersion(now());
+        if (delta != null) {
+            delta.stamp(content);
+        }
+        if (delta == null || content.countDelta() >= snapshotInterval) {
+            update = content.snapshot();
+            // the snapshot replaces the replicas, they need no tombstones
+            content.compact();
+        } else {
+            update = delta;
+        }
+        
+        final long start = now();
+        final Continuation<Boolean[], Exception> stored = new Continuation<Boolean[], Exception>() {
+
+            @Override
+            public void receiveResult(Boolean[] results) {
+                metrics.pastInsert(now() - start);
+                if (((ChannelContent) update).isDelta() && !allStored(results)) {
+                    // a replica without a base refused the delta, send it all
+                    final Id lookupKey = content.getId();
+                    ownerExecutor.execute(lookupKey, new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            OwnedChannel owned = ownedChannels.get(lookupKey);
+                            if (owned != null && owned.content == content) {
+                                storeChannelContent(content, null);
+                            }
+                        }
+                    });
                 }
             }
-        } else if ("help".equals(input)) {
-            synchronized (chatAppListenerLock) {
-                if (chatAppListener != null) {
-                    chatAppListener.onPrintln("List of commands:");
-                    chatAppListener.onPrintln("quit - terminates the application");
-                    chatAppListener.onPrintln("join <channel> - joins the given channel");
-                    chatAppListener.onPrintln("leave <channel> - leaves the given channel");
-                    chatAppListener.onPrintln("send <channel> <message> - send the message to the given channel");
-                    chatAppListener.onPrintln("msg <user> <message> - send the message to the given user");
-                }
+
+            @Override
+            public void receiveException(Exception result) {
+              metrics.pastInsertFailed();
+              System.err.println("Error storing "+update);
+              result.printStackTrace();
             }
-        } else if (input.startsWith("join ")) {
-            String channelName = input.substring("join ".length());
-            sendJoinRequest(channelName);
-        } else if (input.startsWith("leave ")) {
-            String channelName = input.substring("leave ".length());
-            sendLeaveRequest(channelName);
-        } else if (input.startsWith("msg ")) {
-            String[] parts = input.split(" ", 3);
-            String clientName = parts[1];
-            String msg = parts[2];
-            sendPrivateMsg(clientName, msg);
-        } else if (input.startsWith("send ")) {
-            String[] parts = input.split(" ", 3);
-            String channelName = parts[1];
-            String msg = parts[2];
-            sendChannelBroadcastMsg(channelName, msg);
-        } else {
-            synchronized (chatAppListenerLock) {
-                if (chatAppListener != null) {
-                    chatAppListener.onPrintln("Command unknown. Try 'help'.");
-                }
+        };
+        
+        // Past lives on the selector thread
+        node.getEnvironment().getSelectorManager().invoke(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                pastChannels.insert(update, stored);
+            }
+        });
+    }
+
+    private static boolean allStored(Boolean[] results)
+    {
+        for (Boolean result : results) {
+            if (result == null || !result.booleanValue()) {
+                return false;
             }
         }
+        return true;
+    }
+
+    /**
+     * Current time of the environment in ms.
+     */
+    private long now()
+    {
+        return node.getEnvironment().getTimeSource().currentTimeMillis();
     }
 
     // =====================================================================
-    
+
     /**
-     * Retrieves the channel information (list of active clients) and then
-     * executes a Runnable with the fresh channel info.
-     * If no such data exists, null value is used.
-     * 
-     * The followup code is ran asynchronously.
+     *  Channel content continuation
      * 
-     * @param channelName
-     * @param followup Code to be executed when the channel info is ready.
+     * Passes a Past result on as ChannelContent (or null), recording the
+     * lookup's latency.
      */
-    private void readyChannelOwnership(final String channelName, final ChannelOwnerRunnable followup)
+    private class ChannelContentContinuation implements Continuation<Object, Exception>
     {
-        final Id lookupKey = getChannelId(channelName);
+        private final Continuation<ChannelContent, Exception> result;
+        private final long start;
 
-        Past p = pastChannels;
+        ChannelContentContinuation(Continuation<ChannelContent, Exception> result, long start)
+        {
+            this.result = result;
+            this.start = start;
+        }
 
-        p.lookup(lookupKey, new Continuation<PastContent, Exception>()
+        @Override
+        public void receiveResult(Object r)
         {
-            @Override
-            public void receiveResult(PastContent r)
-            {
-                if (!(r instanceof ChannelContent)) {
-                    // not ok
-                    r = null;
-                }
-                // not started yet?
-                if (r == null) {
-                    r = new ChannelContent(lookupKey, channelName);
-                }
-                
-                // call the rest of the code
-                followup.setChannelContent((ChannelContent)r);
-                followup.run();
-            }
-            
-            @Override
-            public void receiveException(Exception result)
-            {
-                System.err.println("Error looking up key " + lookupKey);
-                result.printStackTrace();
-            }
-        });
+            metrics.pastLookup(now() - start);
+            result.receiveResult(r instanceof ChannelContent ? (ChannelContent) r : null);
+        }
+
+        @Override
+        public void receiveException(Exception ex)
+        {
+            metrics.pastLookupFailed();
+            result.receiveException(ex);
+        }
+    }
+
+    // =====================================================================
+
+    /**
+     *  Owned channel
+     * 
+     * Owner's state of a single channel.
+     */
+    private static class OwnedChannel
+    {
+        /**
+         * Channel content, null until looked up.
+         */
+        ChannelContent content;
+        /**
+         * Ownership epoch in which the content was looked up.
+         */
+        int epoch;
+        /**
+         * Whether a lookup is in progress.
+         */
+        boolean loading;
+        /**
+         * Failed lookups in a row.
+         */
+        int attempts;
+        /**
+         * Work waiting for the lookup.
+         */
+        List<ChannelOwnerRunnable> waiting = new ArrayList<ChannelOwnerRunnable>();
+    }
+
+    // =====================================================================
+
+    /**
+     * Sees the routed messages passing through a node.
+     */
+    interface RouteObserver
+    {
+        /**
+         * Called on every node along the route, including the first and
+         * the last one.
+         */
+        void forwarded(Message msg);
     }
 
     // =====================================================================
@@ -550,6 +2371,12 @@ public class ChatApp implements Application
         public void setChannelContent(ChannelContent content) {
             this.content = content;
         }
+
+        /**
+         * Called instead of run() when the content can't be looked up.
+         */
+        public void failed() {
+        }
     }
     
     // =====================================================================
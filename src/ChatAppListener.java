@@ -10,8 +10,10 @@ import rice.p2p.commonapi.Node;
  * 
  * This interface should be implemented by some kind of a user interface class.
  *
- * All of these methods are called synchronously, i.e. they are protected by a
- * designated lock maintained by the ChatApp.
+ * These methods are called one at a time from a dispatcher thread maintained
+ * by the ChatApp (see {@see ListenerDispatcher}), never from the Pastry
+ * selector thread. The only exception is {@see #onQuitCommand()}, which is
+ * called right away on the thread that issued the command.
  * 
  * @author Dejvino
  */
@@ -2,6 +2,11 @@
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.swing.text.BadLocationException;
+import rice.p2p.commonapi.Message;
 import rice.p2p.commonapi.Node;
 
 /**
@@ -12,19 +17,38 @@ import rice.p2p.commonapi.Node;
  * 
  * @author Dejvino
  */
-public class ChatFrame extends javax.swing.JFrame implements ChatAppListener
+public class ChatFrame extends javax.swing.JFrame implements BatchChatAppListener
 {
     private static final long serialVersionUID = 1L;
     
     private ChatApp chat;
 
-    private LinkedList<String> screenLines = new LinkedList<String>();
+    /**
+     * Lines waiting for the next screen refresh.
+     */
+    private final ConcurrentLinkedQueue<String> pendingLines = new ConcurrentLinkedQueue<String>();
+    private final AtomicBoolean refreshScheduled = new AtomicBoolean(false);
+    private final javax.swing.Timer refreshTimer;
     private static final int SCREEN_LINES_LIMIT = 100;
+    /**
+     * Minimal delay between two screen refreshes (ms), i.e. 30 frames per second.
+     */
+    private static final int REFRESH_INTERVAL = 1000 / 30;
     
     /** Creates new form MainFrame */
     public ChatFrame()
     {
         initComponents();
+        
+        refreshTimer = new javax.swing.Timer(REFRESH_INTERVAL, new java.awt.event.ActionListener()
+        {
+            @Override
+            public void actionPerformed(java.awt.event.ActionEvent evt)
+            {
+                refreshScreenArea();
+            }
+        });
+        refreshTimer.setRepeats(false);
     }
 
     /** This method is called from within the constructor to
@@ -168,13 +192,13 @@ private void formWindowClosed(java.awt.event.WindowEvent evt) {//GEN-FIRST:event
 
     public void appendLine(String text)
     {
-        this.screenLines.offer(text);
+        pendingLines.offer(text);
         
-        if (this.screenLines.size() > SCREEN_LINES_LIMIT) {
-            this.screenLines.pop();
+        // the first line since the last refresh schedules the next one,
+        // the rest just piles up until then
+        if (refreshScheduled.compareAndSet(false, true)) {
+            refreshTimer.start();
         }
-        
-        refreshScreenArea();
     }
     
     public void appendTimestampedLine(String text)
@@ -182,28 +206,56 @@ private void formWindowClosed(java.awt.event.WindowEvent evt) {//GEN-FIRST:event
         SimpleDateFormat sdf = new SimpleDateFormat("hh:mm:ss");
         appendLine("["+sdf.format(new Date())+"] " + text);
     }
+
+    private String formatMessage(PrivateMsg msg)
+    {
+        return msg.getFromName() + " --> " + msg.getToName() + ": " + msg.getText();
+    }
+
+    private String formatMessage(ChannelMsg msg)
+    {
+        return msg.getFromName() + " @ " + msg.getChannelName() + ": " + msg.getText();
+    }
     
     // =====================================================================
 
+    /**
+     * Appends the pending lines to the screen and trims the oldest ones.
+     * Runs on the EDT.
+     */
     private void refreshScreenArea()
     {
-        StringBuilder sb = new StringBuilder();
+        refreshScheduled.set(false);
         
-        for (String line : screenLines) {
-            sb.append(line);
-            sb.append("\n");
+        // no need to append what would be trimmed right away
+        LinkedList<String> lines = new LinkedList<String>();
+        String line;
+        while ((line = pendingLines.poll()) != null) {
+            lines.offer(line);
+            if (lines.size() > SCREEN_LINES_LIMIT) {
+                lines.pop();
+            }
+        }
+        if (lines.isEmpty()) {
+            return;
         }
         
-        final String text = sb.toString();
+        StringBuilder sb = new StringBuilder();
+        for (String l : lines) {
+            sb.append(l);
+            sb.append("\n");
+        }
+        screenArea.append(sb.toString());
         
-        java.awt.EventQueue.invokeLater(new Runnable()
-        {
-            @Override
-            public void run()
-            {
-                screenArea.setText(text);
+        // the last line is the empty one after the final line break
+        int excess = screenArea.getLineCount() - 1 - SCREEN_LINES_LIMIT;
+        if (excess > 0) {
+            try {
+                screenArea.replaceRange("", 0, screenArea.getLineEndOffset(excess - 1));
+            } catch (BadLocationException ex) {
+                screenArea.setText(sb.toString());
             }
-        });
+        }
     }
 
     // =====================================================================
@@ -239,7 +291,7 @@ private void formWindowClosed(java.awt.event.WindowEvent evt) {//GEN-FIRST:event
     @Override
     public void onMessageDelivered(PrivateMsg msg)
     {
-        appendTimestampedLine(msg.getFromName() + " --> " + msg.getToName() + ": " + msg.getText());
+        appendTimestampedLine(formatMessage(msg));
     }
     
     @Override
@@ -250,7 +302,27 @@ private void formWindowClosed(java.awt.event.WindowEvent evt) {//GEN-FIRST:event
             // wrong recipient!
             return;
         }
-        appendTimestampedLine(msg.getFromName() + " @ " + msg.getChannelName() + ": " + msg.getText());
+        appendTimestampedLine(formatMessage(msg));
+    }
+
+    @Override
+    public void onMessagesDelivered(List<Message> msgs)
+    {
+        // one timestamp for the whole batch, they arrived together
+        String timestamp = "[" + new SimpleDateFormat("hh:mm:ss").format(new Date()) + "] ";
+        for (Message msg : msgs) {
+            if (msg instanceof PrivateMsg) {
+                appendLine(timestamp + formatMessage((PrivateMsg) msg));
+            } else if (msg instanceof ChannelMsg) {
+                ChannelMsg channelMsg = (ChannelMsg) msg;
+                // check recipient
+                if (!chat.getNodeId().equals(channelMsg.getTo())) {
+                    // wrong recipient!
+                    continue;
+                }
+                appendLine(timestamp + formatMessage(channelMsg));
+            }
+        }
     }
 
     @Override
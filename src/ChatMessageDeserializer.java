@@ -0,0 +1,137 @@
+
+import java.io.IOException;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.NodeHandle;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.MessageDeserializer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+
+/**
+ *      Chat message deserializer
+ * 
+ * Turns the raw bytes received by the "chat-endpoint" back into the chat
+ * messages. Also holds the encoding helpers shared by all the message types.
+ * 
+ * @author Dejvino
+ */
+public class ChatMessageDeserializer implements MessageDeserializer
+{
+    private final Endpoint endpoint;
+
+    /**
+     * Learns the handles of the senders (or null).
+     */
+    private final NodeHandleCache handles;
+
+    /**
+     * Constructor.
+     * 
+     * @param endpoint Endpoint used to rebuild Ids
+     */
+    public ChatMessageDeserializer(Endpoint endpoint)
+    {
+        this(endpoint, null);
+    }
+
+    /**
+     * Constructor.
+     * 
+     * @param endpoint Endpoint used to rebuild Ids
+     * @param handles Cache of the senders' handles (or null)
+     */
+    public ChatMessageDeserializer(Endpoint endpoint, NodeHandleCache handles)
+    {
+        this.endpoint = endpoint;
+        this.handles = handles;
+    }
+
+    // =====================================================================
+
+    @Override
+    public Message deserialize(InputBuffer buf, short type, int priority, NodeHandle sender) throws IOException
+    {
+        // whoever talks to us is likely to be talked to
+        if (handles != null) {
+            handles.learn(sender);
+        }
+        switch (type) {
+            case PrivateMsg.TYPE:
+                return PrivateMsg.build(buf, endpoint);
+            case ChannelMsg.TYPE:
+                return ChannelMsg.build(buf, endpoint);
+            case ChannelBroadcastMsg.TYPE:
+                return ChannelBroadcastMsg.build(buf, endpoint);
+            case ChannelAdminMsg.TYPE:
+                return ChannelAdminMsg.build(buf, endpoint);
+            case ChannelMsgBundle.TYPE:
+                return ChannelMsgBundle.build(buf, endpoint);
+            case ThrottleMsg.TYPE:
+                return ThrottleMsg.build(buf, endpoint);
+            case PrivateAckMsg.TYPE:
+                return PrivateAckMsg.build(buf, endpoint);
+            case FileOfferMsg.TYPE:
+                return FileOfferMsg.build(buf, endpoint);
+            default:
+                throw new IOException("Unknown message type: " + type);
+        }
+    }
+
+    // =====================================================================
+
+    /**
+     * Writes the Id including its type.
+     */
+    public static void writeId(OutputBuffer buf, Id id) throws IOException
+    {
+        buf.writeShort(id.getType());
+        id.serialize(buf);
+    }
+
+    /**
+     * Reads an Id written by {@see #writeId()}.
+     */
+    public static Id readId(InputBuffer buf, Endpoint endpoint) throws IOException
+    {
+        return endpoint.readId(buf, buf.readShort());
+    }
+
+    /**
+     * Writes the encoded text: its codec and the length-prefixed bytes, so
+     * it is not limited to 64 kB like {@see OutputBuffer#writeUTF()}.
+     */
+    public static void writeText(OutputBuffer buf, ChatText text) throws IOException
+    {
+        byte[] bytes = text.getBytes();
+        buf.writeByte(text.getCodec());
+        buf.writeInt(bytes.length);
+        buf.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Reads and decodes a text written by {@see #writeText()}.
+     */
+    public static ChatText readText(InputBuffer buf) throws IOException
+    {
+        byte codec = buf.readByte();
+        int length = buf.readInt();
+        if (length < 0 || length > buf.bytesRemaining()) {
+            throw new IOException("Invalid text length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        buf.read(bytes, 0, length);
+        return new ChatText(codec, bytes, TextCodec.decode(codec, bytes));
+    }
+
+    /**
+     * Checks the format version of a message.
+     */
+    public static void checkVersion(InputBuffer buf, byte expected) throws IOException
+    {
+        byte version = buf.readByte();
+        if (version != expected) {
+            throw new IOException("Unknown message version: " + version);
+        }
+    }
+}
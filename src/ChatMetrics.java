@@ -0,0 +1,572 @@
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.rawserialization.RawMessage;
+
+/**
+ *      Chat metrics
+ *
+ * Operational counters and histograms of a single chat node, exposed over
+ * JMX (see {@see ChatMetricsMBean}). Recording only touches atomic counters
+ * and never allocates, so it stays on in production.
+ *
+ * JMX registration can be turned off by setting the environment parameter
+ * "pastrychat_jmx" to false (e.g. for the simulator's thousands of nodes),
+ * the metrics are still recorded.
+ *
+ * @author Dejvino
+ */
+public class ChatMetrics implements ChatMetricsMBean
+{
+    /**
+     * Message type codes are small, see ChatMessageDeserializer.
+     */
+    private static final int TYPES = 16;
+
+    private final ChatApp chat;
+
+    private final AtomicLongArray routed = new AtomicLongArray(TYPES);
+    private final AtomicLongArray delivered = new AtomicLongArray(TYPES);
+    private final AtomicLong misdelivered = new AtomicLong();
+    /**
+     * Broadcasts rejected by the owner, by ThrottleMsg reason.
+     */
+    private final AtomicLongArray throttled = new AtomicLongArray(4);
+    private final AtomicLong forwarded = new AtomicLong();
+    private final AtomicLong directRouted = new AtomicLong();
+
+    private final Histogram fanOut = new Histogram();
+
+    private final Histogram pastLookup = new Histogram();
+    private final AtomicLong pastLookupFailures = new AtomicLong();
+    private final Histogram pastInsert = new Histogram();
+    private final AtomicLong pastInsertFailures = new AtomicLong();
+    private final AtomicLong localReads = new AtomicLong();
+    private final AtomicLong replicaReads = new AtomicLong();
+    private final AtomicLong rootReads = new AtomicLong();
+
+    private final Histogram listenerDispatch = new Histogram();
+
+    private final AtomicLong neighborJoins = new AtomicLong();
+    private final AtomicLong neighborLeaves = new AtomicLong();
+    private final AtomicLong takeovers = new AtomicLong();
+
+    private ObjectName name;
+
+    /**
+     * Constructor.
+     *
+     * @param chat Source of the gauges
+     */
+    public ChatMetrics(ChatApp chat)
+    {
+        this.chat = chat;
+    }
+
+    // =====================================================================
+
+    /**
+     * Registers the MBean with the platform MBean server.
+     *
+     * @param nickname Distinguishes several nodes in one JVM
+     */
+    public void register(String nickname)
+    {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName n = new ObjectName("PastryChat:type=ChatMetrics,name=" + ObjectName.quote(nickname));
+            server.registerMBean(this, n);
+            name = n;
+        } catch (JMException ex) {
+            System.err.println("Error registering the chat metrics");
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Removes the MBean from the platform MBean server, if registered.
+     */
+    public void unregister()
+    {
+        if (name == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException ex) {
+            System.err.println("Error unregistering the chat metrics");
+            ex.printStackTrace();
+        }
+        name = null;
+    }
+
+    // =====================================================================
+    // recording
+
+    public void routed(Message msg)
+    {
+        routed.incrementAndGet(typeIndex(msg));
+    }
+
+    public void delivered(Message msg)
+    {
+        delivered.incrementAndGet(typeIndex(msg));
+    }
+
+    public void misdelivered()
+    {
+        misdelivered.incrementAndGet();
+    }
+
+    public void throttled(byte reason)
+    {
+        throttled.incrementAndGet(reason > 0 && reason < 4 ? reason : 0);
+    }
+
+    public void forwarded()
+    {
+        forwarded.incrementAndGet();
+    }
+
+    public void directRouted()
+    {
+        directRouted.incrementAndGet();
+    }
+
+    public void fanOut(int size)
+    {
+        fanOut.record(size);
+    }
+
+    public void pastLookup(long millis)
+    {
+        pastLookup.record(millis);
+    }
+
+    public void pastLookupFailed()
+    {
+        pastLookupFailures.incrementAndGet();
+    }
+
+    public void pastInsert(long millis)
+    {
+        pastInsert.record(millis);
+    }
+
+    public void pastInsertFailed()
+    {
+        pastInsertFailures.incrementAndGet();
+    }
+
+    public void localRead()
+    {
+        localReads.incrementAndGet();
+    }
+
+    public void replicaRead()
+    {
+        replicaReads.incrementAndGet();
+    }
+
+    public void rootRead()
+    {
+        rootReads.incrementAndGet();
+    }
+
+    public void listenerDispatch(long nanos)
+    {
+        listenerDispatch.record(nanos / 1000);
+    }
+
+    public void neighborJoined()
+    {
+        neighborJoins.incrementAndGet();
+    }
+
+    public void neighborLeft()
+    {
+        neighborLeaves.incrementAndGet();
+    }
+
+    public void takeover()
+    {
+        takeovers.incrementAndGet();
+    }
+
+    private static int typeIndex(Message msg)
+    {
+        if (!(msg instanceof RawMessage)) {
+            return 0;
+        }
+        int type = ((RawMessage) msg).getType();
+        return type > 0 && type < TYPES ? type : 0;
+    }
+
+    // =====================================================================
+    // MBean
+
+    @Override
+    public long getPrivateMsgRouted()
+    {
+        return routed.get(PrivateMsg.TYPE);
+    }
+
+    @Override
+    public long getPrivateMsgDelivered()
+    {
+        return delivered.get(PrivateMsg.TYPE);
+    }
+
+    @Override
+    public long getChannelMsgRouted()
+    {
+        return routed.get(ChannelMsg.TYPE);
+    }
+
+    @Override
+    public long getChannelMsgDelivered()
+    {
+        return delivered.get(ChannelMsg.TYPE);
+    }
+
+    @Override
+    public long getChannelBroadcastMsgRouted()
+    {
+        return routed.get(ChannelBroadcastMsg.TYPE);
+    }
+
+    @Override
+    public long getChannelBroadcastMsgDelivered()
+    {
+        return delivered.get(ChannelBroadcastMsg.TYPE);
+    }
+
+    @Override
+    public long getChannelAdminMsgRouted()
+    {
+        return routed.get(ChannelAdminMsg.TYPE);
+    }
+
+    @Override
+    public long getChannelAdminMsgDelivered()
+    {
+        return delivered.get(ChannelAdminMsg.TYPE);
+    }
+
+    @Override
+    public long getChannelMsgBundleRouted()
+    {
+        return routed.get(ChannelMsgBundle.TYPE);
+    }
+
+    @Override
+    public long getChannelMsgBundleDelivered()
+    {
+        return delivered.get(ChannelMsgBundle.TYPE);
+    }
+
+    @Override
+    public long getThrottleMsgRouted()
+    {
+        return routed.get(ThrottleMsg.TYPE);
+    }
+
+    @Override
+    public long getThrottleMsgDelivered()
+    {
+        return delivered.get(ThrottleMsg.TYPE);
+    }
+
+    @Override
+    public long getPrivateAckMsgRouted()
+    {
+        return routed.get(PrivateAckMsg.TYPE);
+    }
+
+    @Override
+    public long getPrivateAckMsgDelivered()
+    {
+        return delivered.get(PrivateAckMsg.TYPE);
+    }
+
+    @Override
+    public long getFileOfferMsgRouted()
+    {
+        return routed.get(FileOfferMsg.TYPE);
+    }
+
+    @Override
+    public long getFileOfferMsgDelivered()
+    {
+        return delivered.get(FileOfferMsg.TYPE);
+    }
+
+    @Override
+    public long getMisdelivered()
+    {
+        return misdelivered.get();
+    }
+
+    @Override
+    public long getThrottledSender()
+    {
+        return throttled.get(ThrottleMsg.REASON_SENDER);
+    }
+
+    @Override
+    public long getThrottledChannel()
+    {
+        return throttled.get(ThrottleMsg.REASON_CHANNEL);
+    }
+
+    @Override
+    public long getShed()
+    {
+        return throttled.get(ThrottleMsg.REASON_OVERLOAD);
+    }
+
+    @Override
+    public long getForwarded()
+    {
+        return forwarded.get();
+    }
+
+    @Override
+    public long getDirectRouted()
+    {
+        return directRouted.get();
+    }
+
+    @Override
+    public int getRouteCacheSize()
+    {
+        return chat.getHandleCache().getSize();
+    }
+
+    @Override
+    public int getPrivateInFlight()
+    {
+        return chat.getConversations().getInFlightCount();
+    }
+
+    @Override
+    public long getPrivateRetransmitted()
+    {
+        return chat.getConversations().getRetransmittedCount();
+    }
+
+    @Override
+    public long getPrivateUndeliverable()
+    {
+        return chat.getConversations().getFailedCount();
+    }
+
+    @Override
+    public int getFileUploads()
+    {
+        return chat.getFileTransfers().getUploadCount();
+    }
+
+    @Override
+    public int getFileDownloads()
+    {
+        return chat.getFileTransfers().getDownloadCount();
+    }
+
+    @Override
+    public long getFileBytesSent()
+    {
+        return chat.getFileTransfers().getBytesSent();
+    }
+
+    @Override
+    public long getFileBytesReceived()
+    {
+        return chat.getFileTransfers().getBytesReceived();
+    }
+
+    @Override
+    public long getCompressedTexts()
+    {
+        return chat.getTextCodec().getCompressedCount();
+    }
+
+    @Override
+    public long getCompressionSavedBytes()
+    {
+        return chat.getTextCodec().getSavedBytes();
+    }
+
+    @Override
+    public long getFanOutCount()
+    {
+        return fanOut.getCount();
+    }
+
+    @Override
+    public double getFanOutMean()
+    {
+        return fanOut.getMean();
+    }
+
+    @Override
+    public long getFanOutMax()
+    {
+        return fanOut.getMax();
+    }
+
+    @Override
+    public long[] getFanOutHistogram()
+    {
+        return fanOut.getBuckets();
+    }
+
+    @Override
+    public long getPastLookupCount()
+    {
+        return pastLookup.getCount();
+    }
+
+    @Override
+    public double getPastLookupMeanMillis()
+    {
+        return pastLookup.getMean();
+    }
+
+    @Override
+    public long getPastLookupP99Millis()
+    {
+        return pastLookup.getPercentile(0.99);
+    }
+
+    @Override
+    public long[] getPastLookupHistogram()
+    {
+        return pastLookup.getBuckets();
+    }
+
+    @Override
+    public long getPastLookupFailures()
+    {
+        return pastLookupFailures.get();
+    }
+
+    @Override
+    public long getPastInsertCount()
+    {
+        return pastInsert.getCount();
+    }
+
+    @Override
+    public double getPastInsertMeanMillis()
+    {
+        return pastInsert.getMean();
+    }
+
+    @Override
+    public long getPastInsertP99Millis()
+    {
+        return pastInsert.getPercentile(0.99);
+    }
+
+    @Override
+    public long[] getPastInsertHistogram()
+    {
+        return pastInsert.getBuckets();
+    }
+
+    @Override
+    public long getPastInsertFailures()
+    {
+        return pastInsertFailures.get();
+    }
+
+    @Override
+    public long getLocalReads()
+    {
+        return localReads.get();
+    }
+
+    @Override
+    public long getReplicaReads()
+    {
+        return replicaReads.get();
+    }
+
+    @Override
+    public long getRootReads()
+    {
+        return rootReads.get();
+    }
+
+    @Override
+    public int getStoredChannels()
+    {
+        return chat.getStoredChannelCount();
+    }
+
+    @Override
+    public int getOwnedChannels()
+    {
+        return chat.getOwnedChannelCount();
+    }
+
+    @Override
+    public long getListenerDispatchCount()
+    {
+        return listenerDispatch.getCount();
+    }
+
+    @Override
+    public double getListenerDispatchMeanMicros()
+    {
+        return listenerDispatch.getMean();
+    }
+
+    @Override
+    public long getListenerDispatchP99Micros()
+    {
+        return listenerDispatch.getPercentile(0.99);
+    }
+
+    @Override
+    public long getListenerDroppedEvents()
+    {
+        return chat.getDroppedEventCount();
+    }
+
+    @Override
+    public int getOutboundDepth()
+    {
+        return chat.getOutboundQueue().getDepth();
+    }
+
+    @Override
+    public long getOutboundDropped()
+    {
+        return chat.getOutboundQueue().getDroppedCount();
+    }
+
+    @Override
+    public long getNeighborJoins()
+    {
+        return neighborJoins.get();
+    }
+
+    @Override
+    public long getNeighborLeaves()
+    {
+        return neighborLeaves.get();
+    }
+
+    @Override
+    public long getOwnerTakeovers()
+    {
+        return takeovers.get();
+    }
+}
@@ -0,0 +1,179 @@
+
+/**
+ *      Chat metrics MBean
+ *
+ * Management interface of {@see ChatMetrics}, registered with the platform
+ * MBean server as "PastryChat:type=ChatMetrics,name=<nickname>".
+ *
+ * Counters only grow, rates are left to the monitoring tool.
+ * Latencies are in milliseconds, the listener dispatch time in microseconds.
+ * Histograms are reported as power-of-two buckets, see {@see Histogram}.
+ *
+ * @author Dejvino
+ */
+public interface ChatMetricsMBean
+{
+    // routed / delivered per message type
+
+    public long getPrivateMsgRouted();
+
+    public long getPrivateMsgDelivered();
+
+    public long getChannelMsgRouted();
+
+    public long getChannelMsgDelivered();
+
+    public long getChannelBroadcastMsgRouted();
+
+    public long getChannelBroadcastMsgDelivered();
+
+    public long getChannelAdminMsgRouted();
+
+    public long getChannelAdminMsgDelivered();
+
+    public long getChannelMsgBundleRouted();
+
+    public long getChannelMsgBundleDelivered();
+
+    public long getThrottleMsgRouted();
+
+    public long getThrottleMsgDelivered();
+
+    public long getPrivateAckMsgRouted();
+
+    public long getPrivateAckMsgDelivered();
+
+    public long getFileOfferMsgRouted();
+
+    public long getFileOfferMsgDelivered();
+
+    /**
+     * Messages dropped on arrival because they were meant for somebody else.
+     */
+    public long getMisdelivered();
+
+    public long getForwarded();
+
+    /**
+     * Messages sent straight to a cached handle of the recipient.
+     */
+    public long getDirectRouted();
+
+    public int getRouteCacheSize();
+
+    // private conversations
+
+    /**
+     * Private messages sent but not acked yet, or waiting for the window.
+     */
+    public int getPrivateInFlight();
+
+    public long getPrivateRetransmitted();
+
+    /**
+     * Private messages given up after running out of retries.
+     */
+    public long getPrivateUndeliverable();
+
+    // file transfers
+
+    public int getFileUploads();
+
+    public int getFileDownloads();
+
+    public long getFileBytesSent();
+
+    public long getFileBytesReceived();
+
+    // compression
+
+    public long getCompressedTexts();
+
+    public long getCompressionSavedBytes();
+
+    // owner admission
+
+    /**
+     * Broadcasts rejected by the sender's rate limit.
+     */
+    public long getThrottledSender();
+
+    /**
+     * Broadcasts rejected by the channel's rate limit.
+     */
+    public long getThrottledChannel();
+
+    /**
+     * Broadcasts shed due to the owner's overload.
+     */
+    public long getShed();
+
+    // owner fan-out
+
+    public long getFanOutCount();
+
+    public double getFanOutMean();
+
+    public long getFanOutMax();
+
+    public long[] getFanOutHistogram();
+
+    // Past
+
+    public long getPastLookupCount();
+
+    public double getPastLookupMeanMillis();
+
+    public long getPastLookupP99Millis();
+
+    public long[] getPastLookupHistogram();
+
+    public long getPastLookupFailures();
+
+    public long getPastInsertCount();
+
+    public double getPastInsertMeanMillis();
+
+    public long getPastInsertP99Millis();
+
+    public long[] getPastInsertHistogram();
+
+    public long getPastInsertFailures();
+
+    public long getLocalReads();
+
+    public long getReplicaReads();
+
+    public long getRootReads();
+
+    public int getStoredChannels();
+
+    public int getOwnedChannels();
+
+    // listener
+
+    public long getListenerDispatchCount();
+
+    public double getListenerDispatchMeanMicros();
+
+    public long getListenerDispatchP99Micros();
+
+    public long getListenerDroppedEvents();
+
+    // outbound queue
+
+    public int getOutboundDepth();
+
+    public long getOutboundDropped();
+
+    // neighbors
+
+    public long getNeighborJoins();
+
+    public long getNeighborLeaves();
+
+    /**
+     * Channels taken over from a local replica after a leaf set change.
+     */
+    public long getOwnerTakeovers();
+}
@@ -0,0 +1,116 @@
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+
+/**
+ *      Chat text
+ *
+ * Message text together with its wire form, see {@see TextCodec}. The text
+ * is encoded once and the same instance can then be put into any number of
+ * messages (e.g. the owner's fan-out), which all ship the encoded bytes.
+ *
+ * @author Dejvino
+ */
+public final class ChatText implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Plain UTF-8.
+     */
+    public static final byte CODEC_RAW = 0;
+    /**
+     * UTF-8 compressed by zlib, possibly with a preset dictionary.
+     */
+    public static final byte CODEC_DEFLATE = 1;
+
+    private final byte codec;
+
+    private final byte[] bytes;
+
+    /**
+     * Decoded form.
+     */
+    private transient String text;
+
+    /**
+     * Constructor.
+     *
+     * @param codec Codec of the bytes
+     * @param bytes Encoded text
+     * @param text Decoded text
+     */
+    ChatText(byte codec, byte[] bytes, String text)
+    {
+        this.codec = codec;
+        this.bytes = bytes;
+        this.text = text;
+    }
+
+    /**
+     * Wraps the text without compression.
+     *
+     * @param text
+     * @return
+     */
+    public static ChatText raw(String text)
+    {
+        try {
+            return new ChatText(CODEC_RAW, text.getBytes("UTF-8"), text);
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // =====================================================================
+
+    public String getText()
+    {
+        return text;
+    }
+
+    public byte getCodec()
+    {
+        return codec;
+    }
+
+    public boolean isCompressed()
+    {
+        return codec != CODEC_RAW;
+    }
+
+    /**
+     * Returns the encoded bytes, not to be modified.
+     */
+    byte[] getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Returns the size of the encoded text in bytes.
+     */
+    public int getEncodedLength()
+    {
+        return bytes.length;
+    }
+
+    // =====================================================================
+
+    /**
+     * Decodes the text after Java deserialization.
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+    {
+        in.defaultReadObject();
+        text = TextCodec.decode(codec, bytes);
+    }
+
+    @Override
+    public String toString()
+    {
+        return text;
+    }
+}
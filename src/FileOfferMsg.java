@@ -0,0 +1,195 @@
+import java.io.IOException;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.NodeHandle;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+import rice.p2p.commonapi.rawserialization.RawMessage;
+
+/**
+ *      File offer message
+ *
+ * Tells the recipient that a file is ready for it. The file itself does not
+ * travel in messages: the recipient connects back to the sender's node and
+ * pulls it over an application socket, see {@see FileTransfers}.
+ *
+ * @author Dejvino
+ */
+public class FileOfferMsg implements RawMessage
+{
+    private static final long serialVersionUID = 1L;
+
+    public static final short TYPE = 8;
+
+    private static final byte VERSION = 1;
+
+    /**
+     * Where the Message came from.
+     */
+    private Id from;
+
+    private String fromName;
+
+    /**
+     * Node to connect to for the data.
+     */
+    private NodeHandle source;
+
+    /**
+     * Where the Message is going.
+     */
+    private Id to;
+
+    private String toName;
+
+    /**
+     * Identifies the transfer at the source.
+     */
+    private long transferId;
+
+    private String fileName;
+
+    /**
+     * File size in bytes.
+     */
+    private long size;
+
+    /**
+     * Last modification of the file (ms), tells a resumed download whether
+     * it is still the same file.
+     */
+    private long modified;
+
+    /**
+     * Constructor.
+     */
+    public FileOfferMsg(Id from, String fromName, NodeHandle source, Id to, String toName,
+            long transferId, String fileName, long size, long modified)
+    {
+        this.from = from;
+        this.fromName = fromName;
+        this.source = source;
+        this.to = to;
+        this.toName = toName;
+        this.transferId = transferId;
+        this.fileName = fileName;
+        this.size = size;
+        this.modified = modified;
+    }
+
+    /**
+     * Deserializing constructor.
+     */
+    private FileOfferMsg(InputBuffer buf, Endpoint endpoint) throws IOException
+    {
+        ChatMessageDeserializer.checkVersion(buf, VERSION);
+        this.from = ChatMessageDeserializer.readId(buf, endpoint);
+        this.fromName = buf.readUTF();
+        this.source = endpoint.readNodeHandle(buf);
+        this.to = ChatMessageDeserializer.readId(buf, endpoint);
+        this.toName = buf.readUTF();
+        this.transferId = buf.readLong();
+        this.fileName = buf.readUTF();
+        this.size = buf.readLong();
+        this.modified = buf.readLong();
+    }
+
+    /**
+     * Rebuilds the message from its raw form.
+     */
+    public static FileOfferMsg build(InputBuffer buf, Endpoint endpoint) throws IOException
+    {
+        return new FileOfferMsg(buf, endpoint);
+    }
+
+    // =====================================================================
+
+    public Id getFrom()
+    {
+        return from;
+    }
+
+    public String getFromName()
+    {
+        return fromName;
+    }
+
+    public NodeHandle getSource()
+    {
+        return source;
+    }
+
+    public Id getTo()
+    {
+        return to;
+    }
+
+    public String getToName()
+    {
+        return toName;
+    }
+
+    public long getTransferId()
+    {
+        return transferId;
+    }
+
+    public String getFileName()
+    {
+        return fileName;
+    }
+
+    public long getSize()
+    {
+        return size;
+    }
+
+    public long getModified()
+    {
+        return modified;
+    }
+
+    // =====================================================================
+
+    @Override
+    public String toString()
+    {
+        return "FileOfferMsg from " + fromName + " ("+from+") to " + toName + " ("+to+"): " + fileName
+                + ", " + size + " B, transfer " + transferId;
+    }
+
+    // =====================================================================
+
+    /**
+     * Using low priority to prevent interference with overlay maintenance traffic.
+     */
+    @Override
+    public int getPriority()
+    {
+        return Message.LOW_PRIORITY;
+    }
+
+    // =====================================================================
+
+    @Override
+    public short getType()
+    {
+        return TYPE;
+    }
+
+    @Override
+    public void serialize(OutputBuffer buf) throws IOException
+    {
+        buf.writeByte(VERSION);
+        ChatMessageDeserializer.writeId(buf, from);
+        buf.writeUTF(fromName);
+        source.serialize(buf);
+        ChatMessageDeserializer.writeId(buf, to);
+        buf.writeUTF(toName);
+        buf.writeLong(transferId);
+        buf.writeUTF(fileName);
+        buf.writeLong(size);
+        buf.writeLong(modified);
+    }
+}
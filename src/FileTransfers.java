@@ -0,0 +1,951 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import rice.environment.Environment;
+import rice.environment.params.Parameters;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.appsocket.AppSocket;
+import rice.p2p.commonapi.appsocket.AppSocketReceiver;
+import rice.selector.TimerTask;
+
+/**
+ *      File transfers
+ *
+ * Bulk data transfer over FreePastry application sockets, away from the
+ * message path. The sender only routes a small {@see FileOfferMsg}; the
+ * recipient decides whether it wants the file (small ones can be taken
+ * automatically), then connects straight to the sender's node, asks for the
+ * file from the offset it already has and streams it into a ".part" file in
+ * the download directory, which is renamed once complete.
+ *
+ * The data moves in chunks through pooled, reused buffers. Either side only
+ * reads or writes when the socket is ready for it and the previous chunk is
+ * done, so a slow disk or link pushes back on the other end. The disk is
+ * only touched on a thread of its own, never on the selector thread.
+ *
+ * An interrupted download is resumed from its ".part" file: right away
+ * a couple of times, later by the same file being sent again. The ".part"
+ * file is named after the sender, the file name, its size and modification
+ * time, so a changed file starts over. The sender refuses to serve a file
+ * which has changed since it was offered.
+ *
+ * Tunable via the environment parameters "pastrychat_download_dir",
+ * "pastrychat_transfer_chunk" (bytes), "pastrychat_max_file_size" (bytes,
+ * larger offers are refused), "pastrychat_auto_accept_size" (bytes, smaller
+ * offers are downloaded without asking, 0 always asks) and
+ * "pastrychat_offer_ttl" (ms an offer stays valid without being used).
+ *
+ * Socket protocol (recipient to sender): version byte, transfer Id (long),
+ * offset (long). The sender answers with the file data from the offset on
+ * and closes its output.
+ *
+ * @author Dejvino
+ */
+public class FileTransfers
+{
+    public static final int DEFAULT_CHUNK = 64 * 1024;
+    public static final long DEFAULT_MAX_FILE_SIZE = 1024L * 1024 * 1024;
+    public static final long DEFAULT_OFFER_TTL = 10 * 60 * 1000;
+
+    private static final byte VERSION = 0;
+    private static final int REQUEST_LENGTH = 1 + 8 + 8;
+
+    private static final int CONNECT_TIMEOUT = 30000;
+    private static final int IO_TIMEOUT = 60000;
+
+    /**
+     * Immediate resumes of an interrupted download.
+     */
+    private static final int RETRIES = 3;
+    private static final long RETRY_DELAY = 2000;
+
+    /**
+     * Idle buffers kept for reuse.
+     */
+    private static final int POOLED_BUFFERS = 8;
+
+    /**
+     * Offers waiting for the user's decision, the oldest are forgotten.
+     */
+    private static final int PENDING_OFFERS = 32;
+
+    private final Endpoint endpoint;
+
+    private final Environment environment;
+
+    private final ListenerDispatcher listeners;
+
+    private final File downloadDir;
+
+    private final int chunk;
+
+    private final long maxFileSize;
+
+    private final long autoAcceptSize;
+
+    private final long offerTtl;
+
+    /**
+     * Files offered by us, by transfer Id.
+     */
+    private final ConcurrentMap<Long, Offer> offers = new ConcurrentHashMap<Long, Offer>();
+
+    /**
+     * Files offered to us, by their local number.
+     */
+    private final Map<Integer, Incoming> incoming = new LinkedHashMap<Integer, Incoming>()
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Incoming> eldest)
+        {
+            return size() > PENDING_OFFERS;
+        }
+    };
+
+    private int nextIncoming = 1;
+
+    /**
+     * Runs the file reads and writes.
+     */
+    private final ExecutorService disk;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    // metrics
+    private final AtomicInteger uploads = new AtomicInteger();
+    private final AtomicInteger downloads = new AtomicInteger();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+
+    /**
+     * Constructor.
+     */
+    public FileTransfers(Endpoint endpoint, Environment environment, ListenerDispatcher listeners)
+    {
+        this.endpoint = endpoint;
+        this.environment = environment;
+        this.listeners = listeners;
+
+        Parameters params = environment.getParameters();
+        this.downloadDir = new File(params.contains("pastrychat_download_dir")
+                ? params.getString("pastrychat_download_dir") : "downloads");
+        this.chunk = params.contains("pastrychat_transfer_chunk")
+                ? params.getInt("pastrychat_transfer_chunk") : DEFAULT_CHUNK;
+        this.maxFileSize = params.contains("pastrychat_max_file_size")
+                ? params.getLong("pastrychat_max_file_size") : DEFAULT_MAX_FILE_SIZE;
+        this.autoAcceptSize = params.contains("pastrychat_auto_accept_size")
+                ? params.getLong("pastrychat_auto_accept_size") : 0;
+        this.offerTtl = params.contains("pastrychat_offer_ttl")
+                ? params.getLong("pastrychat_offer_ttl") : DEFAULT_OFFER_TTL;
+
+        this.disk = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "File transfer I/O");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Starts accepting the recipients' connections. To be called before
+     * the endpoint is registered.
+     */
+    public void activate()
+    {
+        endpoint.accept(new AppSocketReceiver()
+        {
+            @Override
+            public void receiveSocket(AppSocket socket)
+            {
+                new Upload(socket).start();
+                // keep accepting
+                endpoint.accept(this);
+            }
+
+            @Override
+            public void receiveSelectResult(AppSocket socket, boolean canRead, boolean canWrite)
+            {
+            }
+
+            @Override
+            public void receiveException(AppSocket socket, Exception e)
+            {
+                System.err.println("Error accepting a file transfer: " + e);
+            }
+        });
+    }
+
+    // =====================================================================
+
+    /**
+     * Registers the file for the recipient to pull.
+     *
+     * @param file
+     * @param size File size put in the offer
+     * @param modified Modification time put in the offer
+     * @param toName Recipient name
+     * @return Transfer Id to put in the offer
+     * @throws IOException If the file can't be read
+     */
+    public long offer(File file, long size, long modified, String toName) throws IOException
+    {
+        if (!file.isFile() || !file.canRead()) {
+            throw new IOException("Cannot read " + file);
+        }
+        long transferId;
+        Offer offer = new Offer(file, size, modified, toName, now());
+        expireOffers();
+        do {
+            transferId = environment.getRandomSource().nextLong();
+        } while (offers.putIfAbsent(transferId, offer) != null);
+        return transferId;
+    }
+
+    /**
+     * Takes back our offer before it has been sent.
+     *
+     * @param transferId
+     */
+    public void withdraw(long transferId)
+    {
+        offers.remove(transferId);
+    }
+
+    /**
+     * Forgets our offers nobody has asked for in time.
+     */
+    private void expireOffers()
+    {
+        long now = now();
+        Iterator<Offer> it = offers.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().used > offerTtl) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Handles a file offered to us: small enough ones are downloaded right
+     * away, the rest wait for the user's {@see #acceptOffer()}.
+     * Called on the selector thread.
+     *
+     * @param msg
+     */
+    public void offered(FileOfferMsg msg)
+    {
+        if (msg.getSize() < 0 || msg.getSize() > maxFileSize) {
+            listeners.println("Refused file '" + msg.getFileName() + "' from " + msg.getFromName()
+                    + ": too large (" + msg.getSize() + " B).");
+            return;
+        }
+        if (msg.getSize() <= autoAcceptSize) {
+            download(msg);
+            return;
+        }
+        int number;
+        synchronized (incoming) {
+            number = nextIncoming++;
+            incoming.put(number, new Incoming(msg, now()));
+        }
+        listeners.println(msg.getFromName() + " offers file '" + msg.getFileName() + "' (" + msg.getSize()
+                + " B). Type 'getfile " + number + "' to receive it or 'dropfile " + number + "' to decline.");
+    }
+
+    /**
+     * Downloads a file offered to us.
+     *
+     * @param number Local number of the offer
+     */
+    public void acceptOffer(int number)
+    {
+        final Incoming offer = takeIncoming(number);
+        if (offer == null) {
+            return;
+        }
+        // sockets live on the selector thread
+        environment.getSelectorManager().invoke(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                download(offer.msg);
+            }
+        });
+    }
+
+    /**
+     * Forgets a file offered to us, the sender's offer then just expires.
+     *
+     * @param number Local number of the offer
+     */
+    public void declineOffer(int number)
+    {
+        Incoming offer = takeIncoming(number);
+        if (offer != null) {
+            listeners.println("Declined file '" + offer.msg.getFileName() + "' from " + offer.msg.getFromName() + ".");
+        }
+    }
+
+    /**
+     * Lists the files offered to us and waiting for a decision.
+     */
+    public void printOffers()
+    {
+        synchronized (incoming) {
+            if (incoming.isEmpty()) {
+                listeners.println("No files offered.");
+            }
+            for (Map.Entry<Integer, Incoming> entry : incoming.entrySet()) {
+                FileOfferMsg msg = entry.getValue().msg;
+                listeners.println(entry.getKey() + ": '" + msg.getFileName() + "' (" + msg.getSize() + " B) from "
+                        + msg.getFromName());
+            }
+        }
+    }
+
+    private Incoming takeIncoming(int number)
+    {
+        Incoming offer;
+        synchronized (incoming) {
+            offer = incoming.remove(number);
+        }
+        if (offer == null) {
+            listeners.println("No file offer " + number + ". Type 'files' for the list.");
+            return null;
+        }
+        if (now() - offer.time > offerTtl) {
+            listeners.println("The offer of '" + offer.msg.getFileName() + "' has expired, ask "
+                    + offer.msg.getFromName() + " to send it again.");
+            return null;
+        }
+        return offer;
+    }
+
+    /**
+     * Starts (or resumes) the download of an offered file.
+     * Called on the selector thread.
+     */
+    private void download(FileOfferMsg msg)
+    {
+        listeners.println("Receiving file '" + msg.getFileName() + "' (" + msg.getSize() + " B) from "
+                + msg.getFromName() + "...");
+        new Download(msg).start();
+    }
+
+    /**
+     * Stops the disk thread, to be called on shutdown.
+     */
+    public void shutdown()
+    {
+        disk.shutdownNow();
+    }
+
+    // =====================================================================
+
+    private ByteBuffer acquireBuffer()
+    {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(chunk);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private void releaseBuffer(ByteBuffer buffer)
+    {
+        if (buffer != null && buffers.size() < POOLED_BUFFERS) {
+            buffers.offer(buffer);
+        }
+    }
+
+    /**
+     * Makes a safe local file name out of the offered one.
+     */
+    static String sanitize(String fileName)
+    {
+        String name = fileName.substring(Math.max(fileName.lastIndexOf('/'), fileName.lastIndexOf('\\')) + 1);
+        name = name.replaceAll("[^A-Za-z0-9._-]", "_");
+        if (name.length() == 0 || name.startsWith(".")) {
+            name = "file" + name;
+        }
+        return name;
+    }
+
+    private static void closeQuietly(FileChannel channel)
+    {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            // nothing to do about it
+        }
+    }
+
+    private long now()
+    {
+        return environment.getTimeSource().currentTimeMillis();
+    }
+
+    /**
+     * Returns the percent reached in tens, for the progress reports.
+     */
+    private static int decile(long done, long size)
+    {
+        return size == 0 ? 10 : (int) (done * 10 / size);
+    }
+
+    // =====================================================================
+
+    public int getUploadCount()
+    {
+        return uploads.get();
+    }
+
+    public int getDownloadCount()
+    {
+        return downloads.get();
+    }
+
+    public long getBytesSent()
+    {
+        return bytesSent.get();
+    }
+
+    public long getBytesReceived()
+    {
+        return bytesReceived.get();
+    }
+
+    // =====================================================================
+
+    /**
+     * File offered to a recipient.
+     */
+    private static class Offer
+    {
+        final File file;
+        /**
+         * Size and modification time when offered.
+         */
+        final long size;
+        final long modified;
+        final String toName;
+        /**
+         * When the offer was made or last asked for.
+         */
+        volatile long used;
+
+        Offer(File file, long size, long modified, String toName, long used)
+        {
+            this.file = file;
+            this.size = size;
+            this.modified = modified;
+            this.toName = toName;
+            this.used = used;
+        }
+    }
+
+    /**
+     * File offered to us.
+     */
+    private static class Incoming
+    {
+        final FileOfferMsg msg;
+        final long time;
+
+        Incoming(FileOfferMsg msg, long time)
+        {
+            this.msg = msg;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Disk work run on the disk thread, with its outcome handed back to the
+     * selector thread.
+     */
+    private abstract class DiskTask implements Runnable
+    {
+        private IOException error;
+
+        /**
+         * The disk work, on the disk thread.
+         */
+        abstract void io() throws IOException;
+
+        /**
+         * Continues after the work, on the selector thread.
+         */
+        abstract void done();
+
+        /**
+         * Continues after a failure, on the selector thread.
+         */
+        abstract void failed(IOException ex);
+
+        void submit()
+        {
+            disk.execute(this);
+        }
+
+        @Override
+        public final void run()
+        {
+            try {
+                io();
+            } catch (IOException ex) {
+                error = ex;
+            }
+            environment.getSelectorManager().invoke(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (error != null) {
+                        failed(error);
+                    } else {
+                        done();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Sending side of a connection: reads the request, then streams the file.
+     */
+    private class Upload implements AppSocketReceiver
+    {
+        private final AppSocket socket;
+        private final ByteBuffer request = ByteBuffer.allocate(REQUEST_LENGTH);
+        private long transferId;
+        private Offer offer;
+        private FileChannel file;
+        private ByteBuffer buffer;
+        private long position;
+        private long size;
+        private int reported;
+        private boolean finished = false;
+
+        Upload(AppSocket socket)
+        {
+            this.socket = socket;
+        }
+
+        void start()
+        {
+            socket.register(true, false, IO_TIMEOUT, this);
+        }
+
+        @Override
+        public void receiveSocket(AppSocket socket)
+        {
+        }
+
+        @Override
+        public void receiveSelectResult(AppSocket socket, boolean canRead, boolean canWrite)
+        {
+            try {
+                if (request.hasRemaining()) {
+                    readRequest();
+                } else if (finished) {
+                    // wait for the recipient to close
+                    if (socket.read(request) < 0) {
+                        close();
+                    } else {
+                        socket.register(true, false, IO_TIMEOUT, this);
+                    }
+                } else {
+                    writeChunk();
+                }
+            } catch (IOException ex) {
+                receiveException(socket, ex);
+            }
+        }
+
+        private void readRequest() throws IOException
+        {
+            if (socket.read(request) < 0) {
+                close();
+                return;
+            }
+            if (request.hasRemaining()) {
+                socket.register(true, false, IO_TIMEOUT, this);
+                return;
+            }
+            request.flip();
+            byte version = request.get();
+            transferId = request.getLong();
+            position = request.getLong();
+            offer = version == VERSION ? offers.get(transferId) : null;
+            if (offer == null || now() - offer.used > offerTtl) {
+                // unknown or expired
+                offers.remove(transferId);
+                offer = null;
+                close();
+                return;
+            }
+            offer.used = now();
+            uploads.incrementAndGet();
+            new DiskTask()
+            {
+                @Override
+                void io() throws IOException
+                {
+                    file = new RandomAccessFile(offer.file, "r").getChannel();
+                    size = file.size();
+                    if (size != offer.size || offer.file.lastModified() != offer.modified) {
+                        // the recipient would resume with some other data
+                        throw new IOException("'" + offer.file.getName() + "' has changed since it was offered");
+                    }
+                }
+
+                @Override
+                void done()
+                {
+                    if (position < 0 || position > size) {
+                        close();
+                        return;
+                    }
+                    if (position > 0) {
+                        listeners.println("Resuming '" + offer.file.getName() + "' to " + offer.toName + " at "
+                                + position + " B.");
+                    }
+                    reported = decile(position, size);
+                    buffer = acquireBuffer();
+                    buffer.flip();
+                    socket.register(false, true, IO_TIMEOUT, Upload.this);
+                }
+
+                @Override
+                void failed(IOException ex)
+                {
+                    receiveException(socket, ex);
+                }
+            }.submit();
+        }
+
+        private void writeChunk() throws IOException
+        {
+            if (!buffer.hasRemaining()) {
+                if (position >= size) {
+                    // all out, let the recipient confirm by closing
+                    finished = true;
+                    offers.remove(transferId);
+                    listeners.println("Sent file '" + offer.file.getName() + "' to " + offer.toName + ".");
+                    socket.shutdownOutput();
+                    request.clear();
+                    socket.register(true, false, IO_TIMEOUT, this);
+                    return;
+                }
+                readAhead();
+                return;
+            }
+            bytesSent.addAndGet(socket.write(buffer));
+
+            int d = decile(position - buffer.remaining(), size);
+            if (d > reported && d < 10) {
+                reported = d;
+                listeners.println("Sending '" + offer.file.getName() + "' to " + offer.toName + ": "
+                        + (d * 10) + " %");
+            }
+            socket.register(false, true, IO_TIMEOUT, this);
+        }
+
+        /**
+         * Fills the buffer with the next chunk of the file, then goes on
+         * writing.
+         */
+        private void readAhead()
+        {
+            buffer.clear();
+            new DiskTask()
+            {
+                @Override
+                void io() throws IOException
+                {
+                    int n = file.read(buffer, position);
+                    if (n < 0) {
+                        throw new IOException("File shrunk");
+                    }
+                    position += n;
+                }
+
+                @Override
+                void done()
+                {
+                    buffer.flip();
+                    socket.register(false, true, IO_TIMEOUT, Upload.this);
+                }
+
+                @Override
+                void failed(IOException ex)
+                {
+                    receiveException(socket, ex);
+                }
+            }.submit();
+        }
+
+        @Override
+        public void receiveException(AppSocket socket, Exception e)
+        {
+            if (offer != null && !finished) {
+                listeners.println("Sending '" + offer.file.getName() + "' to " + offer.toName
+                        + " interrupted: " + e.getMessage());
+            }
+            close();
+        }
+
+        private void close()
+        {
+            socket.close();
+            closeQuietly(file);
+            file = null;
+            releaseBuffer(buffer);
+            buffer = null;
+            if (offer != null) {
+                uploads.decrementAndGet();
+                offer = null;
+            }
+        }
+    }
+
+    /**
+     * Receiving side: connects to the source and pulls the file.
+     */
+    private class Download implements AppSocketReceiver
+    {
+        private final FileOfferMsg offer;
+        private final File part;
+        private final File target;
+        private AppSocket socket;
+        private FileChannel file;
+        private ByteBuffer request;
+        private ByteBuffer buffer;
+        private long received;
+        private int reported;
+        private int attempts = 0;
+
+        Download(FileOfferMsg offer)
+        {
+            this.offer = offer;
+            String name = sanitize(offer.getFileName());
+            this.target = new File(downloadDir, name);
+            // the same file from the same sender continues where it stopped
+            this.part = new File(downloadDir, sanitize(offer.getFromName()) + "-" + name
+                    + "-" + offer.getSize() + "-" + offer.getModified() + ".part");
+        }
+
+        void start()
+        {
+            new DiskTask()
+            {
+                private FileChannel opened;
+
+                @Override
+                void io() throws IOException
+                {
+                    if (!downloadDir.isDirectory() && !downloadDir.mkdirs()) {
+                        throw new IOException("Cannot create the download directory " + downloadDir);
+                    }
+                    opened = new RandomAccessFile(part, "rw").getChannel();
+                    received = opened.size();
+                    if (received > offer.getSize()) {
+                        // can't be the same file
+                        opened.truncate(0);
+                        received = 0;
+                    }
+                }
+
+                @Override
+                void done()
+                {
+                    file = opened;
+                    if (received > 0) {
+                        listeners.println("Resuming '" + offer.getFileName() + "' from " + offer.getFromName()
+                                + " at " + received + " B.");
+                    }
+                    reported = decile(received, offer.getSize());
+                    downloads.incrementAndGet();
+                    endpoint.connect(offer.getSource(), Download.this, CONNECT_TIMEOUT);
+                }
+
+                @Override
+                void failed(IOException ex)
+                {
+                    listeners.println("Cannot write " + part + ": " + ex.getMessage());
+                    closeQuietly(opened);
+                }
+            }.submit();
+        }
+
+        @Override
+        public void receiveSocket(AppSocket socket)
+        {
+            this.socket = socket;
+            request = ByteBuffer.allocate(REQUEST_LENGTH);
+            request.put(VERSION).putLong(offer.getTransferId()).putLong(received);
+            request.flip();
+            socket.register(false, true, IO_TIMEOUT, this);
+        }
+
+        @Override
+        public void receiveSelectResult(AppSocket socket, boolean canRead, boolean canWrite)
+        {
+            try {
+                if (request.hasRemaining()) {
+                    socket.write(request);
+                    if (request.hasRemaining()) {
+                        socket.register(false, true, IO_TIMEOUT, this);
+                        return;
+                    }
+                    buffer = acquireBuffer();
+                    socket.register(true, false, IO_TIMEOUT, this);
+                    return;
+                }
+                readChunk();
+            } catch (IOException ex) {
+                receiveException(socket, ex);
+            }
+        }
+
+        private void readChunk() throws IOException
+        {
+            buffer.clear();
+            long n = socket.read(buffer);
+            if (n < 0) {
+                if (received == offer.getSize()) {
+                    complete();
+                } else {
+                    throw new IOException("Connection closed at " + received + " B");
+                }
+                return;
+            }
+            bytesReceived.addAndGet(n);
+            if (received + n > offer.getSize()) {
+                throw new IOException("More data than offered");
+            }
+            buffer.flip();
+            new DiskTask()
+            {
+                @Override
+                void io() throws IOException
+                {
+                    while (buffer.hasRemaining()) {
+                        received += file.write(buffer, received);
+                    }
+                }
+
+                @Override
+                void done()
+                {
+                    int d = decile(received, offer.getSize());
+                    if (d > reported && d < 10) {
+                        reported = d;
+                        listeners.println("Receiving '" + offer.getFileName() + "' from " + offer.getFromName()
+                                + ": " + (d * 10) + " %");
+                    }
+                    socket.register(true, false, IO_TIMEOUT, Download.this);
+                }
+
+                @Override
+                void failed(IOException ex)
+                {
+                    receiveException(socket, ex);
+                }
+            }.submit();
+        }
+
+        private void complete()
+        {
+            close();
+            new DiskTask()
+            {
+                private File saved = target;
+
+                @Override
+                void io() throws IOException
+                {
+                    for (int i = 1; saved.exists(); i++) {
+                        saved = new File(downloadDir, i + "-" + target.getName());
+                    }
+                    if (!part.renameTo(saved)) {
+                        throw new IOException("Cannot rename " + part + " to " + saved);
+                    }
+                }
+
+                @Override
+                void done()
+                {
+                    listeners.println("Received file '" + offer.getFileName() + "' from " + offer.getFromName()
+                            + ", saved as " + saved.getPath() + ".");
+                }
+
+                @Override
+                void failed(IOException ex)
+                {
+                    listeners.println("Received file '" + offer.getFileName() + "' from " + offer.getFromName()
+                            + " but could not save it: " + ex.getMessage());
+                }
+            }.submit();
+        }
+
+        @Override
+        public void receiveException(AppSocket socket, Exception e)
+        {
+            close();
+            if (++attempts > RETRIES) {
+                listeners.println("Receiving '" + offer.getFileName() + "' from " + offer.getFromName()
+                        + " failed: " + e.getMessage() + ". It will resume if sent again.");
+                return;
+            }
+            listeners.println("Receiving '" + offer.getFileName() + "' from " + offer.getFromName()
+                    + " interrupted: " + e.getMessage() + ". Resuming...");
+            environment.getSelectorManager().getTimer().schedule(new TimerTask()
+            {
+                @Override
+                public void run()
+                {
+                    start();
+                }
+            }, RETRY_DELAY);
+        }
+
+        private void close()
+        {
+            if (socket != null) {
+                socket.close();
+                socket = null;
+            }
+            if (file != null) {
+                closeQuietly(file);
+                file = null;
+                downloads.decrementAndGet();
+            }
+            releaseBuffer(buffer);
+            buffer = null;
+        }
+    }
+}
@@ -1,4 +1,8 @@
 
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import rice.environment.params.Parameters;
 import rice.pastry.Id;
 import rice.pastry.NodeIdFactory;
 
@@ -9,33 +13,110 @@ import rice.pastry.NodeIdFactory;
  * Generates a node Id based on a feed supplied during the construction of this
  * class. It therefore generates the same Id every single time. It is useful
  * when we need a factory with consistent output based on input data.
- * 
+ *
+ * The Id is the SHA-1 digest of the feed, which fills all 160 bits of the Id.
+ * The original derivation (the feed's hashCode() repeated in every word) is
+ * kept as version 1 for rings which have not moved yet. A client's Id is
+ * derived by every node that routes to it, so all nodes of a ring must use
+ * the same version and switching is a flag day: stop the whole ring, set
+ * the version everywhere and start it again, see {@see #getVersion()}.
+ *
  * @author Dejvino
  */
 public class HashNodeIdFactory implements NodeIdFactory
 {
+    /**
+     * Legacy derivation, String.hashCode() repeated in every word.
+     */
+    public static final int VERSION_HASHCODE = 1;
+    /**
+     * SHA-1 digest of the UTF-8 encoded feed.
+     */
+    public static final int VERSION_DIGEST = 2;
+
+    public static final int CURRENT_VERSION = VERSION_DIGEST;
+
+    /**
+     * Digest per thread, looking one up is costly and Ids are derived for
+     * every member of a fan-out.
+     */
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>()
+    {
+        @Override
+        protected MessageDigest initialValue()
+        {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new RuntimeException("No SHA-1 support!", ex);
+            }
+        }
+    };
+
     private String feed;
-    
+
+    private int version;
+
     /**
      * Constructs a factory which generates an Id associated with the given feed.
      * Feed could be any name or identifier, for example a nickname.
-     * 
-     * @param feed 
+     *
+     * @param feed
      */
     public HashNodeIdFactory(String feed)
     {
+        this(feed, CURRENT_VERSION);
+    }
+
+    /**
+     * Constructs a factory using the given version of the Id derivation.
+     *
+     * @param feed
+     * @param version
+     */
+    public HashNodeIdFactory(String feed, int version)
+    {
+        if (version != VERSION_HASHCODE && version != VERSION_DIGEST) {
+            throw new IllegalArgumentException("Unknown Id version: " + version);
+        }
         this.feed = feed;
+        this.version = version;
     }
 
     @Override
     public Id generateNodeId()
     {
-        // generate hash material based on the feed
-        int[] material = new int[Id.IdBitLength >> 5];
-        for (int i = 0; i < material.length; i++) {
-            material[i] = feed.hashCode();
+        if (version == VERSION_HASHCODE) {
+            // generate hash material based on the feed
+            int[] material = new int[Id.IdBitLength >> 5];
+            for (int i = 0; i < material.length; i++) {
+                material[i] = feed.hashCode();
+            }
+            return Id.build(material);
+        }
+
+        try {
+            // digest() resets it for the next use
+            return Id.build(DIGEST.get().digest(feed.getBytes("UTF-8")));
+        } catch (UnsupportedEncodingException ex) {
+            throw new RuntimeException("No UTF-8 support!", ex);
+        }
+    }
+
+    // =====================================================================
+
+    /**
+     * Returns the Id derivation version configured by the environment
+     * parameter "pastrychat_id_version", or the current version.
+     *
+     * @param params
+     * @return
+     */
+    public static int getVersion(Parameters params)
+    {
+        if (params.contains("pastrychat_id_version")) {
+            return params.getInt("pastrychat_id_version");
         }
-        return Id.build(material);
+        return CURRENT_VERSION;
     }
-    
 }
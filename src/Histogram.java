@@ -0,0 +1,100 @@
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ *      Histogram
+ *
+ * Lock-free histogram of non-negative values in power-of-two buckets.
+ * Bucket 0 counts zeros, bucket i counts the values in [2^(i-1), 2^i).
+ * Recording is a couple of atomic increments, no allocation.
+ *
+ * @author Dejvino
+ */
+public class Histogram
+{
+    private static final int BUCKETS = 64;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    // =====================================================================
+
+    /**
+     * Records a value (negative values count as zero).
+     *
+     * @param value
+     */
+    public void record(long value)
+    {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long m;
+        while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+            // retry
+        }
+    }
+
+    // =====================================================================
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public double getMean()
+    {
+        long c = count.get();
+        return c == 0 ? 0 : (double) sum.get() / c;
+    }
+
+    public long getMax()
+    {
+        return max.get();
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile.
+     *
+     * @param p Percentile, 0..1
+     * @return
+     */
+    public long getPercentile(double p)
+    {
+        long c = count.get();
+        if (c == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(p * c);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets.get(i);
+            if (seen >= rank) {
+                return i == 0 ? 0 : Math.min((1L << i) - 1, max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Returns the bucket counts, trailing empty buckets left out.
+     */
+    public long[] getBuckets()
+    {
+        int n = BUCKETS;
+        while (n > 0 && buckets.get(n - 1) == 0) {
+            n--;
+        }
+        long[] copy = new long[n];
+        for (int i = 0; i < n; i++) {
+            copy[i] = buckets.get(i);
+        }
+        return copy;
+    }
+}
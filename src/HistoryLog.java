@@ -0,0 +1,393 @@
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ *      HistoryLog
+ *
+ * Append-only message log of a single channel (or private conversation).
+ * The log is split into fixed-size segment files. A new segment is started
+ * when the current one is full, and the oldest segments are deleted once the
+ * log grows over its size limit or they get too old. Only the segment being
+ * written is memory-mapped, the full ones are read with plain file reads.
+ *
+ * Every segment keeps an in-memory index of its record offsets, so reading
+ * the last few entries only touches the pages holding them. The index of a
+ * full segment is built on its first read.
+ *
+ * Segment layout: [int magic][long time][records]. The time is the timestamp
+ * of the newest record, so the age limit is measured in the same clock as
+ * the entries, not by the file's modification time.
+ *
+ * Record layout: [int record length][long timestamp][UTF-8 text]. The length
+ * is written last, a torn record therefore reads as the end of the segment.
+ *
+ * Not meant to be used on the selector thread, appends may create and map
+ * a new segment file.
+ *
+ * @author Dejvino
+ */
+public class HistoryLog
+{
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int MAGIC = 0x50434831;
+    private static final int SEGMENT_HEADER_SIZE = 4 + 8;
+    private static final int RECORD_HEADER_SIZE = 4 + 8;
+
+    private final File dir;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final long maxAge;
+
+    /**
+     * Segments from the oldest to the newest.
+     */
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    private long nextSequence = 0;
+
+    /**
+     * Opens (or creates) the log in the given directory.
+     *
+     * @param dir Log directory
+     * @param segmentSize Size of a segment file in bytes
+     * @param maxBytes Retention limit of the whole log in bytes
+     * @param maxAge Retention limit of a segment in ms
+     * @throws IOException
+     */
+    public HistoryLog(File dir, int segmentSize, long maxBytes, long maxAge) throws IOException
+    {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.maxBytes = maxBytes;
+        this.maxAge = maxAge;
+
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        String[] names = dir.list(new FilenameFilter()
+        {
+            @Override
+            public boolean accept(File d, String name)
+            {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        // names are zero-padded sequence numbers
+        Arrays.sort(names);
+        for (String name : names) {
+            long sequence;
+            try {
+                sequence = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException ex) {
+                System.err.println("Skipping foreign file " + new File(dir, name));
+                continue;
+            }
+            // never reuse the name of a skipped segment
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            try {
+                segments.add(new Segment(sequence, false));
+            } catch (IOException ex) {
+                System.err.println("Skipping " + ex.getMessage());
+            }
+        }
+        if (!segments.isEmpty()) {
+            segments.getLast().activate();
+        }
+    }
+
+    // =====================================================================
+
+    /**
+     * Appends an entry.
+     *
+     * @param timestamp
+     * @param text
+     * @throws IOException
+     */
+    public synchronized void append(long timestamp, String text) throws IOException
+    {
+        byte[] bytes = text.getBytes("UTF-8");
+        int room = segmentSize - SEGMENT_HEADER_SIZE - RECORD_HEADER_SIZE;
+        if (bytes.length > room) {
+            // would never fit, keep what we can
+            bytes = Arrays.copyOf(bytes, room);
+        }
+
+        Segment segment = segments.isEmpty() ? null : segments.getLast();
+        if (segment == null || !segment.fits(bytes.length)) {
+            if (segment != null) {
+                segment.seal();
+            }
+            segment = new Segment(nextSequence++, true);
+            segments.add(segment);
+            retain(timestamp);
+        }
+        segment.append(timestamp, bytes);
+    }
+
+    /**
+     * Returns up to n latest entries, the oldest first.
+     *
+     * @param n
+     * @return
+     * @throws IOException
+     */
+    public synchronized List<Entry> tail(int n) throws IOException
+    {
+        LinkedList<Entry> entries = new LinkedList<Entry>();
+        for (int s = segments.size() - 1; s >= 0 && entries.size() < n; s--) {
+            Segment segment = segments.get(s);
+            FileChannel channel = segment.buffer == null
+                    ? new RandomAccessFile(segment.file, "r").getChannel() : null;
+            try {
+                segment.ensureIndexed(channel);
+                for (int i = segment.count - 1; i >= 0 && entries.size() < n; i--) {
+                    entries.addFirst(segment.read(i, channel));
+                }
+            } finally {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+        }
+        return entries;
+    }
+
+    // =====================================================================
+
+    /**
+     * Drops the oldest segments over the size or age limit, always keeping
+     * the newest one.
+     */
+    private void retain(long now)
+    {
+        while (segments.size() > 1) {
+            Segment oldest = segments.getFirst();
+            boolean tooBig = (long) segments.size() * segmentSize > maxBytes;
+            boolean tooOld = now - oldest.time > maxAge;
+            if (!tooBig && !tooOld) {
+                break;
+            }
+            segments.removeFirst();
+            oldest.delete();
+        }
+    }
+
+    // =====================================================================
+
+    /**
+     *  Log entry
+     */
+    public static class Entry
+    {
+        private final long timestamp;
+        private final String text;
+
+        public Entry(long timestamp, String text)
+        {
+            this.timestamp = timestamp;
+            this.text = text;
+        }
+
+        public long getTimestamp()
+        {
+            return timestamp;
+        }
+
+        public String getText()
+        {
+            return text;
+        }
+    }
+
+    // =====================================================================
+
+    /**
+     *  Segment
+     *
+     * Single segment file with its offset index. Only the active segment
+     * holds a mapping, a sealed one drops it and is read through a channel.
+     */
+    private class Segment
+    {
+        final long sequence;
+        final File file;
+
+        /**
+         * Mapping of the active segment, null once sealed.
+         */
+        MappedByteBuffer buffer;
+
+        /**
+         * Timestamp of the newest record.
+         */
+        long time;
+
+        /**
+         * Offsets of the records, null until indexed.
+         */
+        int[] offsets;
+        int count = 0;
+        int writePosition = SEGMENT_HEADER_SIZE;
+
+        /**
+         * Creates a new active segment, or opens an existing sealed one.
+         */
+        Segment(long sequence, boolean create) throws IOException
+        {
+            this.sequence = sequence;
+            this.file = new File(dir, String.format("%020d", sequence) + SEGMENT_SUFFIX);
+
+            if (create) {
+                map();
+                buffer.putLong(4, 0);
+                buffer.putInt(0, MAGIC);
+                offsets = new int[64];
+                return;
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                if (raf.length() < SEGMENT_HEADER_SIZE || raf.readInt() != MAGIC) {
+                    throw new IOException("Not a history segment: " + file);
+                }
+                time = raf.readLong();
+            } finally {
+                raf.close();
+            }
+        }
+
+        /**
+         * Maps the segment for appending.
+         */
+        void activate() throws IOException
+        {
+            map();
+            offsets = null;
+            count = 0;
+            ensureIndexed(null);
+        }
+
+        /**
+         * Drops the mapping, the pages are released once it is collected.
+         */
+        void seal()
+        {
+            buffer = null;
+        }
+
+        boolean fits(int length)
+        {
+            return writePosition + RECORD_HEADER_SIZE + length <= segmentSize;
+        }
+
+        void append(long timestamp, byte[] bytes)
+        {
+            ByteBuffer b = buffer.duplicate();
+            b.position(writePosition + 4);
+            b.putLong(timestamp);
+            b.put(bytes);
+            // commit
+            buffer.putInt(writePosition, RECORD_HEADER_SIZE + bytes.length);
+            index(writePosition);
+            writePosition += RECORD_HEADER_SIZE + bytes.length;
+            time = timestamp;
+            buffer.putLong(4, timestamp);
+        }
+
+        /**
+         * Builds the offset index, reading the whole segment through the
+         * channel if it is sealed.
+         */
+        void ensureIndexed(FileChannel channel) throws IOException
+        {
+            if (offsets != null) {
+                return;
+            }
+            ByteBuffer view = buffer;
+            if (view == null) {
+                view = ByteBuffer.allocate((int) Math.min(channel.size(), segmentSize));
+                readFully(channel, view, 0);
+            }
+            offsets = new int[64];
+            writePosition = SEGMENT_HEADER_SIZE;
+            while (writePosition + RECORD_HEADER_SIZE <= view.limit()) {
+                int length = view.getInt(writePosition);
+                if (length < RECORD_HEADER_SIZE || writePosition + length > view.limit()) {
+                    break;
+                }
+                index(writePosition);
+                writePosition += length;
+            }
+        }
+
+        Entry read(int i, FileChannel channel) throws IOException
+        {
+            int offset = offsets[i];
+            ByteBuffer record;
+            if (buffer != null) {
+                record = buffer.duplicate();
+                record.position(offset);
+            } else {
+                ByteBuffer header = ByteBuffer.allocate(4);
+                readFully(channel, header, offset);
+                record = ByteBuffer.allocate(header.getInt(0));
+                readFully(channel, record, offset);
+                record.position(0);
+            }
+            int length = record.getInt() - RECORD_HEADER_SIZE;
+            long timestamp = record.getLong();
+            byte[] bytes = new byte[length];
+            record.get(bytes);
+            return new Entry(timestamp, new String(bytes, "UTF-8"));
+        }
+
+        void delete()
+        {
+            buffer = null;
+            if (!file.delete()) {
+                // mapped files can't be deleted on some systems, try later
+                file.deleteOnExit();
+            }
+        }
+
+        private void map() throws IOException
+        {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            try {
+                FileChannel channel = raf.getChannel();
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            } finally {
+                // the mapping stays valid
+                raf.close();
+            }
+        }
+
+        private void index(int offset)
+        {
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = offset;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException
+    {
+        while (dst.hasRemaining()) {
+            int read = channel.read(dst, position);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,207 @@
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import rice.environment.params.Parameters;
+
+/**
+ *      HistoryStore
+ *
+ * Keeps a {@see HistoryLog} for every channel and private conversation
+ * of a node.
+ *
+ * The logs are only touched by a single writer thread, so the callers (the
+ * selector among them) never wait on the disk. Reads are queued behind the
+ * pending appends and see them.
+ *
+ * Tunable via the environment parameters "pastrychat_history_dir" (empty
+ * disables the history), "pastrychat_history_segment" (bytes per segment),
+ * "pastrychat_history_size" (bytes per log) and "pastrychat_history_age"
+ * (ms per segment).
+ *
+ * @author Dejvino
+ */
+public class HistoryStore
+{
+    public static final String DEFAULT_DIR = "history";
+    public static final int DEFAULT_SEGMENT = 1024 * 1024;
+    public static final long DEFAULT_SIZE = 16L * 1024 * 1024;
+    public static final long DEFAULT_AGE = 7L * 24 * 60 * 60 * 1000;
+    private static final long SHUTDOWN_WAIT = 1000;
+
+    /**
+     * Root directory, or null if disabled.
+     */
+    private final File root;
+    private final int segmentSize;
+    private final long maxBytes;
+    private final long maxAge;
+
+    private final Map<String, HistoryLog> logs = new HashMap<String, HistoryLog>();
+    private final ExecutorService writer;
+
+    /**
+     * Constructor.
+     *
+     * @param params
+     * @param owner Name of the node's user, each user gets its own directory
+     */
+    public HistoryStore(Parameters params, String owner)
+    {
+        String dir = params.contains("pastrychat_history_dir")
+                ? params.getString("pastrychat_history_dir") : DEFAULT_DIR;
+        this.root = dir.length() == 0 ? null : new File(dir, encode(owner));
+        this.segmentSize = params.contains("pastrychat_history_segment")
+                ? params.getInt("pastrychat_history_segment") : DEFAULT_SEGMENT;
+        this.maxBytes = params.contains("pastrychat_history_size")
+                ? params.getLong("pastrychat_history_size") : DEFAULT_SIZE;
+        this.maxAge = params.contains("pastrychat_history_age")
+                ? params.getLong("pastrychat_history_age") : DEFAULT_AGE;
+        this.writer = Executors.newSingleThreadExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "History writer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    // =====================================================================
+
+    public boolean isEnabled()
+    {
+        return root != null;
+    }
+
+    /**
+     * Records a channel message.
+     */
+    public void append(ChannelMsg msg, long timestamp)
+    {
+        append("channel-" + encode(msg.getChannelName()), timestamp,
+                msg.getFromName() + " @ " + msg.getChannelName() + ": " + msg.getText());
+    }
+
+    /**
+     * Records a private message.
+     */
+    public void append(PrivateMsg msg, long timestamp)
+    {
+        append("user-" + encode(msg.getFromName()), timestamp,
+                msg.getFromName() + " --> " + msg.getToName() + ": " + msg.getText());
+    }
+
+    /**
+     * Returns up to n latest entries of the channel.
+     */
+    public List<HistoryLog.Entry> channelTail(String channelName, int n) throws IOException
+    {
+        return tail("channel-" + encode(channelName), n);
+    }
+
+    /**
+     * Returns up to n latest entries of the private conversation.
+     */
+    public List<HistoryLog.Entry> privateTail(String clientName, int n) throws IOException
+    {
+        return tail("user-" + encode(clientName), n);
+    }
+
+    /**
+     * Writes out the pending appends (waiting a moment at most) and stops
+     * the writer.
+     */
+    public void shutdown()
+    {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(SHUTDOWN_WAIT, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // =====================================================================
+
+    private void append(final String key, final long timestamp, final String text)
+    {
+        if (root == null) {
+            return;
+        }
+        writer.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    getLog(key).append(timestamp, text);
+                } catch (IOException ex) {
+                    System.err.println("Error writing history " + key);
+                    ex.printStackTrace();
+                }
+            }
+        });
+    }
+
+    private List<HistoryLog.Entry> tail(final String key, final int n) throws IOException
+    {
+        try {
+            return writer.submit(new Callable<List<HistoryLog.Entry>>()
+            {
+                @Override
+                public List<HistoryLog.Entry> call() throws IOException
+                {
+                    return getLog(key).tail(n);
+                }
+            }).get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException(ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reading history " + key);
+        }
+    }
+
+    private HistoryLog getLog(String key) throws IOException
+    {
+        if (root == null) {
+            throw new IOException("History is disabled.");
+        }
+        HistoryLog log = logs.get(key);
+        if (log == null) {
+            log = new HistoryLog(new File(root, key), segmentSize, maxBytes, maxAge);
+            logs.put(key, log);
+        }
+        return log;
+    }
+
+    /**
+     * Turns any name into a safe file name.
+     */
+    private static String encode(String name)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (char c : name.toCharArray()) {
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-') {
+                sb.append(c);
+            } else {
+                sb.append('_').append(Integer.toHexString(c)).append('_');
+            }
+        }
+        return sb.toString();
+    }
+}
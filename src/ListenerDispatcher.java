@@ -0,0 +1,336 @@
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import rice.environment.params.Parameters;
+import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.Node;
+
+/**
+ *      Listener dispatcher
+ *
+ * Delivers the {@see ChatAppListener} events on a dedicated thread, so that
+ * a slow user interface never stalls the Pastry selector thread.
+ *
+ * Events are queued in a bounded ring buffer. What happens when it is full
+ * is given by the {@see Overflow} policy. Listeners implementing
+ * {@see BatchChatAppListener} receive the queued messages in bulk.
+ *
+ * Tunable via the environment parameters "pastrychat_listener_capacity"
+ * (0 delivers the events synchronously on the calling thread) and
+ * "pastrychat_listener_overflow" (block, drop-oldest or coalesce; coalesce
+ * by default, as blocking stalls the selector thread behind the user
+ * interface).
+ *
+ * @author Dejvino
+ */
+public class ListenerDispatcher
+{
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * What to do with a new event when the buffer is full.
+     */
+    public enum Overflow
+    {
+        /**
+         * Wait until the dispatcher makes room (stalls the caller, opt-in).
+         */
+        BLOCK,
+        /**
+         * Overwrite the oldest queued event.
+         */
+        DROP_OLDEST,
+        /**
+         * Skip the event and report all the skipped ones with a single notice,
+         * the skipped messages can be read from the history.
+         */
+        COALESCE
+    }
+
+    private static final int EVENT_PRIVATE_MSG = 1;
+    private static final int EVENT_CHANNEL_MSG = 2;
+    private static final int EVENT_PRINTLN = 3;
+    private static final int EVENT_NODE_CONNECTED = 4;
+    private static final int EVENT_NODE_DISCONNECTED = 5;
+
+    private volatile ChatAppListener listener;
+
+    private final Overflow overflow;
+
+    private final ChatMetrics metrics;
+
+    /**
+     * Ring buffer
+     */
+    private final int[] types;
+    private final Object[] payloads;
+    private int head = 0;
+    private int count = 0;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    /**
+     * Number of events lost due to overflow, not reported yet.
+     */
+    private int skipped = 0;
+    private int skippedMessages = 0;
+    private long dropped = 0;
+
+    /**
+     * Constructor.
+     * 
+     * @param params
+     * @param metrics Receives the dispatch times
+     */
+    public ListenerDispatcher(Parameters params, ChatMetrics metrics)
+    {
+        this.metrics = metrics;
+        int capacity = params.contains("pastrychat_listener_capacity")
+                ? params.getInt("pastrychat_listener_capacity") : DEFAULT_CAPACITY;
+        this.overflow = params.contains("pastrychat_listener_overflow")
+                ? Overflow.valueOf(params.getString("pastrychat_listener_overflow").toUpperCase().replace('-', '_'))
+                : Overflow.COALESCE;
+        this.types = new int[Math.max(capacity, 0)];
+        this.payloads = new Object[types.length];
+
+        if (types.length > 0) {
+            Thread thread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    loop();
+                }
+            }, "ChatAppListener dispatcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    // =====================================================================
+
+    public void setListener(ChatAppListener listener)
+    {
+        this.listener = listener;
+    }
+
+    public ChatAppListener getListener()
+    {
+        return listener;
+    }
+
+    /**
+     * Returns the number of events lost due to overflow so far.
+     */
+    public long getDroppedCount()
+    {
+        lock.lock();
+        try {
+            return dropped;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // =====================================================================
+
+    public void messageDelivered(PrivateMsg msg)
+    {
+        post(EVENT_PRIVATE_MSG, msg);
+    }
+
+    public void messageDelivered(ChannelMsg msg)
+    {
+        post(EVENT_CHANNEL_MSG, msg);
+    }
+
+    public void println(String text)
+    {
+        post(EVENT_PRINTLN, text);
+    }
+
+    public void nodeConnected(Node node)
+    {
+        post(EVENT_NODE_CONNECTED, node);
+    }
+
+    public void nodeDisconnected(Node node)
+    {
+        post(EVENT_NODE_DISCONNECTED, node);
+    }
+
+    /**
+     * Delivers the quit command right away on the calling thread, so that
+     * the caller (usually the user interface loop) sees it before reading
+     * the next command.
+     */
+    public void quit()
+    {
+        ChatAppListener l = listener;
+        if (l != null) {
+            l.onQuitCommand();
+        }
+    }
+
+    // =====================================================================
+
+    private void post(int type, Object payload)
+    {
+        if (listener == null) {
+            return;
+        }
+        // synchronous mode
+        if (types.length == 0) {
+            synchronized (this) {
+                long start = System.nanoTime();
+                dispatch(type, payload);
+                metrics.listenerDispatch(System.nanoTime() - start);
+            }
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (count == types.length) {
+                switch (overflow) {
+                    case BLOCK:
+                        while (count == types.length) {
+                            notFull.awaitUninterruptibly();
+                        }
+                        break;
+                    case DROP_OLDEST:
+                        payloads[head] = null;
+                        head = (head + 1) % types.length;
+                        count--;
+                        dropped++;
+                        break;
+                    case COALESCE:
+                        skipped++;
+                        if (type == EVENT_PRIVATE_MSG || type == EVENT_CHANNEL_MSG) {
+                            skippedMessages++;
+                        }
+                        dropped++;
+                        return;
+                }
+            }
+            int tail = (head + count) % types.length;
+            types[tail] = type;
+            payloads[tail] = payload;
+            count++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Dispatcher thread's main loop.
+     */
+    private void loop()
+    {
+        int[] batchTypes = new int[types.length];
+        Object[] batchPayloads = new Object[types.length];
+        while (true) {
+            int n;
+            int lost;
+            int lostMessages;
+            // take everything there is
+            lock.lock();
+            try {
+                while (count == 0 && skipped == 0) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                n = count;
+                for (int i = 0; i < n; i++) {
+                    int index = (head + i) % types.length;
+                    batchTypes[i] = types[index];
+                    batchPayloads[i] = payloads[index];
+                    payloads[index] = null;
+                }
+                head = (head + n) % types.length;
+                count = 0;
+                lost = skipped;
+                lostMessages = skippedMessages;
+                skipped = 0;
+                skippedMessages = 0;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                long start = System.nanoTime();
+                dispatchAll(batchTypes, batchPayloads, n);
+                metrics.listenerDispatch(System.nanoTime() - start);
+                if (lost > 0) {
+                    dispatch(EVENT_PRINTLN, "[i] " + lost + " events skipped (" + lostMessages
+                            + " messages), the display can't keep up. See 'history <name>' for the messages.");
+                }
+            } catch (RuntimeException ex) {
+                System.err.println("Error in ChatAppListener");
+                ex.printStackTrace();
+            }
+            for (int i = 0; i < n; i++) {
+                batchPayloads[i] = null;
+            }
+        }
+    }
+
+    private void dispatchAll(int[] batchTypes, Object[] batchPayloads, int n)
+    {
+        ChatAppListener l = listener;
+        if (!(l instanceof BatchChatAppListener)) {
+            for (int i = 0; i < n; i++) {
+                dispatch(batchTypes[i], batchPayloads[i]);
+            }
+            return;
+        }
+
+        // hand over consecutive messages in bulk, keeping the order of events
+        BatchChatAppListener batchListener = (BatchChatAppListener) l;
+        List<Message> messages = new ArrayList<Message>();
+        for (int i = 0; i < n; i++) {
+            if (batchTypes[i] == EVENT_PRIVATE_MSG || batchTypes[i] == EVENT_CHANNEL_MSG) {
+                messages.add((Message) batchPayloads[i]);
+                continue;
+            }
+            if (!messages.isEmpty()) {
+                batchListener.onMessagesDelivered(messages);
+                messages = new ArrayList<Message>();
+            }
+            dispatch(batchTypes[i], batchPayloads[i]);
+        }
+        if (!messages.isEmpty()) {
+            batchListener.onMessagesDelivered(messages);
+        }
+    }
+
+    private void dispatch(int type, Object payload)
+    {
+        ChatAppListener l = listener;
+        if (l == null) {
+            return;
+        }
+        switch (type) {
+            case EVENT_PRIVATE_MSG:
+                l.onMessageDelivered((PrivateMsg) payload);
+                break;
+            case EVENT_CHANNEL_MSG:
+                l.onMessageDelivered((ChannelMsg) payload);
+                break;
+            case EVENT_PRINTLN:
+                l.onPrintln((String) payload);
+                break;
+            case EVENT_NODE_CONNECTED:
+                l.onNodeConnected((Node) payload);
+                break;
+            case EVENT_NODE_DISCONNECTED:
+                l.onNodeDisconnected((Node) payload);
+                break;
+        }
+    }
+}
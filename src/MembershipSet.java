@@ -0,0 +1,166 @@
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ *      MembershipSet
+ *
+ * Observed-remove set of client names. Every addition is marked with a unique
+ * tag and a removal only cancels the tags it has seen, so concurrent changes
+ * merged in any order at any replica end up with the same content.
+ *
+ * Small sets holding a single change are used as deltas, see
+ * {@see ChannelContent}.
+ *
+ * @author Dejvino
+ */
+public class MembershipSet implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Live tags of every member.
+     */
+    private Map<String, Set<Long>> added = new HashMap<String, Set<Long>>();
+
+    /**
+     * Tags which have been removed (tombstones).
+     */
+    private Set<Long> removed = new HashSet<Long>();
+
+    // =====================================================================
+
+    /**
+     * Adds the element marked with the given (unique) tag.
+     *
+     * @param element
+     * @param tag
+     */
+    public void add(String element, long tag)
+    {
+        if (removed.contains(tag)) {
+            return;
+        }
+        Set<Long> tags = added.get(element);
+        if (tags == null) {
+            tags = new HashSet<Long>();
+            added.put(element, tags);
+        }
+        tags.add(tag);
+    }
+
+    /**
+     * Removes the element by cancelling all of its observed tags.
+     *
+     * @param element
+     * @return cancelled tags (empty if the element was not present)
+     */
+    public Set<Long> remove(String element)
+    {
+        Set<Long> tags = added.remove(element);
+        if (tags == null) {
+            return Collections.emptySet();
+        }
+        removed.addAll(tags);
+        return tags;
+    }
+
+    /**
+     * Records removed tags without knowing their element.
+     *
+     * @param tags
+     */
+    public void removeTags(Set<Long> tags)
+    {
+        removed.addAll(tags);
+    }
+
+    public boolean contains(String element)
+    {
+        return added.containsKey(element);
+    }
+
+    /**
+     * Returns a read-only view of the present elements.
+     */
+    public Set<String> elements()
+    {
+        return Collections.unmodifiableSet(added.keySet());
+    }
+
+    public int size()
+    {
+        return added.size();
+    }
+
+    // =====================================================================
+
+    /**
+     * Merges the other set into this one.
+     *
+     * @param other
+     */
+    public void merge(MembershipSet other)
+    {
+        removed.addAll(other.removed);
+        for (Map.Entry<String, Set<Long>> entry : other.added.entrySet()) {
+            for (Long tag : entry.getValue()) {
+                add(entry.getKey(), tag);
+            }
+        }
+        // cancel what the other side has removed
+        if (!other.removed.isEmpty()) {
+            Iterator<Map.Entry<String, Set<Long>>> it = added.entrySet().iterator();
+            while (it.hasNext()) {
+                Set<Long> tags = it.next().getValue();
+                tags.removeAll(other.removed);
+                if (tags.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns a deep copy.
+     */
+    public MembershipSet copy()
+    {
+        MembershipSet copy = new MembershipSet();
+        for (Map.Entry<String, Set<Long>> entry : added.entrySet()) {
+            copy.added.put(entry.getKey(), new HashSet<Long>(entry.getValue()));
+        }
+        copy.removed.addAll(removed);
+        return copy;
+    }
+
+    /**
+     * Forgets the tombstones of the tags lower than the given one. Only safe
+     * when the additions of those tags can't arrive anymore.
+     *
+     * @param tag
+     */
+    public void compactBelow(long tag)
+    {
+        Iterator<Long> it = removed.iterator();
+        while (it.hasNext()) {
+            if (it.next() < tag) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Forgets all the tombstones. Only safe for a full snapshot which replaces
+     * the replicas instead of being merged into them.
+     */
+    public void compact()
+    {
+        removed.clear();
+    }
+}
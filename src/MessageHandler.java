@@ -0,0 +1,20 @@
+
+import rice.p2p.commonapi.Message;
+
+/**
+ *      Message handler
+ *
+ * Handles the delivered chat messages of a single type, see
+ * {@see MessageHandlerRegistry}.
+ *
+ * @author Dejvino
+ */
+public interface MessageHandler<T extends Message>
+{
+    /**
+     * Called on the delivery of the message.
+     *
+     * @param msg
+     */
+    public void handle(T msg);
+}
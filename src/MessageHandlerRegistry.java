@@ -0,0 +1,89 @@
+
+import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.rawserialization.RawMessage;
+
+/**
+ *      Message handler registry
+ *
+ * Table of the delivery handlers indexed by the message type code
+ * ({@see RawMessage#getType()}). Dispatch is a single array lookup no matter
+ * how many message types there are, and a new message type only needs its
+ * handler registered.
+ *
+ * @author Dejvino
+ */
+public class MessageHandlerRegistry
+{
+    /**
+     * Handlers by type code. Replaced as a whole on registration, so that
+     * the dispatch reads it without locking.
+     */
+    private volatile Entry<?>[] handlers = new Entry<?>[0];
+
+    // =====================================================================
+
+    /**
+     * Registers the handler of the given message type, replacing the
+     * previous one.
+     *
+     * @param type Type code of the messages
+     * @param messageClass Class of the messages
+     * @param handler
+     */
+    public synchronized <T extends Message> void register(short type, Class<T> messageClass, MessageHandler<T> handler)
+    {
+        if (type < 0) {
+            throw new IllegalArgumentException("Invalid message type: " + type);
+        }
+        Entry<?>[] copy = new Entry<?>[Math.max(handlers.length, type + 1)];
+        System.arraycopy(handlers, 0, copy, 0, handlers.length);
+        copy[type] = new Entry<T>(messageClass, handler);
+        handlers = copy;
+    }
+
+    /**
+     * Hands the message over to its handler.
+     *
+     * @param msg
+     * @return false if there is no handler for the message
+     */
+    public boolean dispatch(Message msg)
+    {
+        if (!(msg instanceof RawMessage)) {
+            return false;
+        }
+        int type = ((RawMessage) msg).getType();
+        Entry<?>[] h = handlers;
+        if (type < 0 || type >= h.length || h[type] == null) {
+            return false;
+        }
+        return h[type].handle(msg);
+    }
+
+    // =====================================================================
+
+    /**
+     * Handler with its message class, so that a message claiming a wrong
+     * type code is not passed to the handler.
+     */
+    private static class Entry<T extends Message>
+    {
+        private final Class<T> messageClass;
+        private final MessageHandler<T> handler;
+
+        Entry(Class<T> messageClass, MessageHandler<T> handler)
+        {
+            this.messageClass = messageClass;
+            this.handler = handler;
+        }
+
+        boolean handle(Message msg)
+        {
+            if (!messageClass.isInstance(msg)) {
+                return false;
+            }
+            handler.handle(messageClass.cast(msg));
+            return true;
+        }
+    }
+}
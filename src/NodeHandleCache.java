@@ -0,0 +1,116 @@
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import rice.environment.params.Parameters;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.NodeHandle;
+
+/**
+ *      Node handle cache
+ *
+ * Remembers the handles of the nodes we have heard from, keyed by their Id.
+ * Client Ids are node Ids (see {@see HashNodeIdFactory}), so a message for
+ * a known client can take the cached handle as its first hop and reach the
+ * recipient directly instead of going through O(log N) overlay hops.
+ *
+ * The handles are learned from the senders of the incoming messages and from
+ * the leaf set. A handle reported dead is evicted, the message then falls
+ * back to the regular key routing.
+ *
+ * Bounded by the environment parameter "pastrychat_route_cache" (number of
+ * handles, 0 turns the direct routing off).
+ *
+ * @author Dejvino
+ */
+public class NodeHandleCache
+{
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final int capacity;
+
+    private final Map<Id, NodeHandle> handles;
+
+    /**
+     * Constructor.
+     */
+    public NodeHandleCache(Parameters params)
+    {
+        this.capacity = params.contains("pastrychat_route_cache")
+                ? params.getInt("pastrychat_route_cache") : DEFAULT_CAPACITY;
+
+        // least recently used ones are forgotten first
+        this.handles = new LinkedHashMap<Id, NodeHandle>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Id, NodeHandle> eldest)
+            {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // =====================================================================
+
+    /**
+     * Remembers the handle of a node we have heard from.
+     *
+     * @param handle
+     */
+    public void learn(NodeHandle handle)
+    {
+        if (capacity <= 0 || handle == null || !handle.isAlive()) {
+            return;
+        }
+        synchronized (handles) {
+            handles.put(handle.getId(), handle);
+        }
+    }
+
+    /**
+     * Forgets the node's handle.
+     *
+     * @param id
+     */
+    public void evict(Id id)
+    {
+        synchronized (handles) {
+            handles.remove(id);
+        }
+    }
+
+    /**
+     * Returns a live handle of the node, if known.
+     *
+     * @param id Node Id
+     * @return Handle, or null to route by the key
+     */
+    public NodeHandle get(Id id)
+    {
+        if (capacity <= 0 || id == null) {
+            return null;
+        }
+        NodeHandle handle;
+        synchronized (handles) {
+            handle = handles.get(id);
+        }
+        if (handle != null && !handle.isAlive()) {
+            evict(id);
+            return null;
+        }
+        return handle;
+    }
+
+    // =====================================================================
+
+    public int getSize()
+    {
+        synchronized (handles) {
+            return handles.size();
+        }
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+}
@@ -0,0 +1,186 @@
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import rice.environment.params.Parameters;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.NodeHandle;
+import rice.selector.SelectorManager;
+
+/**
+ *      Outbound queue
+ *
+ * Multi-producer, single-consumer queue in front of the {@see Endpoint}.
+ * Any thread may enqueue a message without blocking; a single drainer running
+ * on the selector thread hands them over to {@see Endpoint#route()} in
+ * batches.
+ *
+ * The queue is bounded. When it is full, the newest message is rejected and
+ * counted as dropped (the sender gets false back).
+ *
+ * Tunable via the environment parameters "pastrychat_outbound_capacity" and
+ * "pastrychat_outbound_batch".
+ *
+ * @author Dejvino
+ */
+public class OutboundQueue
+{
+    public static final int DEFAULT_CAPACITY = 16384;
+    public static final int DEFAULT_BATCH = 64;
+
+    private final Endpoint endpoint;
+
+    private final SelectorManager selectorManager;
+
+    private final int capacity;
+
+    /**
+     * Maximal number of messages routed in a single selector turn.
+     */
+    private final int batch;
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+
+    /**
+     * Whether the drainer is scheduled on the selector.
+     */
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    // metrics
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicLong routed = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+
+    private final Runnable drainer = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            drain();
+        }
+    };
+
+    /**
+     * Constructor.
+     */
+    public OutboundQueue(Endpoint endpoint, SelectorManager selectorManager, Parameters params)
+    {
+        this.endpoint = endpoint;
+        this.selectorManager = selectorManager;
+        this.capacity = params.contains("pastrychat_outbound_capacity")
+                ? params.getInt("pastrychat_outbound_capacity") : DEFAULT_CAPACITY;
+        this.batch = params.contains("pastrychat_outbound_batch")
+                ? params.getInt("pastrychat_outbound_batch") : DEFAULT_BATCH;
+    }
+
+    // =====================================================================
+
+    /**
+     * Queues the message for routing.
+     *
+     * @param id Destination key (or null for direct sending)
+     * @param msg Message
+     * @param hint First hop (or null)
+     * @return false if the queue is full and the message was dropped
+     */
+    public boolean offer(Id id, Message msg, NodeHandle hint)
+    {
+        // reserve a slot
+        int d = depth.incrementAndGet();
+        if (d > capacity) {
+            depth.decrementAndGet();
+            dropped.incrementAndGet();
+            return false;
+        }
+        int max = maxDepth.get();
+        while (d > max && !maxDepth.compareAndSet(max, d)) {
+            max = maxDepth.get();
+        }
+
+        queue.offer(new Entry(id, msg, hint));
+
+        // wake up the drainer
+        if (draining.compareAndSet(false, true)) {
+            selectorManager.invoke(drainer);
+        }
+        return true;
+    }
+
+    // =====================================================================
+
+    /**
+     * Routes up to one batch of messages. Runs on the selector thread.
+     */
+    private void drain()
+    {
+        int count = 0;
+        Entry entry;
+        while (count < batch && (entry = queue.poll()) != null) {
+            depth.decrementAndGet();
+            endpoint.route(entry.id, entry.msg, entry.hint);
+            count++;
+        }
+        routed.addAndGet(count);
+
+        if (!queue.isEmpty()) {
+            // more to do, let the selector breathe first
+            selectorManager.invoke(drainer);
+            return;
+        }
+        draining.set(false);
+        // somebody might have slipped in before the flag went down
+        if (!queue.isEmpty() && draining.compareAndSet(false, true)) {
+            selectorManager.invoke(drainer);
+        }
+    }
+
+    // =====================================================================
+
+    public int getDepth()
+    {
+        return depth.get();
+    }
+
+    public int getMaxDepth()
+    {
+        return maxDepth.get();
+    }
+
+    public int getCapacity()
+    {
+        return capacity;
+    }
+
+    public long getRoutedCount()
+    {
+        return routed.get();
+    }
+
+    public long getDroppedCount()
+    {
+        return dropped.get();
+    }
+
+    // =====================================================================
+
+    /**
+     * Queued routing request.
+     */
+    private static class Entry
+    {
+        final Id id;
+        final Message msg;
+        final NodeHandle hint;
+
+        Entry(Id id, Message msg, NodeHandle hint)
+        {
+            this.id = id;
+            this.msg = msg;
+            this.hint = hint;
+        }
+    }
+}
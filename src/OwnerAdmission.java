@@ -0,0 +1,231 @@
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import rice.environment.params.Parameters;
+import rice.p2p.commonapi.Id;
+
+/**
+ *      Owner admission
+ *
+ * Bounds the work a channel owner takes on for the incoming broadcasts.
+ * Every broadcast has to pass:
+ *  - load shedding: nothing is admitted while the owner's pending work is
+ *    over the threshold,
+ *  - a token bucket of its sender,
+ *  - a token bucket of its channel.
+ * Rejected senders are told so by a {@see ThrottleMsg}, at most once per
+ * back-off period.
+ *
+ * The shard owners of a sharded channel admit the broadcasts forwarded by
+ * the coordinator again, as the shard is given by the message. They keep
+ * their own sender buckets per shard, so a node owning the coordinator and
+ * a shard does not charge the sender twice.
+ *
+ * Tunable via the environment parameters "pastrychat_limit_sender_rate",
+ * "pastrychat_limit_sender_burst", "pastrychat_limit_channel_rate",
+ * "pastrychat_limit_channel_burst" (a zero rate turns the limit off),
+ * "pastrychat_shed_threshold" (0 turns shedding off, half the outbound queue
+ * capacity by default), "pastrychat_shed_retry"
+ * and "pastrychat_limit_tracked" (number of senders and channels tracked).
+ *
+ * @author Dejvino
+ */
+public class OwnerAdmission
+{
+    /**
+     * Admitted, see the ThrottleMsg reasons for the rest.
+     */
+    public static final byte ADMITTED = 0;
+
+    private final double senderRate;
+    private final double senderBurst;
+    private final double channelRate;
+    private final double channelBurst;
+    private final int shedThreshold;
+    private final long shedRetry;
+
+    private final Map<SenderKey, Sender> senders;
+    private final Map<Id, TokenBucket> channels;
+
+    /**
+     * Constructor.
+     * 
+     * @param params
+     * @param outboundCapacity Capacity of the owner's {@see OutboundQueue}
+     */
+    public OwnerAdmission(Parameters params, int outboundCapacity)
+    {
+        this.senderRate = params.contains("pastrychat_limit_sender_rate")
+                ? params.getDouble("pastrychat_limit_sender_rate") : 5;
+        this.senderBurst = params.contains("pastrychat_limit_sender_burst")
+                ? params.getDouble("pastrychat_limit_sender_burst") : 20;
+        this.channelRate = params.contains("pastrychat_limit_channel_rate")
+                ? params.getDouble("pastrychat_limit_channel_rate") : 100;
+        this.channelBurst = params.contains("pastrychat_limit_channel_burst")
+                ? params.getDouble("pastrychat_limit_channel_burst") : 500;
+        this.shedThreshold = params.contains("pastrychat_shed_threshold")
+                ? params.getInt("pastrychat_shed_threshold") : outboundCapacity / 2;
+        this.shedRetry = params.contains("pastrychat_shed_retry")
+                ? params.getLong("pastrychat_shed_retry") : 1000;
+        final int tracked = params.contains("pastrychat_limit_tracked")
+                ? params.getInt("pastrychat_limit_tracked") : 10000;
+
+        // least recently active ones are forgotten first
+        this.senders = new LinkedHashMap<SenderKey, Sender>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<SenderKey, Sender> eldest)
+            {
+                return size() > tracked;
+            }
+        };
+        this.channels = new LinkedHashMap<Id, TokenBucket>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Id, TokenBucket> eldest)
+            {
+                return size() > tracked;
+            }
+        };
+    }
+
+    // =====================================================================
+
+    /**
+     * Decides about a broadcast.
+     *
+     * @param senderId Node Id of the sending client
+     * @param sender Name of the sending client
+     * @param shard Shard of the channel, or the coordinator's
+     * @param channelId Id of the channel (or its shard)
+     * @param pendingWork Owner's current backlog
+     * @param now Current time in ms
+     * @return ADMITTED or one of the ThrottleMsg reasons
+     */
+    public synchronized byte admit(Id senderId, String sender, int shard, Id channelId, int pendingWork, long now)
+    {
+        if (shedThreshold > 0 && pendingWork > shedThreshold) {
+            return ThrottleMsg.REASON_OVERLOAD;
+        }
+        if (senderRate > 0 && !getSender(senderId, sender, shard, now).bucket.tryAcquire(now)) {
+            return ThrottleMsg.REASON_SENDER;
+        }
+        if (channelRate > 0 && !getChannel(channelId, now).tryAcquire(now)) {
+            return ThrottleMsg.REASON_CHANNEL;
+        }
+        return ADMITTED;
+    }
+
+    /**
+     * Tells whether the rejected sender should get a throttle notice now,
+     * and for how long it should back off.
+     *
+     * @param senderId
+     * @param sender
+     * @param shard
+     * @param channelId
+     * @param reason The rejection reason
+     * @param now Current time in ms
+     * @return Back-off in ms, or -1 if the sender has been notified already
+     */
+    public synchronized long throttleNotice(Id senderId, String sender, int shard, Id channelId, byte reason,
+            long now)
+    {
+        long retryAfter;
+        switch (reason) {
+            case ThrottleMsg.REASON_SENDER:
+                retryAfter = getSender(senderId, sender, shard, now).bucket.getWait(now);
+                break;
+            case ThrottleMsg.REASON_CHANNEL:
+                retryAfter = getChannel(channelId, now).getWait(now);
+                break;
+            default:
+                retryAfter = shedRetry;
+        }
+        Sender s = getSender(senderId, sender, shard, now);
+        if (now < s.noticeUntil) {
+            return -1;
+        }
+        s.noticeUntil = now + Math.max(retryAfter, 1);
+        return retryAfter;
+    }
+
+    // =====================================================================
+
+    /**
+     * Senders are told apart by their node Id as well, the name alone is
+     * chosen by the client.
+     */
+    private Sender getSender(Id senderId, String name, int shard, long now)
+    {
+        SenderKey key = new SenderKey(senderId, name, shard);
+        Sender s = senders.get(key);
+        if (s == null) {
+            s = new Sender(new TokenBucket(Math.max(senderRate, 0), senderBurst, now));
+            senders.put(key, s);
+        }
+        return s;
+    }
+
+    private TokenBucket getChannel(Id channelId, long now)
+    {
+        TokenBucket bucket = channels.get(channelId);
+        if (bucket == null) {
+            bucket = new TokenBucket(channelRate, channelBurst, now);
+            channels.put(channelId, bucket);
+        }
+        return bucket;
+    }
+
+    // =====================================================================
+
+    /**
+     * Identity of a sender (in a shard).
+     */
+    private static class SenderKey
+    {
+        final Id id;
+        final String name;
+        final int shard;
+
+        SenderKey(Id id, String name, int shard)
+        {
+            this.id = id;
+            this.name = name;
+            this.shard = shard;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof SenderKey)) {
+                return false;
+            }
+            SenderKey other = (SenderKey) obj;
+            return id.equals(other.id) && name.equals(other.name) && shard == other.shard;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * (31 * id.hashCode() + name.hashCode()) + shard;
+        }
+    }
+
+    /**
+     * Limit state of a single sender.
+     */
+    private static class Sender
+    {
+        final TokenBucket bucket;
+        /**
+         * No more notices until then.
+         */
+        long noticeUntil = 0;
+
+        Sender(TokenBucket bucket)
+        {
+            this.bucket = bucket;
+        }
+    }
+}
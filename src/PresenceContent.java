@@ -0,0 +1,183 @@
+import java.util.Collections;
+import java.util.Set;
+import rice.p2p.commonapi.Id;
+import rice.p2p.past.ContentHashPastContent;
+import rice.p2p.past.PastContent;
+import rice.p2p.past.PastException;
+
+/**
+ *      PresenceContent
+ *
+ * One bucket of the presence index, stored in the "presence" Past: the
+ * nicknames of the online users hashing into the bucket. Every insert is
+ * merged into the replica's content (an observed-remove set, see
+ * {@see MembershipSet}), so users coming and going at the same time don't
+ * overwrite each other.
+ *
+ * A change (delta) is refused by a replica holding nothing, it would pass
+ * for the whole bucket there. A base, the looked-up content with the change
+ * applied, is stored as is where there is nothing yet.
+ *
+ * The tags start with the time of the registration. Every change carries
+ * the time it was made at, and merging it forgets the tombstones of the
+ * registrations older than a day, so that the content doesn't grow with
+ * every session ever seen. A change delayed for longer than that could only
+ * bring back a user who is gone (until its next registration), which the
+ * index tolerates.
+ *
+ * @author Dejvino
+ */
+public class PresenceContent extends ContentHashPastContent
+{
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Age of the registrations whose tombstones are forgotten (ms).
+     */
+    public static final long TOMBSTONE_AGE = 24L * 60 * 60 * 1000;
+
+    /**
+     * Random bits below the time in a tag.
+     */
+    private static final int TAG_RANDOM_BITS = 20;
+
+    private int bucket;
+
+    /**
+     * Online users.
+     */
+    private MembershipSet online = new MembershipSet();
+
+    /**
+     * When the change was made (ms), 0 for the merged content.
+     */
+    private long time = 0;
+
+    /**
+     * Whether this is just a change to be merged.
+     */
+    private boolean delta = false;
+
+    /**
+     * Constructor.
+     */
+    public PresenceContent(Id id, int bucket)
+    {
+        super(id);
+        this.bucket = bucket;
+    }
+
+    // =====================================================================
+
+    public int getBucket()
+    {
+        return bucket;
+    }
+
+    public Set<String> getOnline()
+    {
+        return online.elements();
+    }
+
+    /**
+     * Makes a unique registration tag.
+     *
+     * @param now Current time in ms
+     * @param random Random bits
+     * @return
+     */
+    public static long newTag(long now, long random)
+    {
+        return (now << TAG_RANDOM_BITS) | (random & ((1L << TAG_RANDOM_BITS) - 1));
+    }
+
+    /**
+     * Returns a change announcing the user online under a new tag, which
+     * also cancels the tags of its earlier sessions seen here (left behind
+     * by a crash).
+     *
+     * @param nickname
+     * @param tag See {@see #newTag()}
+     * @param now Current time in ms
+     * @return
+     */
+    public PresenceContent register(String nickname, long tag, long now)
+    {
+        PresenceContent d = new PresenceContent(getId(), bucket);
+        d.time = now;
+        d.delta = true;
+        d.online.removeTags(online.copy().remove(nickname));
+        d.online.add(nickname, tag);
+        return d;
+    }
+
+    /**
+     * Returns a change taking the user's session offline.
+     *
+     * @param tag Tag the user registered with
+     * @param now Current time in ms
+     * @return
+     */
+    public PresenceContent deregister(long tag, long now)
+    {
+        PresenceContent d = new PresenceContent(getId(), bucket);
+        d.time = now;
+        d.delta = true;
+        d.online.removeTags(Collections.singleton(tag));
+        return d;
+    }
+
+    /**
+     * Returns a base: a copy of this content with the change applied.
+     *
+     * @param change See {@see #register()}
+     * @return
+     */
+    public PresenceContent withChange(PresenceContent change)
+    {
+        PresenceContent b = new PresenceContent(getId(), bucket);
+        b.time = change.time;
+        b.online = online.copy();
+        b.online.merge(change.online);
+        return b;
+    }
+
+    // =====================================================================
+
+    @Override
+    public PastContent checkInsert(Id id, PastContent existingContent) throws PastException
+    {
+        if (!(existingContent instanceof PresenceContent)) {
+            // a change alone would pass for the whole bucket
+            if (delta) {
+                throw new PastException("Presence change of bucket " + bucket + " without a base");
+            }
+            return this;
+        }
+
+        // merge the change into a copy of what we have
+        PresenceContent existing = (PresenceContent) existingContent;
+        PresenceContent merged = new PresenceContent(existing.getId(), existing.bucket);
+        merged.online = existing.online.copy();
+        merged.online.merge(online);
+        if (time > TOMBSTONE_AGE) {
+            merged.online.compactBelow(newTag(time - TOMBSTONE_AGE, 0));
+        }
+        return merged;
+    }
+
+    @Override
+    public boolean isMutable()
+    {
+        // yes, the content CAN and WILL change
+        return true;
+    }
+
+    // =====================================================================
+
+    @Override
+    public String toString()
+    {
+        return "PresenceContent[" + bucket + ", " + online.size() + " online" + (delta ? ", delta" : "") + "]";
+    }
+}
@@ -0,0 +1,518 @@
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import rice.Continuation;
+import rice.environment.Environment;
+import rice.environment.params.Parameters;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.Node;
+import rice.p2p.past.Past;
+import rice.p2p.past.PastException;
+import rice.p2p.past.PastImpl;
+import rice.pastry.commonapi.PastryIdFactory;
+import rice.persistence.LRUCache;
+import rice.persistence.MemoryStorage;
+import rice.persistence.StorageManagerImpl;
+import rice.selector.TimerTask;
+
+/**
+ *      Presence index
+ *
+ * Distributed index of the online users, so that a message to somebody who
+ * is not there is refused right away instead of being routed across the ring
+ * and dropped at whichever node is the closest.
+ *
+ * The nicknames are hashed into a fixed number of buckets, each stored as
+ * a {@see PresenceContent} in a Past of its own ("presence"). A node adds
+ * its user once it has joined the ring and takes it out on shutdown.
+ *
+ * Every node keeps a Bloom filter of each bucket, refreshing one bucket at
+ * a time so that all of them are fetched once per refresh period. A user
+ * found in the filter (or not covered by a fresh one) is let through right
+ * away. A user missing from the filter may have come since the refresh, so
+ * the bucket is fetched again and the send is held until then; only a user
+ * missing from the fetched bucket is refused (a bucket not found refuses
+ * nobody). Users we hear from are added
+ * to the filters right away.
+ *
+ * Tunable via the environment parameter "pastrychat_presence_refresh" (ms to
+ * refresh all the buckets, 0 turns the index off).
+ *
+ * @author Dejvino
+ */
+public class PresenceIndex
+{
+    /**
+     * Number of buckets, has to be the same on all nodes.
+     */
+    public static final int BUCKETS = 64;
+
+    public static final int DEFAULT_REFRESH = 60000;
+
+    private static final long MIN_TICK = 100;
+
+    /**
+     * Longest hold of a send (ms), it goes through when the bucket can't be
+     * fetched by then.
+     */
+    private static final long HOLD_TIMEOUT = 5000;
+
+    private final Environment environment;
+
+    private final PastryIdFactory idFactory;
+
+    private final Past past;
+
+    /**
+     * Time to refresh all the buckets in ms, 0 when off.
+     */
+    private final int refresh;
+
+    private final AtomicReferenceArray<BloomFilter> filters = new AtomicReferenceArray<BloomFilter>(BUCKETS);
+
+    /**
+     * When the filters were fetched.
+     */
+    private final AtomicLongArray refreshed = new AtomicLongArray(BUCKETS);
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * Sends held until the bucket of their recipient is fetched, by the
+     * recipient name.
+     */
+    private final Map<String, List<Held>> held = new HashMap<String, List<Held>>();
+
+    private int nextBucket = 0;
+
+    private TimerTask refresher;
+
+    private String nickname;
+
+    /**
+     * Tag of our registration, 0 if not registered.
+     */
+    private long tag = 0;
+
+    /**
+     * Constructor.
+     */
+    public PresenceIndex(Node node, PastryIdFactory idFactory, int replicationFactor)
+    {
+        this.environment = node.getEnvironment();
+        this.idFactory = idFactory;
+
+        Parameters params = environment.getParameters();
+        this.refresh = params.contains("pastrychat_presence_refresh")
+                ? params.getInt("pastrychat_presence_refresh") : DEFAULT_REFRESH;
+
+        // the index is small and rebuilt by the users coming back, memory is fine
+        this.past = new PastImpl(node, new StorageManagerImpl(idFactory, new MemoryStorage(idFactory),
+                new LRUCache(new MemoryStorage(idFactory), 64 * 1024, environment)),
+                replicationFactor, "presence");
+    }
+
+    // =====================================================================
+
+    public static int bucketOf(String nickname)
+    {
+        return (nickname.hashCode() & Integer.MAX_VALUE) % BUCKETS;
+    }
+
+    private Id getBucketId(int bucket)
+    {
+        return idFactory.buildId("presence#" + bucket);
+    }
+
+    public boolean isEnabled()
+    {
+        return refresh > 0;
+    }
+
+    // =====================================================================
+
+    /**
+     * Announces the user online and starts refreshing the filters.
+     * To be called once the node has joined the ring.
+     *
+     * @param nickname
+     */
+    public void register(final String nickname)
+    {
+        if (!isEnabled()) {
+            return;
+        }
+        final int bucket = bucketOf(nickname);
+        final Id id = getBucketId(bucket);
+        // Past lives on the selector thread
+        environment.getSelectorManager().invoke(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // look first, to clear our sessions lost in a crash
+                past.lookup(id, false, new Continuation<Object, Exception>()
+                {
+                    @Override
+                    public void receiveResult(Object result)
+                    {
+                        if (result instanceof PresenceContent) {
+                            register((PresenceContent) result, nickname, true);
+                        } else {
+                            register(new PresenceContent(id, bucket), nickname, false);
+                        }
+                    }
+
+                    @Override
+                    public void receiveException(Exception result)
+                    {
+                        register(new PresenceContent(id, bucket), nickname, false);
+                    }
+                });
+            }
+        });
+        startRefreshing();
+    }
+
+    /**
+     * Stores our registration as a change of the looked-up content, or as
+     * a base when nothing was found (or a replica refused the change).
+     *
+     * @param content Looked-up content
+     * @param nickname
+     * @param found Whether the content was found
+     */
+    private synchronized void register(final PresenceContent content, String nickname, boolean found)
+    {
+        this.nickname = nickname;
+        tag = PresenceContent.newTag(now(), environment.getRandomSource().nextLong());
+        seen(nickname);
+        final PresenceContent change = content.register(nickname, tag, now());
+        if (!found) {
+            insert(content.withChange(change));
+            return;
+        }
+        past.insert(change, new Continuation<Boolean[], Exception>()
+        {
+            @Override
+            public void receiveResult(Boolean[] result)
+            {
+                if (!allStored(result)) {
+                    // a replica without a base refused the change
+                    insert(content.withChange(change));
+                }
+            }
+
+            @Override
+            public void receiveException(Exception result)
+            {
+                System.err.println("Error storing " + change);
+                result.printStackTrace();
+            }
+        });
+    }
+
+    private void insert(final PresenceContent update)
+    {
+        past.insert(update, new Continuation<Boolean[], Exception>()
+        {
+            @Override
+            public void receiveResult(Boolean[] result)
+            {
+            }
+
+            @Override
+            public void receiveException(Exception result)
+            {
+                System.err.println("Error storing " + update);
+                result.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Takes the user offline, waiting for the change to be stored.
+     *
+     * @param timeout Maximal wait in ms
+     */
+    public void deregister(long timeout)
+    {
+        final PresenceContent update;
+        synchronized (this) {
+            if (refresher != null) {
+                refresher.cancel();
+                refresher = null;
+            }
+            if (tag == 0) {
+                return;
+            }
+            int bucket = bucketOf(nickname);
+            update = new PresenceContent(getBucketId(bucket), bucket).deregister(tag, now());
+            tag = 0;
+        }
+        final CountDownLatch stored = new CountDownLatch(1);
+        environment.getSelectorManager().invoke(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                past.insert(update, new Continuation<Boolean[], Exception>()
+                {
+                    @Override
+                    public void receiveResult(Boolean[] result)
+                    {
+                        stored.countDown();
+                    }
+
+                    @Override
+                    public void receiveException(Exception result)
+                    {
+                        System.err.println("Error storing " + update);
+                        stored.countDown();
+                    }
+                });
+            }
+        });
+        try {
+            stored.await(timeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // =====================================================================
+
+    /**
+     * Runs the send if the user may be online, otherwise the refusal.
+     * Either runs right away when the filter knows the user, or once the
+     * user's bucket has been fetched again (on the selector thread). The
+     * sends to the same user run in the order they were made.
+     *
+     * @param nickname Recipient
+     * @param send
+     * @param absent Run instead of the send when the user is offline
+     */
+    public void whenPresent(final String nickname, Runnable send, Runnable absent)
+    {
+        synchronized (held) {
+            List<Held> waiting = held.get(nickname);
+            if (waiting != null) {
+                // keep the order behind the sends waiting already
+                waiting.add(new Held(send, absent));
+                return;
+            }
+            if (!mightBeAbsent(nickname)) {
+                send.run();
+                return;
+            }
+            waiting = new ArrayList<Held>();
+            waiting.add(new Held(send, absent));
+            held.put(nickname, waiting);
+        }
+
+        final int bucket = bucketOf(nickname);
+        environment.getSelectorManager().invoke(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                environment.getSelectorManager().getTimer().schedule(new TimerTask()
+                {
+                    @Override
+                    public void run()
+                    {
+                        release(nickname, false);
+                    }
+                }, HOLD_TIMEOUT);
+                fetchBucket(bucket, new Continuation<Set<String>, Exception>()
+                {
+                    @Override
+                    public void receiveResult(Set<String> online)
+                    {
+                        release(nickname, !online.contains(nickname));
+                    }
+
+                    @Override
+                    public void receiveException(Exception result)
+                    {
+                        // don't know, let it through
+                        release(nickname, false);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Tells whether the user is missing from a fresh filter.
+     */
+    private boolean mightBeAbsent(String nickname)
+    {
+        if (!isEnabled()) {
+            return false;
+        }
+        int bucket = bucketOf(nickname);
+        BloomFilter filter = filters.get(bucket);
+        if (filter == null || now() - refreshed.get(bucket) > 2L * refresh) {
+            // not known (anymore)
+            return false;
+        }
+        return !filter.mightContain(nickname);
+    }
+
+    /**
+     * Runs the sends held for the user.
+     */
+    private void release(String nickname, boolean absent)
+    {
+        synchronized (held) {
+            List<Held> waiting = held.remove(nickname);
+            if (waiting == null) {
+                return;
+            }
+            for (Held h : waiting) {
+                if (absent) {
+                    rejected.incrementAndGet();
+                    h.absent.run();
+                } else {
+                    h.send.run();
+                }
+            }
+        }
+    }
+
+    /**
+     * Notes that the user is online (we have just heard from it).
+     *
+     * @param nickname
+     */
+    public void seen(String nickname)
+    {
+        BloomFilter filter = filters.get(bucketOf(nickname));
+        if (filter != null) {
+            filter.add(nickname);
+        }
+    }
+
+    // =====================================================================
+
+    private synchronized void startRefreshing()
+    {
+        if (refresher != null) {
+            return;
+        }
+        refresher = new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                fetchBucket(nextBucket, null);
+                nextBucket = (nextBucket + 1) % BUCKETS;
+            }
+        };
+        environment.getSelectorManager().getTimer().schedule(refresher, 0, Math.max(MIN_TICK, refresh / BUCKETS));
+    }
+
+    /**
+     * Rebuilds the bucket's filter from its current content.
+     * Runs on the selector thread.
+     *
+     * @param bucket
+     * @param fetched Gets the users online in the bucket (or null)
+     */
+    private void fetchBucket(final int bucket, final Continuation<Set<String>, Exception> fetched)
+    {
+        past.lookup(getBucketId(bucket), false, new Continuation<Object, Exception>()
+        {
+            @Override
+            public void receiveResult(Object result)
+            {
+                if (!(result instanceof PresenceContent)) {
+                    // nothing stored (yet) doesn't mean nobody is online
+                    receiveException(new PastException("Presence bucket " + bucket + " not found"));
+                    return;
+                }
+                Set<String> online = ((PresenceContent) result).getOnline();
+                filters.set(bucket, BloomFilter.of(online));
+                refreshed.set(bucket, now());
+                if (fetched != null) {
+                    fetched.receiveResult(online);
+                }
+            }
+
+            @Override
+            public void receiveException(Exception result)
+            {
+                // keep the old one until it is too old
+                if (fetched != null) {
+                    fetched.receiveException(result);
+                }
+            }
+        });
+    }
+
+    private long now()
+    {
+        return environment.getTimeSource().currentTimeMillis();
+    }
+
+    private static boolean allStored(Boolean[] results)
+    {
+        for (Boolean result : results) {
+            if (result == null || !result.booleanValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // =====================================================================
+
+    /**
+     * Returns the number of buckets with a fresh enough filter.
+     */
+    public int getKnownBuckets()
+    {
+        int known = 0;
+        long now = now();
+        for (int i = 0; i < BUCKETS; i++) {
+            if (filters.get(i) != null && now - refreshed.get(i) <= 2L * refresh) {
+                known++;
+            }
+        }
+        return known;
+    }
+
+    /**
+     * Returns the number of sends refused for an absent user.
+     */
+    public long getRejectedCount()
+    {
+        return rejected.get();
+    }
+
+    // =====================================================================
+
+    /**
+     * Send waiting for its recipient's bucket.
+     */
+    private static class Held
+    {
+        final Runnable send;
+        final Runnable absent;
+
+        Held(Runnable send, Runnable absent)
+        {
+            this.send = send;
+            this.absent = absent;
+        }
+    }
+}
@@ -0,0 +1,188 @@
+import java.io.IOException;
+import java.util.Arrays;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+import rice.p2p.commonapi.rawserialization.RawMessage;
+
+/**
+ *      Private acknowledgement message
+ *
+ * Stand-alone acknowledgement of sequenced private messages, sent when there
+ * is no reverse traffic to piggyback it on (see {@see PrivateConversations}).
+ *
+ * @author Dejvino
+ */
+public class PrivateAckMsg implements RawMessage
+{
+    private static final long serialVersionUID = 1L;
+
+    public static final short TYPE = 7;
+
+    private static final byte VERSION = 0;
+
+    public static final long[] NO_SACK = new long[0];
+
+    /**
+     * Maximal number of the selectively acked sequence numbers.
+     */
+    public static final int MAX_SACK = 16;
+
+    /**
+     * Where the Message came from.
+     */
+    private Id from;
+
+    /**
+     * Where the Message is going.
+     */
+    private Id to;
+
+    /**
+     * Acked session of the recipient.
+     */
+    private long session;
+
+    /**
+     * All the messages up to this one have been received.
+     */
+    private long ack;
+
+    /**
+     * Messages received above the cumulative ack.
+     */
+    private long[] sack;
+
+    /**
+     * Constructor.
+     */
+    public PrivateAckMsg(Id from, Id to, long session, long ack, long[] sack)
+    {
+        this.from = from;
+        this.to = to;
+        this.session = session;
+        this.ack = ack;
+        this.sack = sack;
+    }
+
+    /**
+     * Deserializing constructor.
+     */
+    private PrivateAckMsg(InputBuffer buf, Endpoint endpoint) throws IOException
+    {
+        ChatMessageDeserializer.checkVersion(buf, VERSION);
+        this.from = ChatMessageDeserializer.readId(buf, endpoint);
+        this.to = ChatMessageDeserializer.readId(buf, endpoint);
+        this.session = buf.readLong();
+        this.ack = buf.readLong();
+        this.sack = readSack(buf);
+    }
+
+    /**
+     * Rebuilds the message from its raw form.
+     */
+    public static PrivateAckMsg build(InputBuffer buf, Endpoint endpoint) throws IOException
+    {
+        return new PrivateAckMsg(buf, endpoint);
+    }
+
+    // =====================================================================
+
+    public Id getFrom()
+    {
+        return from;
+    }
+
+    public Id getTo()
+    {
+        return to;
+    }
+
+    public long getSession()
+    {
+        return session;
+    }
+
+    public long getAck()
+    {
+        return ack;
+    }
+
+    public long[] getSack()
+    {
+        return sack;
+    }
+
+    // =====================================================================
+
+    @Override
+    public String toString()
+    {
+        return "PrivateAckMsg from " + from + " to " + to + ": session " + session + ", ack " + ack
+                + ", sack " + Arrays.toString(sack);
+    }
+
+    // =====================================================================
+
+    /**
+     * Using low priority to prevent interference with overlay maintenance traffic.
+     */
+    @Override
+    public int getPriority()
+    {
+        return Message.LOW_PRIORITY;
+    }
+
+    // =====================================================================
+
+    @Override
+    public short getType()
+    {
+        return TYPE;
+    }
+
+    @Override
+    public void serialize(OutputBuffer buf) throws IOException
+    {
+        buf.writeByte(VERSION);
+        ChatMessageDeserializer.writeId(buf, from);
+        ChatMessageDeserializer.writeId(buf, to);
+        buf.writeLong(session);
+        buf.writeLong(ack);
+        writeSack(buf, sack);
+    }
+
+    // =====================================================================
+
+    /**
+     * Writes the selectively acked sequence numbers.
+     */
+    public static void writeSack(OutputBuffer buf, long[] sack) throws IOException
+    {
+        buf.writeByte((byte) sack.length);
+        for (long seq : sack) {
+            buf.writeLong(seq);
+        }
+    }
+
+    /**
+     * Reads the sequence numbers written by {@see #writeSack()}.
+     */
+    public static long[] readSack(InputBuffer buf) throws IOException
+    {
+        int length = buf.readByte();
+        if (length < 0 || length > MAX_SACK) {
+            throw new IOException("Invalid sack length: " + length);
+        }
+        if (length == 0) {
+            return NO_SACK;
+        }
+        long[] sack = new long[length];
+        for (int i = 0; i < length; i++) {
+            sack[i] = buf.readLong();
+        }
+        return sack;
+    }
+}
@@ -0,0 +1,532 @@
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.TreeMap;
+import rice.environment.Environment;
+import rice.environment.params.Parameters;
+import rice.p2p.commonapi.Id;
+import rice.selector.TimerTask;
+
+/**
+ *      Private conversations
+ *
+ * Reliable, ordered delivery of private messages. Every peer we talk to gets
+ * a conversation with a send and a receive side:
+ *  - the sender numbers its messages within a session and keeps up to
+ *    a window of them in flight; unacked messages are retransmitted when
+ *    the retransmission timer (adaptive, from the measured round trips)
+ *    runs out, or at once after repeated acks that still report the hole,
+ *  - the receiver delivers them in order, holding back the ones after a gap,
+ *    and acks cumulatively plus selectively the held-back ones. The ack
+ *    rides on the next message going back, or is sent on its own after a
+ *    short delay (at once on a gap or a duplicate).
+ * Selectively acked messages are not retransmitted, but they are kept until
+ * the cumulative ack covers them: the receiver drops what it holds back when
+ * the sender starts a new session.
+ * A sender that runs out of retries reports the messages as undeliverable
+ * (held-back ones included) and starts a new session, so that the receiver
+ * does not wait for them.
+ * Sessions are numbered by the time they were started, a message from an
+ * older session than the known one is dropped.
+ *
+ * Tunable via the environment parameters "pastrychat_private_window",
+ * "pastrychat_private_ack_delay" (ms), "pastrychat_private_rto" (initial
+ * retransmission timeout in ms) and "pastrychat_private_retries".
+ *
+ * @author Dejvino
+ */
+public class PrivateConversations
+{
+    public static final int DEFAULT_WINDOW = 32;
+    public static final int DEFAULT_ACK_DELAY = 40;
+    public static final int DEFAULT_RTO = 1000;
+    public static final int DEFAULT_RETRIES = 8;
+
+    private static final long MIN_RTO = 200;
+    private static final long MAX_RTO = 60000;
+
+    /**
+     * Acks reporting the same hole before it is retransmitted.
+     */
+    private static final int DUPLICATE_ACKS = 3;
+
+    /**
+     * Messages waiting for room in the window, per peer.
+     */
+    private static final int MAX_BACKLOG = 1024;
+
+    /**
+     * Idle conversations remembered.
+     */
+    private static final int TRACKED = 4096;
+
+    private final ChatApp chat;
+
+    private final Environment environment;
+
+    private final int window;
+    private final int ackDelay;
+    private final int initialRto;
+    private final int retries;
+
+    /**
+     * Conversations by the peer's Id, guarded by this.
+     */
+    private final Map<Id, Conversation> conversations;
+
+    private long lastSession = 0;
+
+    // metrics
+    private long retransmitted = 0;
+    private long failed = 0;
+
+    /**
+     * Constructor.
+     */
+    public PrivateConversations(ChatApp chat, Environment environment)
+    {
+        this.chat = chat;
+        this.environment = environment;
+
+        Parameters params = environment.getParameters();
+        this.window = Math.max(1, params.contains("pastrychat_private_window")
+                ? params.getInt("pastrychat_private_window") : DEFAULT_WINDOW);
+        this.ackDelay = params.contains("pastrychat_private_ack_delay")
+                ? params.getInt("pastrychat_private_ack_delay") : DEFAULT_ACK_DELAY;
+        this.initialRto = params.contains("pastrychat_private_rto")
+                ? params.getInt("pastrychat_private_rto") : DEFAULT_RTO;
+        this.retries = params.contains("pastrychat_private_retries")
+                ? params.getInt("pastrychat_private_retries") : DEFAULT_RETRIES;
+
+        // least recently used idle ones are forgotten first
+        this.conversations = new LinkedHashMap<Id, Conversation>(16, 0.75f, true)
+        {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Id, Conversation> eldest)
+            {
+                return size() > TRACKED && eldest.getValue().isIdle();
+            }
+        };
+    }
+
+    // =====================================================================
+    // sending
+
+    /**
+     * Queues the message for reliable delivery.
+     *
+     * @param to Recipient Id
+     * @param toName Recipient name
+     * @param text Message text
+     * @return false if too many messages are waiting for the recipient
+     */
+    public synchronized boolean send(Id to, String toName, String text)
+    {
+        Conversation c = getConversation(to);
+        if (c.backlog.size() >= MAX_BACKLOG) {
+            return false;
+        }
+        // compressed once for all the (re)transmissions
+        c.backlog.add(new Outgoing(c.nextSeq++, toName, chat.getTextCodec().encode(text)));
+        pump(c);
+        return true;
+    }
+
+    /**
+     * Sends the waiting messages that fit in the window.
+     */
+    private void pump(Conversation c)
+    {
+        while (!c.backlog.isEmpty()) {
+            Outgoing out = c.backlog.peek();
+            if (!c.unacked.isEmpty() && out.seq >= c.unacked.firstKey() + window) {
+                // window full
+                break;
+            }
+            c.backlog.poll();
+            c.unacked.put(out.seq, out);
+            transmit(c, out);
+        }
+        if (!c.unacked.isEmpty() && c.retransmitTimer == null) {
+            scheduleRetransmit(c);
+        }
+    }
+
+    /**
+     * Sends a (fresh copy of the) message, with an ack piggybacked.
+     */
+    private void transmit(Conversation c, Outgoing out)
+    {
+        PrivateMsg msg = new PrivateMsg(chat.getNodeId(), chat.getNickname(), c.peer, out.toName, out.text);
+        msg.setSequence(c.session, out.seq, c.unacked.firstKey());
+        if (c.peerSession != 0) {
+            msg.setAck(c.peerSession, c.nextExpected - 1, getSack(c));
+            c.ackPending = false;
+            c.receivedUnacked = 0;
+        }
+        out.sentAt = now();
+        out.transmissions++;
+        chat.route(c.peer, msg, null);
+    }
+
+    private void scheduleRetransmit(final Conversation c)
+    {
+        if (c.retransmitTimer != null) {
+            c.retransmitTimer.cancel();
+        }
+        c.retransmitTimer = new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                retransmitTimeout(c, this);
+            }
+        };
+        environment.getSelectorManager().getTimer().schedule(c.retransmitTimer, c.rto);
+    }
+
+    /**
+     * Resends everything unacked, backing off the timer.
+     */
+    private synchronized void retransmitTimeout(Conversation c, TimerTask task)
+    {
+        if (c.retransmitTimer != task) {
+            // rescheduled meanwhile
+            return;
+        }
+        c.retransmitTimer = null;
+        if (c.unacked.isEmpty()) {
+            return;
+        }
+        if (c.unacked.firstEntry().getValue().transmissions > retries) {
+            giveUp(c);
+            return;
+        }
+        c.rto = Math.min(c.rto * 2, MAX_RTO);
+        for (Outgoing out : c.unacked.values()) {
+            if (out.sacked) {
+                // held by the receiver already
+                continue;
+            }
+            transmit(c, out);
+            retransmitted++;
+        }
+        scheduleRetransmit(c);
+    }
+
+    /**
+     * Drops the undeliverable messages and starts over in a new session.
+     */
+    private void giveUp(Conversation c)
+    {
+        int count = c.unacked.size() + c.backlog.size();
+        String name = c.unacked.firstEntry().getValue().toName;
+        c.unacked.clear();
+        c.backlog.clear();
+        c.session = newSession();
+        c.nextSeq = 1;
+        c.dupAcks = 0;
+        failed += count;
+        chat.privateMsgsFailed(name, count);
+    }
+
+    /**
+     * Applies an ack of our messages.
+     */
+    private void processAck(Conversation c, long session, long ack, long[] sack)
+    {
+        if (session != c.session) {
+            // ack of an abandoned session
+            return;
+        }
+        long now = now();
+        boolean advanced = false;
+        while (!c.unacked.isEmpty() && c.unacked.firstKey() <= ack) {
+            sampleRtt(c, c.unacked.pollFirstEntry().getValue(), now);
+            advanced = true;
+        }
+        for (long seq : sack) {
+            // held back, not delivered yet: only stop retransmitting it
+            Outgoing out = c.unacked.get(seq);
+            if (out != null && !out.sacked) {
+                out.sacked = true;
+                sampleRtt(c, out, now);
+            }
+        }
+
+        if (advanced) {
+            c.dupAcks = 0;
+        } else if (sack.length > 0 && !c.unacked.isEmpty() && ++c.dupAcks == DUPLICATE_ACKS) {
+            // later messages get through, the first one does not
+            transmit(c, c.unacked.firstEntry().getValue());
+            retransmitted++;
+        }
+
+        if (c.unacked.isEmpty()) {
+            if (c.retransmitTimer != null) {
+                c.retransmitTimer.cancel();
+                c.retransmitTimer = null;
+            }
+        } else if (advanced) {
+            scheduleRetransmit(c);
+        }
+        pump(c);
+    }
+
+    /**
+     * Updates the retransmission timeout from a round trip (retransmitted
+     * messages are ambiguous and left out).
+     */
+    private void sampleRtt(Conversation c, Outgoing out, long now)
+    {
+        if (out.transmissions != 1) {
+            return;
+        }
+        long rtt = now - out.sentAt;
+        if (c.srtt < 0) {
+            c.srtt = rtt;
+            c.rttvar = rtt / 2;
+        } else {
+            c.rttvar = (3 * c.rttvar + Math.abs(c.srtt - rtt)) / 4;
+            c.srtt = (7 * c.srtt + rtt) / 8;
+        }
+        c.rto = Math.max(MIN_RTO, Math.min(MAX_RTO, c.srtt + 4 * c.rttvar));
+    }
+
+    // =====================================================================
+    // receiving
+
+    /**
+     * Takes in a sequenced message from the peer, delivering whatever
+     * is in order.
+     *
+     * @param msg
+     */
+    public synchronized void received(PrivateMsg msg)
+    {
+        Conversation c = getConversation(msg.getFrom());
+        if (msg.hasAck()) {
+            processAck(c, msg.getAckSession(), msg.getAck(), msg.getSack());
+        }
+
+        if (msg.getSession() != c.peerSession) {
+            if (msg.getSession() < c.peerSession) {
+                // straggler of an abandoned session
+                return;
+            }
+            // first contact, the peer restarted or gave up on some messages
+            // (it has reported the held-back ones as undeliverable too)
+            c.peerSession = msg.getSession();
+            c.nextExpected = msg.getBase();
+            c.outOfOrder.clear();
+        }
+
+        long seq = msg.getSeq();
+        if (seq < c.nextExpected || c.outOfOrder.containsKey(seq)) {
+            // duplicate, our ack got lost
+            sendAck(c);
+            return;
+        }
+        if (seq >= c.nextExpected + window) {
+            // no room for it, it will come again
+            return;
+        }
+        if (seq > c.nextExpected) {
+            // gap, let the sender know right away
+            c.outOfOrder.put(seq, msg);
+            sendAck(c);
+            return;
+        }
+
+        chat.deliverPrivateMsg(msg);
+        c.nextExpected++;
+        boolean filled = false;
+        PrivateMsg next;
+        while ((next = c.outOfOrder.remove(c.nextExpected)) != null) {
+            chat.deliverPrivateMsg(next);
+            c.nextExpected++;
+            filled = true;
+        }
+        c.receivedUnacked++;
+        if (filled || ackDelay <= 0 || c.receivedUnacked >= Math.max(1, window / 2)) {
+            sendAck(c);
+        } else {
+            ackLater(c);
+        }
+    }
+
+    /**
+     * Takes in a stand-alone ack.
+     *
+     * @param ack
+     */
+    public synchronized void acked(PrivateAckMsg ack)
+    {
+        processAck(getConversation(ack.getFrom()), ack.getSession(), ack.getAck(), ack.getSack());
+    }
+
+    /**
+     * Sends the ack unless a message going back takes it first.
+     */
+    private void ackLater(final Conversation c)
+    {
+        c.ackPending = true;
+        if (c.ackTimer != null) {
+            return;
+        }
+        c.ackTimer = new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (PrivateConversations.this) {
+                    c.ackTimer = null;
+                    if (c.ackPending) {
+                        sendAck(c);
+                    }
+                }
+            }
+        };
+        environment.getSelectorManager().getTimer().schedule(c.ackTimer, ackDelay);
+    }
+
+    private void sendAck(Conversation c)
+    {
+        c.ackPending = false;
+        c.receivedUnacked = 0;
+        chat.route(c.peer, new PrivateAckMsg(chat.getNodeId(), c.peer, c.peerSession, c.nextExpected - 1,
+                getSack(c)), null);
+    }
+
+    /**
+     * Returns the first few held-back sequence numbers.
+     */
+    private static long[] getSack(Conversation c)
+    {
+        if (c.outOfOrder.isEmpty()) {
+            return PrivateAckMsg.NO_SACK;
+        }
+        long[] sack = new long[Math.min(c.outOfOrder.size(), PrivateAckMsg.MAX_SACK)];
+        Iterator<Long> seqs = c.outOfOrder.keySet().iterator();
+        for (int i = 0; i < sack.length; i++) {
+            sack[i] = seqs.next();
+        }
+        return sack;
+    }
+
+    // =====================================================================
+
+    private Conversation getConversation(Id peer)
+    {
+        Conversation c = conversations.get(peer);
+        if (c == null) {
+            c = new Conversation(peer, newSession());
+            conversations.put(peer, c);
+        }
+        return c;
+    }
+
+    /**
+     * Sessions grow with time, so that a restarted node starts a newer one.
+     */
+    private long newSession()
+    {
+        lastSession = Math.max(lastSession + 1, now());
+        return lastSession;
+    }
+
+    private long now()
+    {
+        return environment.getTimeSource().currentTimeMillis();
+    }
+
+    // =====================================================================
+
+    /**
+     * Returns the number of messages sent but not acked yet, or still
+     * waiting for the window.
+     */
+    public synchronized int getInFlightCount()
+    {
+        int count = 0;
+        for (Conversation c : conversations.values()) {
+            count += c.unacked.size() + c.backlog.size();
+        }
+        return count;
+    }
+
+    public synchronized long getRetransmittedCount()
+    {
+        return retransmitted;
+    }
+
+    public synchronized long getFailedCount()
+    {
+        return failed;
+    }
+
+    // =====================================================================
+
+    /**
+     * Message waiting for an ack.
+     */
+    private static class Outgoing
+    {
+        final long seq;
+        final String toName;
+        final ChatText text;
+        long sentAt;
+        int transmissions = 0;
+        /**
+         * Whether the receiver holds it back (selectively acked).
+         */
+        boolean sacked = false;
+
+        Outgoing(long seq, String toName, ChatText text)
+        {
+            this.seq = seq;
+            this.toName = toName;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Both directions of the exchange with a peer.
+     */
+    private class Conversation
+    {
+        final Id peer;
+
+        // sending
+        long session;
+        long nextSeq = 1;
+        final TreeMap<Long, Outgoing> unacked = new TreeMap<Long, Outgoing>();
+        final LinkedList<Outgoing> backlog = new LinkedList<Outgoing>();
+        long srtt = -1;
+        long rttvar = 0;
+        long rto = initialRto;
+        int dupAcks = 0;
+        TimerTask retransmitTimer;
+
+        // receiving
+        long peerSession = 0;
+        long nextExpected = 1;
+        final TreeMap<Long, PrivateMsg> outOfOrder = new TreeMap<Long, PrivateMsg>();
+        boolean ackPending = false;
+        int receivedUnacked = 0;
+        TimerTask ackTimer;
+
+        Conversation(Id peer, long session)
+        {
+            this.peer = peer;
+            this.session = session;
+        }
+
+        boolean isIdle()
+        {
+            return unacked.isEmpty() && backlog.isEmpty() && outOfOrder.isEmpty() && !ackPending;
+        }
+    }
+}
@@ -1,18 +1,32 @@
 
+import java.io.IOException;
+import rice.p2p.commonapi.Endpoint;
 import rice.p2p.commonapi.Id;
 import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+import rice.p2p.commonapi.rawserialization.RawMessage;
 
 /**
  *      Private message
  * 
  * Message container used for transferring a message from one app to another.
  * 
+ * Sequenced messages (see {@see PrivateConversations}) carry the sender's
+ * session and sequence number and may piggyback an acknowledgement of the
+ * messages going the other way. Unsequenced ones (seq 0) are delivered as
+ * they come.
+ * 
  * @author Dejvino
  */
-public class PrivateMsg implements Message
+public class PrivateMsg implements RawMessage
 {
     private static final long serialVersionUID = 1L;
 
+    public static final short TYPE = 1;
+    
+    private static final byte VERSION = 2;
+
     /**
      * Where the Message came from.
      */
@@ -30,12 +44,45 @@ public class PrivateMsg implements Message
     /**
      * Message content
      */
-    private String text;
+    private ChatText text;
+    
+    /**
+     * Sender's conversation session.
+     */
+    private long session;
+    
+    /**
+     * Sequence number within the session, 0 for unsequenced messages.
+     */
+    private long seq;
+    
+    /**
+     * Lowest sequence number the sender still waits an ack for.
+     */
+    private long base;
+    
+    /**
+     * Piggybacked acknowledgement: the acked session (0 for none), the
+     * cumulative ack and the selectively acked sequence numbers above it.
+     */
+    private long ackSession;
+    
+    private long ack;
+    
+    private long[] sack = PrivateAckMsg.NO_SACK;
 
     /**
      * Constructor.
      */
     public PrivateMsg(Id from, String fromName, Id to, String toName, String text)
+    {
+        this(from, fromName, to, toName, ChatText.raw(text));
+    }
+
+    /**
+     * Constructor.
+     */
+    public PrivateMsg(Id from, String fromName, Id to, String toName, ChatText text)
     {
         this.from = from;
         this.fromName = fromName;
@@ -44,6 +91,33 @@ public class PrivateMsg implements Message
         this.text = text;
     }
 
+    /**
+     * Deserializing constructor.
+     */
+    private PrivateMsg(InputBuffer buf, Endpoint endpoint) throws IOException
+    {
+        ChatMessageDeserializer.checkVersion(buf, VERSION);
+        this.from = ChatMessageDeserializer.readId(buf, endpoint);
+        this.fromName = buf.readUTF();
+        this.to = ChatMessageDeserializer.readId(buf, endpoint);
+        this.toName = buf.readUTF();
+        this.text = ChatMessageDeserializer.readText(buf);
+        this.session = buf.readLong();
+        this.seq = buf.readLong();
+        this.base = buf.readLong();
+        this.ackSession = buf.readLong();
+        this.ack = buf.readLong();
+        this.sack = PrivateAckMsg.readSack(buf);
+    }
+
+    /**
+     * Rebuilds the message from its raw form.
+     */
+    public static PrivateMsg build(InputBuffer buf, Endpoint endpoint) throws IOException
+    {
+        return new PrivateMsg(buf, endpoint);
+    }
+
     // =====================================================================
 
     public Id getFrom()
@@ -57,6 +131,14 @@ public class PrivateMsg implements Message
     }
 
     public String getText()
+    {
+        return text.getText();
+    }
+
+    /**
+     * Returns the text in its wire form.
+     */
+    public ChatText getPayload()
     {
         return text;
     }
@@ -71,6 +153,66 @@ public class PrivateMsg implements Message
         return toName;
     }
 
+    public long getSession()
+    {
+        return session;
+    }
+
+    public long getSeq()
+    {
+        return seq;
+    }
+
+    public long getBase()
+    {
+        return base;
+    }
+
+    public boolean isSequenced()
+    {
+        return seq > 0;
+    }
+
+    /**
+     * Places the message in the sender's session.
+     */
+    public void setSequence(long session, long seq, long base)
+    {
+        this.session = session;
+        this.seq = seq;
+        this.base = base;
+    }
+
+    public long getAckSession()
+    {
+        return ackSession;
+    }
+
+    public long getAck()
+    {
+        return ack;
+    }
+
+    public long[] getSack()
+    {
+        return sack;
+    }
+
+    public boolean hasAck()
+    {
+        return ackSession != 0;
+    }
+
+    /**
+     * Piggybacks an acknowledgement of the peer's session.
+     */
+    public void setAck(long ackSession, long ack, long[] sack)
+    {
+        this.ackSession = ackSession;
+        this.ack = ack;
+        this.sack = sack;
+    }
+
     // =====================================================================
 
     @Override
@@ -89,4 +231,29 @@ public class PrivateMsg implements Message
     {
         return Message.LOW_PRIORITY;
     }
+
+    // =====================================================================
+
+    @Override
+    public short getType()
+    {
+        return TYPE;
+    }
+
+    @Override
+    public void serialize(OutputBuffer buf) throws IOException
+    {
+        buf.writeByte(VERSION);
+        ChatMessageDeserializer.writeId(buf, from);
+        buf.writeUTF(fromName);
+        ChatMessageDeserializer.writeId(buf, to);
+        buf.writeUTF(toName);
+        ChatMessageDeserializer.writeText(buf, text);
+        buf.writeLong(session);
+        buf.writeLong(seq);
+        buf.writeLong(base);
+        buf.writeLong(ackSession);
+        buf.writeLong(ack);
+        PrivateAckMsg.writeSack(buf, sack);
+    }
 }
@@ -0,0 +1,267 @@
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Adler32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import rice.environment.params.Parameters;
+
+/**
+ *      Text codec
+ *
+ * Compresses the message texts above a size threshold by zlib, primed with
+ * a preset dictionary of the usual chat contents (words, punctuation, code
+ * and log fragments), so that even a couple of lines shrink. A text is only
+ * sent compressed when that actually saves bytes.
+ *
+ * Every encoded text carries its codec, and the zlib stream names its
+ * dictionary (by the Adler-32 checksum), so the receiver needs no state to
+ * decode it. A text in an unknown codec or dictionary is rejected as
+ * a malformed message.
+ *
+ * Tunable via the environment parameters "pastrychat_compression" (false
+ * sends everything raw), "pastrychat_compression_threshold" (bytes) and
+ * "pastrychat_compression_level" (1-9).
+ *
+ * @author Dejvino
+ */
+public class TextCodec
+{
+    public static final int DEFAULT_THRESHOLD = 256;
+
+    /**
+     * Largest decoded text accepted.
+     */
+    private static final int MAX_TEXT = 16 * 1024 * 1024;
+
+    /**
+     * Preset dictionary, the most common strings come last (they are the
+     * cheapest to refer to).
+     */
+    private static final byte[] DICTIONARY = toUtf8(
+            "</div><div class=\"\"></span><span>{\"id\":\"name\":\"type\":\"value\":null,true,false,"
+            + "java.lang.NullPointerException\n\tat java.lang.Thread.run(Thread.java:\n\tat "
+            + "Exception in thread \"main\" Caused by: ... more\n"
+            + "ERROR WARN INFO DEBUG TRACE [main] 2014-01-01 00:00:00,000 "
+            + "public static void main(String[] args) { return null; } private final int "
+            + "import java.util.; if (x == null) { throw new IllegalArgumentException(\"\"); } "
+            + "for (int i = 0; i < n; i++) { } else { } while () def self: print( return None "
+            + "function() { var const let => console.log(\"\"); }); #include <stdio.h> "
+            + "SELECT * FROM WHERE ORDER BY GROUP BY INSERT INTO VALUES UPDATE SET "
+            + "$ git commit -m \"\" git push origin master git pull sudo apt-get install "
+            + "https://www.github.com/ http://www. .com/ .org/ .html index.php?id= "
+            + "Hello everyone! hi hey thanks thank you please sorry okay ok yes no lol :) :D :( ;) "
+            + "I think that you should have been about would could what when where which who why how "
+            + "this that with from have there their they them then than just like know about "
+            + "because really something anything nothing everything someone anyone "
+            + "the and for are but not you all can her was one our out day get has him his "
+            + "I'm I've I'll don't doesn't didn't can't won't isn't it's that's there's what's "
+            + ". , ? ! \n the ");
+
+    private static final int DICTIONARY_ID;
+
+    static {
+        Adler32 adler = new Adler32();
+        adler.update(DICTIONARY, 0, DICTIONARY.length);
+        DICTIONARY_ID = (int) adler.getValue();
+    }
+
+    /**
+     * Native zlib state is expensive to set up, each thread keeps its own.
+     */
+    private static final ThreadLocal<Inflater> INFLATERS = new ThreadLocal<Inflater>()
+    {
+        @Override
+        protected Inflater initialValue()
+        {
+            return new Inflater();
+        }
+    };
+
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>()
+    {
+        @Override
+        protected Deflater initialValue()
+        {
+            return new Deflater(level);
+        }
+    };
+
+    private final boolean enabled;
+
+    private final int threshold;
+
+    private final int level;
+
+    // metrics
+    private final AtomicLong compressed = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+
+    /**
+     * Constructor.
+     */
+    public TextCodec(Parameters params)
+    {
+        this(!params.contains("pastrychat_compression") || params.getBoolean("pastrychat_compression"),
+                params.contains("pastrychat_compression_threshold")
+                ? params.getInt("pastrychat_compression_threshold") : DEFAULT_THRESHOLD,
+                params.contains("pastrychat_compression_level")
+                ? params.getInt("pastrychat_compression_level") : Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param enabled Whether to compress at all
+     * @param threshold Size in bytes from which the texts are compressed
+     * @param level zlib compression level
+     */
+    public TextCodec(boolean enabled, int threshold, int level)
+    {
+        this.enabled = enabled;
+        this.threshold = threshold;
+        this.level = level;
+    }
+
+    // =====================================================================
+
+    /**
+     * Encodes the text for sending.
+     *
+     * @param text
+     * @return
+     */
+    public ChatText encode(String text)
+    {
+        return encode(ChatText.raw(text));
+    }
+
+    /**
+     * Compresses the raw text if worth it, otherwise returns it as it is.
+     *
+     * @param text
+     * @return
+     */
+    public ChatText encode(ChatText text)
+    {
+        byte[] raw = text.getBytes();
+        if (!enabled || text.isCompressed() || raw.length < threshold) {
+            return text;
+        }
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(raw);
+        deflater.finish();
+        // anything not smaller is of no use
+        byte[] out = new byte[raw.length];
+        int length = 0;
+        while (!deflater.finished() && length < out.length) {
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        if (!deflater.finished()) {
+            return text;
+        }
+
+        compressed.incrementAndGet();
+        bytesIn.addAndGet(raw.length);
+        bytesOut.addAndGet(length);
+        return new ChatText(ChatText.CODEC_DEFLATE, Arrays.copyOf(out, length), text.getText());
+    }
+
+    /**
+     * Decodes a received text.
+     *
+     * @param codec
+     * @param bytes
+     * @return
+     * @throws IOException On an unknown codec or dictionary, or broken data
+     */
+    public static String decode(byte codec, byte[] bytes) throws IOException
+    {
+        switch (codec) {
+            case ChatText.CODEC_RAW:
+                return new String(bytes, "UTF-8");
+            case ChatText.CODEC_DEFLATE:
+                return new String(inflate(bytes), "UTF-8");
+            default:
+                throw new IOException("Unknown text codec: " + codec);
+        }
+    }
+
+    private static byte[] inflate(byte[] bytes) throws IOException
+    {
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(bytes);
+        byte[] out = new byte[Math.max(64, bytes.length * 4)];
+        int length = 0;
+        try {
+            while (!inflater.finished()) {
+                if (length == out.length) {
+                    if (out.length >= MAX_TEXT) {
+                        throw new IOException("Text too long");
+                    }
+                    out = Arrays.copyOf(out, Math.min(out.length * 2, MAX_TEXT));
+                }
+                int n = inflater.inflate(out, length, out.length - length);
+                if (n == 0) {
+                    if (inflater.needsDictionary()) {
+                        if (inflater.getAdler() != DICTIONARY_ID) {
+                            throw new IOException("Unknown text dictionary: " + inflater.getAdler());
+                        }
+                        inflater.setDictionary(DICTIONARY);
+                    } else if (inflater.needsInput()) {
+                        throw new IOException("Truncated text");
+                    }
+                }
+                length += n;
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("Malformed text: " + ex.getMessage());
+        }
+        return Arrays.copyOf(out, length);
+    }
+
+    private static byte[] toUtf8(String text)
+    {
+        try {
+            return text.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    // =====================================================================
+
+    /**
+     * Returns the number of texts sent compressed.
+     */
+    public long getCompressedCount()
+    {
+        return compressed.get();
+    }
+
+    /**
+     * Returns the bytes saved by the compression.
+     */
+    public long getSavedBytes()
+    {
+        return bytesIn.get() - bytesOut.get();
+    }
+
+    /**
+     * Returns the compressed size relative to the original one (of the
+     * compressed texts only).
+     */
+    public double getRatio()
+    {
+        long in = bytesIn.get();
+        return in == 0 ? 1 : (double) bytesOut.get() / in;
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.IOException;
+import rice.p2p.commonapi.Endpoint;
+import rice.p2p.commonapi.Id;
+import rice.p2p.commonapi.Message;
+import rice.p2p.commonapi.rawserialization.InputBuffer;
+import rice.p2p.commonapi.rawserialization.OutputBuffer;
+import rice.p2p.commonapi.rawserialization.RawMessage;
+
+/**
+ *      Throttle message
+ * 
+ * Notice sent by a channel owner to a client whose broadcast has been
+ * rejected, see {@see OwnerAdmission}, or whose request could not be
+ * carried out.
+ * 
+ * @author Dejvino
+ */
+public class ThrottleMsg implements RawMessage
+{
+    private static final long serialVersionUID = 1L;
+
+    public static final short TYPE = 6;
+    
+    private static final byte VERSION = 0;
+
+    /**
+     * The client sends too fast.
+     */
+    public static final byte REASON_SENDER = 1;
+    /**
+     * The channel as a whole is too busy.
+     */
+    public static final byte REASON_CHANNEL = 2;
+    /**
+     * The owner node is overloaded.
+     */
+    public static final byte REASON_OVERLOAD = 3;
+    /**
+     * The owner can't load the channel's content.
+     */
+    public static final byte REASON_UNAVAILABLE = 4;
+    
+    /**
+     * Where the Message is going.
+     */
+    private Id to;
+    
+    private Id channelId;
+    
+    private String channelName;
+    
+    private byte reason;
+    
+    /**
+     * Suggested time to wait before sending again, in ms.
+     */
+    private long retryAfter;
+
+    /**
+     * Constructor.
+     */
+    public ThrottleMsg(Id to, Id channelId, String channelName, byte reason, long retryAfter)
+    {
+        this.to = to;
+        this.channelId = channelId;
+        this.channelName = channelName;
+        this.reason = reason;
+        this.retryAfter = retryAfter;
+    }
+
+    /**
+     * Deserializing constructor.
+     */
+    private ThrottleMsg(InputBuffer buf, Endpoint endpoint) throws IOException
+    {
+        ChatMessageDeserializer.checkVersion(buf, VERSION);
+        this.to = ChatMessageDeserializer.readId(buf, endpoint);
+        this.channelId = ChatMessageDeserializer.readId(buf, endpoint);
+        this.channelName = buf.readUTF();
+        this.reason = buf.readByte();
+        this.retryAfter = buf.readLong();
+    }
+
+    /**
+     * Rebuilds the message from its raw form.
+     */
+    public static ThrottleMsg build(InputBuffer buf, Endpoint endpoint) throws IOException
+    {
+        return new ThrottleMsg(buf, endpoint);
+    }
+
+    // =====================================================================
+
+    public Id getTo()
+    {
+        return to;
+    }
+
+    public Id getChannelId()
+    {
+        return channelId;
+    }
+
+    public String getChannelName()
+    {
+        return channelName;
+    }
+
+    public byte getReason()
+    {
+        return reason;
+    }
+
+    public long getRetryAfter()
+    {
+        return retryAfter;
+    }
+
+    // =====================================================================
+
+    @Override
+    public String toString()
+    {
+        return "ThrottleMsg to " + to + " from " + channelName + " ("+channelId+"): " + reason + ", retry after " + retryAfter + " ms";
+    }
+
+    // =====================================================================
+
+    /**
+     * Using low priority to prevent interference with overlay maintenance traffic.
+     */
+    @Override
+    public int getPriority()
+    {
+        return Message.LOW_PRIORITY;
+    }
+
+    // =====================================================================
+
+    @Override
+    public short getType()
+    {
+        return TYPE;
+    }
+
+    @Override
+    public void serialize(OutputBuffer buf) throws IOException
+    {
+        buf.writeByte(VERSION);
+        ChatMessageDeserializer.writeId(buf, to);
+        ChatMessageDeserializer.writeId(buf, channelId);
+        buf.writeUTF(channelName);
+        buf.writeByte(reason);
+        buf.writeLong(retryAfter);
+    }
+}
@@ -0,0 +1,74 @@
+
+/**
+ *      Token bucket
+ *
+ * Classic token bucket rate limiter. Tokens are added at a steady rate up to
+ * the burst size, every admitted event takes one. Not thread-safe, the
+ * owner ({@see OwnerAdmission}) synchronizes the access.
+ *
+ * @author Dejvino
+ */
+public class TokenBucket
+{
+    private final double rate;
+    private final double burst;
+
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Constructor. The bucket starts full.
+     *
+     * @param rate Tokens per second
+     * @param burst Bucket size
+     * @param now Current time in ms
+     */
+    public TokenBucket(double rate, double burst, long now)
+    {
+        this.rate = rate;
+        this.burst = burst;
+        this.tokens = burst;
+        this.lastRefill = now;
+    }
+
+    // =====================================================================
+
+    /**
+     * Takes a token if there is any.
+     *
+     * @param now Current time in ms
+     * @return true if admitted
+     */
+    public boolean tryAcquire(long now)
+    {
+        refill(now);
+        if (tokens < 1) {
+            return false;
+        }
+        tokens -= 1;
+        return true;
+    }
+
+    /**
+     * Returns the time in ms until the next token is available.
+     *
+     * @param now Current time in ms
+     * @return
+     */
+    public long getWait(long now)
+    {
+        refill(now);
+        if (tokens >= 1) {
+            return 0;
+        }
+        return (long) Math.ceil((1 - tokens) * 1000 / rate);
+    }
+
+    private void refill(long now)
+    {
+        if (now > lastRefill) {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1000);
+            lastRefill = now;
+        }
+    }
+}